@@ -0,0 +1,71 @@
+package com.martiansoftware.messagelog.benchmarks;
+
+import com.martiansoftware.messagelog.FileMessageLog;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures FileMessageLog.log() throughput, in transactions per second,
+ * with several threads writing to the same log.  With autoSync enabled this
+ * shows how well concurrent writers share syncs; run with -t to vary the
+ * number of writers.
+ *
+ * @author mlamb
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Threads(8)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ContendedLogBenchmark {
+
+    @Param({"16", "1024"})
+    int messageSize;
+
+    @Param({"false", "true"})
+    boolean autoSync;
+
+    private File _file;
+    private FileMessageLog _log;
+    private byte[] _message;
+
+    @Setup(Level.Trial)
+    public void open() throws IOException {
+        _file = TempFiles.newLogFile();
+        _log = new FileMessageLog(_file).setAutoSync(autoSync);
+        _message = TempFiles.randomMessages(1, messageSize)[0];
+    }
+
+    @Setup(Level.Iteration)
+    public void truncate() throws IOException {
+        _log.truncate();
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws IOException {
+        _log.close();
+        TempFiles.delete(_file);
+    }
+
+    @Benchmark
+    public long log() throws IOException {
+        return _log.log(_message);
+    }
+}
@@ -0,0 +1,74 @@
+package com.martiansoftware.messagelog.benchmarks;
+
+import com.martiansoftware.util.EventSourcedKVMap;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures EventSourcedKVMap put() and get() throughput on a map holding a
+ * fixed number of keys.
+ *
+ * @author mlamb
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class EventSourcedKVMapBenchmark {
+
+    @Param({"10000", "1000000"})
+    int keys;
+
+    private File _file;
+    private EventSourcedKVMap _map;
+    private String[] _keys;
+    private int _next = 0;
+
+    @Setup(Level.Trial)
+    public void open() throws IOException {
+        _file = TempFiles.newLogFile();
+        _map = new EventSourcedKVMap(_file);
+        _keys = new String[keys];
+        for (int i = 0; i < keys; ++i) {
+            _keys[i] = "key-" + Integer.toHexString(i * 0x9e3779b1);
+            _map.put(_keys[i], "value-" + i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws IOException {
+        _map.close();
+        TempFiles.delete(_file);
+    }
+
+    private String nextKey() {
+        if (++_next == _keys.length) _next = 0;
+        return _keys[_next];
+    }
+
+    @Benchmark
+    public String put() {
+        return _map.put(nextKey(), "value-" + _next);
+    }
+
+    @Benchmark
+    public String get() {
+        return _map.get(nextKey());
+    }
+}
@@ -0,0 +1,69 @@
+package com.martiansoftware.messagelog.benchmarks;
+
+import com.martiansoftware.util.EventSourcedKVMap;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the time taken to open an EventSourcedKVMap, with and without a
+ * snapshot, after a history of updates several times larger than the map.
+ *
+ * @author mlamb
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class EventSourcedKVMapOpenBenchmark {
+
+    @Param({"100000"})
+    int keys;
+
+    @Param({"5"})
+    int updatesPerKey;
+
+    @Param({"false", "true"})
+    boolean snapshot;
+
+    private File _file;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        _file = TempFiles.newLogFile();
+        EventSourcedKVMap map = new EventSourcedKVMap(_file);
+        for (int u = 0; u < updatesPerKey; ++u) {
+            for (int i = 0; i < keys; ++i) map.put("key-" + i, "value-" + u);
+        }
+        if (snapshot) map.snapshot();
+        map.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() {
+        TempFiles.delete(_file);
+    }
+
+    @Benchmark
+    public int open() throws IOException {
+        EventSourcedKVMap map = new EventSourcedKVMap(_file);
+        int size = map.size();
+        map.close();
+        return size;
+    }
+}
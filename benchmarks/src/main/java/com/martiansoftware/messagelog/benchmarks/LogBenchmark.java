@@ -0,0 +1,72 @@
+package com.martiansoftware.messagelog.benchmarks;
+
+import com.martiansoftware.messagelog.FileMessageLog;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures single-threaded FileMessageLog.log() throughput, in transactions
+ * per second, across message and transaction sizes, with and without
+ * autoSync.
+ *
+ * @author mlamb
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class LogBenchmark {
+
+    @Param({"16", "256", "4096", "65536"})
+    int messageSize;
+
+    @Param({"1", "10", "100"})
+    int batchSize;
+
+    @Param({"false", "true"})
+    boolean autoSync;
+
+    private File _file;
+    private FileMessageLog _log;
+    private byte[][] _batch;
+
+    @Setup(Level.Trial)
+    public void open() throws IOException {
+        _file = TempFiles.newLogFile();
+        _log = new FileMessageLog(_file).setAutoSync(autoSync);
+        _batch = TempFiles.randomMessages(batchSize, messageSize);
+    }
+
+    // keeps the log from growing without bound over a long run
+    @Setup(Level.Iteration)
+    public void truncate() throws IOException {
+        _log.truncate();
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws IOException {
+        _log.close();
+        TempFiles.delete(_file);
+    }
+
+    @Benchmark
+    public long log() throws IOException {
+        return _log.log(_batch);
+    }
+}
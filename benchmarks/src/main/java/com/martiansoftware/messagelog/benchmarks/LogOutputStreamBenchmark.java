@@ -0,0 +1,78 @@
+package com.martiansoftware.messagelog.benchmarks;
+
+import com.martiansoftware.messagelog.FileMessageLog;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares writing a small structured message through getLogOutputStream()
+ * with encoding it into a new ByteArrayOutputStream and calling log().
+ *
+ * @author mlamb
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class LogOutputStreamBenchmark {
+
+    private File _file;
+    private FileMessageLog _log;
+    private long _counter = 0;
+
+    @Setup(Level.Trial)
+    public void open() throws IOException {
+        _file = TempFiles.newLogFile();
+        _log = new FileMessageLog(_file);
+    }
+
+    @Setup(Level.Iteration)
+    public void truncate() throws IOException {
+        _log.truncate();
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws IOException {
+        _log.close();
+        TempFiles.delete(_file);
+    }
+
+    private void writeMessage(DataOutputStream out) throws IOException {
+        out.writeLong(++_counter);
+        out.writeUTF("account-12345");
+        out.writeInt(42);
+    }
+
+    @Benchmark
+    public void logOutputStream() throws IOException {
+        DataOutputStream out = _log.getLogOutputStream();
+        writeMessage(out);
+        out.close();
+    }
+
+    @Benchmark
+    public long byteArrayOutputStream() throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bout);
+        writeMessage(out);
+        out.close();
+        return _log.log(bout.toByteArray());
+    }
+}
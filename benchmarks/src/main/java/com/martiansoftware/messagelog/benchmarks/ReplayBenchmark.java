@@ -0,0 +1,86 @@
+package com.martiansoftware.messagelog.benchmarks;
+
+import com.martiansoftware.messagelog.ByteBufferMessageHandler;
+import com.martiansoftware.messagelog.FileMessageLog;
+import com.martiansoftware.messagelog.MessageHandler;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the time taken to replay a large generated log, to byte-array and
+ * ByteBuffer handlers, using one or more threads.  Once the first replay has
+ * warmed the page cache this measures CPU cost (CRC checking, decoding and
+ * copying) rather than disk throughput.
+ *
+ * @author mlamb
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class ReplayBenchmark {
+
+    @Param({"256"})
+    int logMegabytes;
+
+    @Param({"64", "1024"})
+    int messageSize;
+
+    @Param({"1", "4"})
+    int threads;
+
+    private File _file;
+    private FileMessageLog _log;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException {
+        _file = TempFiles.newLogFile();
+        _log = new FileMessageLog(_file);
+        byte[][] batch = TempFiles.randomMessages(10, messageSize);
+        long target = logMegabytes * 1024L * 1024L;
+        while (_log.getPosition() < target) _log.log(batch);
+        _log.sync();
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws IOException {
+        _log.close();
+        TempFiles.delete(_file);
+    }
+
+    @Benchmark
+    public void replayBytes(final Blackhole bh) throws IOException {
+        _log.replay(new MessageHandler() {
+            @Override public void handleMessage(byte[] message) {
+                bh.consume(message);
+            }
+        }, threads);
+    }
+
+    @Benchmark
+    public void replayBuffers(final Blackhole bh) throws IOException {
+        _log.replay(new ByteBufferMessageHandler() {
+            @Override public void handleMessage(ByteBuffer message) {
+                bh.consume(message.remaining());
+            }
+        }, threads);
+    }
+}
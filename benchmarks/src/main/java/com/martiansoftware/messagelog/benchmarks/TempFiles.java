@@ -0,0 +1,49 @@
+package com.martiansoftware.messagelog.benchmarks;
+
+import com.martiansoftware.messagelog.FileMessageLog;
+import com.martiansoftware.util.EventSourcedKVMap;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Helpers for creating and cleaning up the files used by the benchmarks
+ *
+ * @author mlamb
+ */
+class TempFiles {
+
+    private TempFiles() {
+    }
+
+    /**
+     * Returns a new, empty file for a log, honoring the
+     * messagelog.benchmark.dir system property if it's set (so logs can be
+     * placed on the device being measured)
+     */
+    static File newLogFile() throws IOException {
+        String dir = System.getProperty("messagelog.benchmark.dir");
+        File f = File.createTempFile("messagelog", "bench", dir == null ? null : new File(dir));
+        f.deleteOnExit();
+        return f;
+    }
+
+    /**
+     * Deletes a log and any files stored alongside it
+     */
+    static void delete(File f) {
+        f.delete();
+        FileMessageLog.getIndexFile(f).delete();
+        EventSourcedKVMap.getSnapshotFile(f).delete();
+    }
+
+    /**
+     * Returns count arrays of size random bytes
+     */
+    static byte[][] randomMessages(int count, int size) {
+        Random r = new Random(0);
+        byte[][] result = new byte[count][size];
+        for (byte[] b : result) r.nextBytes(b);
+        return result;
+    }
+}
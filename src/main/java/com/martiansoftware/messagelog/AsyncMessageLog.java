@@ -0,0 +1,445 @@
+package com.martiansoftware.messagelog;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A MessageLog that moves disk I/O off of the logging thread.  logAsync()
+ * places each transaction in a bounded queue and immediately returns a
+ * Future; a single writer thread drains the queue in batches, writes each
+ * batch to the underlying FileMessageLog with a single write (and, if
+ * autoSync is enabled, a single sync), and then completes the Futures with
+ * the transactions' sequence numbers.
+ *
+ * When the queue is full, logAsync() either blocks until there is room or
+ * fails immediately, depending on the Backpressure policy supplied at
+ * construction.
+ *
+ * The synchronous MessageLog methods remain available; log() simply waits
+ * for its transaction's Future to complete.  Because the caller waits, those
+ * methods do not copy the supplied messages; for the same reason they keep
+ * waiting if interrupted once the transaction is queued, and restore the
+ * thread's interrupt status when it has been written.  logAsync() copies its messages
+ * so the caller can reuse them immediately; logBuffersAsync() takes
+ * ownership of its buffers instead, and does not copy them.
+ *
+ * A write that fails with an IOException or RuntimeException fails only the
+ * transactions in its batch.  If the writer thread fails with anything else
+ * (e.g. an OutOfMemoryError), the log is marked failed: every transaction
+ * still queued fails, and later attempts to log throw an IOException.
+ */
+public class AsyncMessageLog implements MessageLog {
+
+    /**
+     * What logAsync() does when the queue of pending transactions is full
+     */
+    public enum Backpressure {
+        /** wait until there is room in the queue */
+        BLOCK,
+        /** throw an IOException */
+        FAIL
+    }
+
+    /**
+     * The default number of transactions that may be waiting to be written
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final FileMessageLog _log;
+    private final Backpressure _backpressure;
+    private final BlockingQueue<Pending> _queue;
+    private final Semaphore _slots; // free space in _queue, not counting room for _shutdown
+    private final int _maxBatch;
+    private final Thread _writer;
+
+    // logging threads share this lock while enqueueing; close() takes it
+    // exclusively so nothing can be enqueued behind the shutdown marker.
+    private final ReadWriteLock _closeLock = new ReentrantReadWriteLock();
+    private boolean _closed = false;
+    private volatile Pending _last = null;
+
+    // set if the writer fails with something other than an IOException or
+    // RuntimeException (e.g. an OutOfMemoryError), after which the state of
+    // the underlying log is unknown and nothing more is written to it
+    private volatile Throwable _failure = null;
+
+    // marks the end of the queue when closing
+    private final Pending _shutdown = new Pending(null);
+
+    /**
+     * Creates a new AsyncMessageLog writing to the specified FileMessageLog,
+     * with a queue of DEFAULT_CAPACITY transactions that blocks when full.
+     *
+     * @param log the FileMessageLog to write to
+     */
+    public AsyncMessageLog(FileMessageLog log) {
+        this(log, DEFAULT_CAPACITY, Backpressure.BLOCK);
+    }
+
+    /**
+     * Creates a new AsyncMessageLog writing to the specified FileMessageLog.
+     *
+     * @param log the FileMessageLog to write to
+     * @param capacity the maximum number of transactions waiting to be written
+     * @param backpressure what to do when capacity transactions are waiting
+     */
+    public AsyncMessageLog(FileMessageLog log, int capacity, Backpressure backpressure) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive");
+        _log = log;
+        _backpressure = backpressure;
+        _queue = new ArrayBlockingQueue<>(capacity + 1); // room for the shutdown marker
+        _slots = new Semaphore(capacity);
+        _maxBatch = capacity;
+        _writer = new Thread(new Writer(), "AsyncMessageLog writer for " + log.getFile().getName());
+        _writer.setDaemon(true);
+        _writer.start();
+    }
+
+    /**
+     * Returns the FileMessageLog this AsyncMessageLog writes to
+     * @return the FileMessageLog this AsyncMessageLog writes to
+     */
+    public FileMessageLog getFileMessageLog() {
+        return _log;
+    }
+
+    /**
+     * If set to true, each batch is forced out to disk before the Futures of
+     * its transactions are completed.  See FileMessageLog.setAutoSync().
+     *
+     * @param autoSync if true, automatically force all writes to disk
+     * @return this AsyncMessageLog
+     */
+    public AsyncMessageLog setAutoSync(boolean autoSync) {
+        _log.setAutoSync(autoSync);
+        return this;
+    }
+
+    /**
+     * Queues messages to be logged as a single transaction.
+     *
+     * @param messages the message(s) to log.  These are copied before this
+     * method returns, so the caller may reuse them immediately.
+     * @return a Future that supplies the sequence number of the transaction
+     * once it has been written, or -1 if no messages were supplied
+     * @throws IOException if the log is closed or its writer has failed, if
+     * the queue is full and the Backpressure policy is FAIL, or if interrupted
+     * while waiting for room in the queue
+     */
+    public Future<Long> logAsync(byte[]... messages) throws IOException {
+        if (messages == null || messages.length == 0) return Pending.NOTHING;
+        return enqueue(new MessageTransaction(messages));
+    }
+
+    /**
+     * Queues messages to be logged as a single transaction.
+     *
+     * @param messages the message(s) to log.  These are copied before this
+     * method returns, so the caller may reuse them immediately.
+     * @return a Future that supplies the sequence number of the transaction
+     * once it has been written, or -1 if no messages were supplied
+     * @throws IOException if the log is closed or its writer has failed, if
+     * the queue is full and the Backpressure policy is FAIL, or if interrupted
+     * while waiting for room in the queue
+     */
+    public Future<Long> logAsync(List<byte[]> messages) throws IOException {
+        if (messages == null || messages.isEmpty()) return Pending.NOTHING;
+        return enqueue(new MessageTransaction(messages));
+    }
+
+    /**
+     * Queues messages to be logged as a single transaction without copying
+     * them.  Each message is the content of a buffer between its position
+     * and limit.  The log takes ownership of the buffers: the caller must not
+     * change them until the returned Future is done.
+     *
+     * @param messages the message(s) to log
+     * @return a Future that supplies the sequence number of the transaction
+     * once it has been written, or -1 if no messages were supplied
+     * @throws IOException if the log is closed or its writer has failed, if
+     * the queue is full and the Backpressure policy is FAIL, or if interrupted
+     * while waiting for room in the queue
+     */
+    public Future<Long> logBuffersAsync(ByteBuffer... messages) throws IOException {
+        if (messages == null || messages.length == 0) return Pending.NOTHING;
+        return enqueue(MessageTransaction.wrapBuffers(messages.clone()));
+    }
+
+    /**
+     * Queues messages to be logged as a single transaction without copying
+     * them.  Each message is the content of a buffer between its position
+     * and limit.  The log takes ownership of the buffers: the caller must not
+     * change them until the returned Future is done.
+     *
+     * @param messages the message(s) to log
+     * @return a Future that supplies the sequence number of the transaction
+     * once it has been written, or -1 if no messages were supplied
+     * @throws IOException if the log is closed or its writer has failed, if
+     * the queue is full and the Backpressure policy is FAIL, or if interrupted
+     * while waiting for room in the queue
+     */
+    public Future<Long> logBuffersAsync(List<ByteBuffer> messages) throws IOException {
+        if (messages == null || messages.isEmpty()) return Pending.NOTHING;
+        return enqueue(MessageTransaction.wrapBuffers(messages.toArray(new ByteBuffer[messages.size()])));
+    }
+
+    @Override
+    public long log(byte[]... messages) throws IOException {
+        if (messages == null || messages.length == 0) return -1;
+        return await(enqueue(MessageTransaction.wrapArrays(Arrays.asList(messages))));
+    }
+
+    @Override
+    public long log(List<byte[]> messages) throws IOException {
+        if (messages == null || messages.isEmpty()) return -1;
+        return await(enqueue(MessageTransaction.wrapArrays(messages)));
+    }
+
+    @Override
+    public long logBuffers(ByteBuffer... messages) throws IOException {
+        return await(logBuffersAsync(messages));
+    }
+
+    @Override
+    public long logBuffers(List<ByteBuffer> messages) throws IOException {
+        return await(logBuffersAsync(messages));
+    }
+
+    @Override
+    public DataOutputStream getLogOutputStream() {
+        return MessageDataOutputStream.get(this);
+    }
+
+    /**
+     * Waits for all transactions queued so far to be written, then replays
+     * the underlying log.
+     */
+    @Override
+    public AsyncMessageLog replay(MessageHandler h) throws IOException {
+        flush();
+        _log.replay(h);
+        return this;
+    }
+
+    /**
+     * Waits for all transactions queued so far to be written, then replays
+     * the underlying log starting at the specified sequence number.
+     */
+    @Override
+    public AsyncMessageLog replayFrom(long seq, MessageHandler h) throws IOException {
+        flush();
+        _log.replayFrom(seq, h);
+        return this;
+    }
+
+    /**
+     * Waits until every transaction queued before this call has been
+     * written (successfully or not).
+     *
+     * @return this AsyncMessageLog
+     * @throws IOException if interrupted while waiting
+     */
+    public AsyncMessageLog flush() throws IOException {
+        Pending last = _last;
+        if (last != null) {
+            try {
+                last.await();
+            } catch (InterruptedException e) {
+                throw interrupted(e);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Writes any queued transactions, stops the writer thread, and closes
+     * the underlying FileMessageLog.
+     *
+     * @return this AsyncMessageLog
+     * @throws IOException
+     */
+    public AsyncMessageLog close() throws IOException {
+        _closeLock.writeLock().lock();
+        try {
+            if (_closed) return this;
+            _closed = true;
+            _queue.put(_shutdown); // there is always room for this
+            _writer.join();
+        } catch (InterruptedException e) {
+            throw interrupted(e);
+        } finally {
+            _closeLock.writeLock().unlock();
+        }
+        _log.close();
+        return this;
+    }
+
+    private Pending enqueue(MessageTransaction tx) throws IOException {
+        Pending p = new Pending(tx);
+        _closeLock.readLock().lock();
+        try {
+            if (_closed) throw new IOException("Log has been closed.");
+            failIfWriterFailed();
+            if (_backpressure == Backpressure.BLOCK) {
+                _slots.acquire();
+            } else if (!_slots.tryAcquire()) {
+                throw new IOException("Log queue is full.");
+            }
+            synchronized(_queue) { // keeps _last in queue order for flush()
+                _queue.add(p);
+                _last = p;
+            }
+            return p;
+        } catch (InterruptedException e) {
+            throw interrupted(e);
+        } finally {
+            _closeLock.readLock().unlock();
+        }
+    }
+
+    private void failIfWriterFailed() throws IOException {
+        Throwable failure = _failure;
+        if (failure != null) throw new IOException("Log writer has failed.", failure);
+    }
+
+    // waits for a transaction that may hold the caller's own arrays or
+    // buffers, which the writer may still be reading, so an interrupt is
+    // only reported (by restoring the thread's interrupt status) once the
+    // transaction has been written.
+    private static long await(Future<Long> f) throws IOException {
+        boolean interrupted = false;
+        try {
+            for (;;) {
+                try {
+                    return f.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable t = e.getCause();
+            if (t instanceof IOException) throw (IOException) t;
+            throw new IOException(t);
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    private static InterruptedIOException interrupted(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        InterruptedIOException result = new InterruptedIOException();
+        result.initCause(e);
+        return result;
+    }
+
+    private class Writer implements Runnable {
+        @Override
+        public void run() {
+            List<Pending> batch = new ArrayList<>(_maxBatch);
+            List<MessageTransaction> txs = new ArrayList<>(_maxBatch);
+            boolean done = false;
+            while (!done) {
+                try {
+                    batch.add(_queue.take());
+                } catch (InterruptedException e) {
+                    continue; // only close() can stop the writer
+                }
+                _queue.drainTo(batch, _maxBatch - 1);
+                for (Pending p : batch) {
+                    if (p == _shutdown) done = true;
+                    else txs.add(p._tx);
+                }
+                _slots.release(txs.size());
+                if (!txs.isEmpty()) {
+                    try {
+                        // transactions queued before a failure was noticed
+                        // are failed rather than written
+                        failIfWriterFailed();
+                        long seq = _log.writeTransactions(txs);
+                        for (Pending p : batch) {
+                            if (p != _shutdown) p.complete(seq++, null);
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        fail(batch, e);
+                    } catch (Throwable t) {
+                        _failure = t;
+                        fail(batch, t);
+                    }
+                }
+                batch.clear();
+                txs.clear();
+            }
+        }
+
+        private void fail(List<Pending> batch, Throwable t) {
+            for (Pending p : batch) {
+                if (p != _shutdown) p.complete(-1, t);
+            }
+        }
+    }
+
+    /**
+     * A queued transaction and the Future that reports its outcome
+     */
+    private static class Pending implements Future<Long> {
+        static final Pending NOTHING = new Pending(null);
+        static {
+            NOTHING.complete(-1, null);
+        }
+
+        private final MessageTransaction _tx;
+        private final CountDownLatch _done = new CountDownLatch(1);
+        private volatile long _seq;
+        private volatile Throwable _failure;
+
+        Pending(MessageTransaction tx) {
+            _tx = tx;
+        }
+
+        void complete(long seq, Throwable failure) {
+            _seq = seq;
+            _failure = failure;
+            _done.countDown();
+        }
+
+        void await() throws InterruptedException {
+            _done.await();
+        }
+
+        @Override public boolean cancel(boolean mayInterruptIfRunning) { return false; }
+        @Override public boolean isCancelled() { return false; }
+        @Override public boolean isDone() { return _done.getCount() == 0; }
+
+        @Override
+        public Long get() throws InterruptedException, ExecutionException {
+            _done.await();
+            return result();
+        }
+
+        @Override
+        public Long get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!_done.await(timeout, unit)) throw new TimeoutException();
+            return result();
+        }
+
+        private Long result() throws ExecutionException {
+            if (_failure != null) throw new ExecutionException(_failure);
+            return _seq;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.martiansoftware.messagelog;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A MessageHandler that receives replayed messages as ByteBuffers instead of
+ * byte arrays, avoiding a copy and an allocation per message.
+ * 
+ * The buffer passed to handleMessage(ByteBuffer) is a read-only view of the
+ * replay's internal buffer; the message occupies the bytes between its
+ * position and limit (its position is generally not zero).  The buffer is
+ * reused for subsequent messages, so it is only valid for the duration of
+ * the call.  Handlers that need to keep a message must copy it.
+ */
+public abstract class ByteBufferMessageHandler implements MessageHandler {
+    
+    /**
+     * Handles a single message.
+     * 
+     * @param message a read-only buffer containing the message between its
+     * position and limit.  Valid only until this method returns.
+     */
+    public abstract void handleMessage(ByteBuffer message);
+
+    /**
+     * Handles a message supplied as a byte array by wrapping it.  This is
+     * only used by sources that don't supply ByteBuffers directly.
+     * 
+     * @param message the message
+     */
+    @Override
+    public void handleMessage(byte[] message) {
+        handleMessage(ByteBuffer.wrap(message).asReadOnlyBuffer());
+    }
+}
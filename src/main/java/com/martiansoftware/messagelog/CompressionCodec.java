@@ -0,0 +1,44 @@
+package com.martiansoftware.messagelog;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Compresses and decompresses transactions for a FileMessageLog (see
+ * FileMessageLog.setCompression()).
+ *
+ * Each compressed transaction records the id of the codec that compressed
+ * it, so a log can only be replayed if a codec with that id is registered
+ * with CompressionCodecs.  Codecs may be called by several threads at once.
+ */
+public interface CompressionCodec {
+
+    /**
+     * Returns the id that identifies this codec in the log, between 1 and
+     * 255.  Ids below 16 are reserved for the codecs in CompressionCodecs.
+     *
+     * @return the codec's id
+     */
+    public int getId();
+
+    /**
+     * Compresses the bytes between src's position and limit.
+     *
+     * @param src the data to compress, which must not be modified
+     * @return a buffer holding the compressed data between its position and
+     * limit
+     * @throws IOException
+     */
+    public ByteBuffer compress(ByteBuffer src) throws IOException;
+
+    /**
+     * Decompresses the bytes between src's position and limit into dst,
+     * which has exactly the decompressed length remaining.
+     *
+     * @param src the compressed data
+     * @param dst the buffer to fill with the decompressed data
+     * @throws IOException if the data is invalid or doesn't decompress to
+     * exactly the expected length
+     */
+    public void decompress(ByteBuffer src, ByteBuffer dst) throws IOException;
+}
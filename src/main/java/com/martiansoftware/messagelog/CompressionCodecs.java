@@ -0,0 +1,144 @@
+package com.martiansoftware.messagelog;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The built-in CompressionCodecs, and the registry used to find the codec
+ * for a compressed transaction when a log is replayed.
+ */
+public final class CompressionCodecs {
+
+    /**
+     * Compresses with java.util.zip's Deflater at its fastest setting
+     */
+    public static final CompressionCodec DEFLATE = deflate(Deflater.BEST_SPEED);
+
+    private static final CompressionCodec[] _codecs = new CompressionCodec[256];
+
+    static {
+        register(DEFLATE);
+    }
+
+    private CompressionCodecs() {
+    }
+
+    /**
+     * Returns a codec that compresses with java.util.zip's Deflater at the
+     * specified level.  All such codecs share DEFLATE's id, since any of them
+     * can decompress the others' output.
+     *
+     * @param level the compression level, from 0 to 9
+     * @return a Deflater-based codec
+     */
+    public static CompressionCodec deflate(int level) {
+        if (level < 0 || level > 9) throw new IllegalArgumentException("level must be between 0 and 9");
+        return new DeflateCodec(level);
+    }
+
+    /**
+     * Makes a codec available for replaying logs that it compressed.  Logs
+     * register the codec passed to setCompression() automatically.
+     *
+     * @param codec the codec to register
+     * @throws IllegalArgumentException if the codec's id is invalid or is
+     * already used by a different kind of codec
+     */
+    public static synchronized void register(CompressionCodec codec) {
+        int id = codec.getId();
+        if (id < 1 || id > 255) throw new IllegalArgumentException("Invalid codec id " + id);
+        CompressionCodec existing = _codecs[id];
+        if (existing != null && existing.getClass() != codec.getClass()) {
+            throw new IllegalArgumentException("Codec id " + id + " is already used by " + existing.getClass().getName());
+        }
+        if (existing == null) _codecs[id] = codec;
+    }
+
+    /**
+     * Returns the registered codec with the specified id, or null if there
+     * is none
+     */
+    static synchronized CompressionCodec get(int id) {
+        return id < 1 || id > 255 ? null : _codecs[id];
+    }
+
+    private static class DeflateCodec implements CompressionCodec {
+        private final int _level;
+
+        // Deflaters and Inflaters hold native memory and are expensive to
+        // create, so each thread keeps one of each
+        private final ThreadLocal<Deflater> _deflater = new ThreadLocal<>();
+        private static final ThreadLocal<Inflater> _inflater = new ThreadLocal<>();
+
+        DeflateCodec(int level) {
+            _level = level;
+        }
+
+        @Override
+        public int getId() {
+            return 1;
+        }
+
+        @Override
+        public ByteBuffer compress(ByteBuffer src) throws IOException {
+            Deflater d = _deflater.get();
+            if (d == null) {
+                d = new Deflater(_level, true);
+                _deflater.set(d);
+            }
+            d.reset();
+            d.setInput(array(src), src.hasArray() ? src.arrayOffset() + src.position() : 0, src.remaining());
+            d.finish();
+            byte[] out = new byte[src.remaining() / 2 + 64];
+            int n = 0;
+            while (!d.finished()) {
+                if (n == out.length) out = Arrays.copyOf(out, out.length * 2);
+                n += d.deflate(out, n, out.length - n);
+            }
+            return ByteBuffer.wrap(out, 0, n);
+        }
+
+        @Override
+        public void decompress(ByteBuffer src, ByteBuffer dst) throws IOException {
+            Inflater inf = _inflater.get();
+            if (inf == null) {
+                inf = new Inflater(true);
+                _inflater.set(inf);
+            }
+            inf.reset();
+            inf.setInput(array(src), src.hasArray() ? src.arrayOffset() + src.position() : 0, src.remaining());
+            byte[] out = array(dst);
+            int off = dst.hasArray() ? dst.arrayOffset() + dst.position() : 0;
+            int len = dst.remaining();
+            try {
+                int n = 0;
+                while (n < len) {
+                    int r = inf.inflate(out, off + n, len - n);
+                    if (r == 0 && (inf.finished() || inf.needsInput() || inf.needsDictionary())) break;
+                    n += r;
+                }
+                // the end of the stream may not have been reached if the
+                // output filled up just before it
+                if (n == len && !inf.finished()) n += inf.inflate(new byte[1]);
+                // a stored length that's too long or too short means the data is bad
+                if (n != len || !inf.finished()) throw new IOException("Compressed data has the wrong length");
+            } catch (DataFormatException e) {
+                throw new IOException("Invalid compressed data", e);
+            }
+            if (!dst.hasArray()) dst.duplicate().put(out, 0, len);
+            dst.position(dst.limit());
+        }
+
+        // the buffer's backing array, or a copy of its content if it's direct
+        private static byte[] array(ByteBuffer b) {
+            if (b.hasArray()) return b.array();
+            byte[] result = new byte[b.remaining()];
+            b.duplicate().get(result);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.martiansoftware.messagelog;
+
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * CRC-32C (Castagnoli), as used by the v2 log format.
+ *
+ * newChecksum() returns the JDK's java.util.zip.CRC32C where it is available
+ * (Java 9 and later), which the JVM implements with the CPU's CRC32
+ * instructions.  On older JVMs it falls back to this table-driven
+ * implementation, which produces identical values.
+ */
+final class Crc32c implements Checksum {
+
+    private static final int POLY = 0x82f63b78; // reversed Castagnoli polynomial
+    private static final int[] TABLE = new int[256];
+    private static final Constructor<? extends Checksum> JDK_CRC32C; // null before Java 9
+
+    static {
+        for (int i = 0; i < 256; ++i) {
+            int c = i;
+            for (int k = 0; k < 8; ++k) c = (c & 1) != 0 ? (c >>> 1) ^ POLY : c >>> 1;
+            TABLE[i] = c;
+        }
+        Constructor<? extends Checksum> c;
+        try {
+            c = Class.forName("java.util.zip.CRC32C").asSubclass(Checksum.class).getConstructor();
+        } catch (ReflectiveOperationException e) {
+            c = null;
+        }
+        JDK_CRC32C = c;
+    }
+
+    private int _crc = 0xffffffff;
+
+    /**
+     * Returns a new CRC-32C Checksum, using the JDK's implementation if there
+     * is one.
+     */
+    static Checksum newChecksum() {
+        if (JDK_CRC32C != null) {
+            try {
+                return JDK_CRC32C.newInstance();
+            } catch (ReflectiveOperationException e) {
+                // fall through to the portable implementation
+            }
+        }
+        return new Crc32c();
+    }
+
+    /**
+     * Updates c with the content of b between its position and limit, without
+     * changing b's position.  Checksum can only read arrays before Java 9, so
+     * direct buffers are copied into scratch a chunk at a time.
+     *
+     * @return scratch, allocated if it was null and needed
+     */
+    static byte[] update(Checksum c, ByteBuffer b, byte[] scratch) {
+        if (b.hasArray()) {
+            c.update(b.array(), b.arrayOffset() + b.position(), b.remaining());
+            return scratch;
+        }
+        if (scratch == null) scratch = new byte[8192];
+        ByteBuffer d = b.duplicate();
+        while (d.hasRemaining()) {
+            int n = Math.min(scratch.length, d.remaining());
+            d.get(scratch, 0, n);
+            c.update(scratch, 0, n);
+        }
+        return scratch;
+    }
+
+    @Override
+    public void update(int b) {
+        _crc = (_crc >>> 8) ^ TABLE[(_crc ^ b) & 0xff];
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        int crc = _crc;
+        for (int end = off + len; off < end; ++off) crc = (crc >>> 8) ^ TABLE[(crc ^ b[off]) & 0xff];
+        _crc = crc;
+    }
+
+    @Override
+    public long getValue() {
+        return ~_crc & 0xffffffffL;
+    }
+
+    @Override
+    public void reset() {
+        _crc = 0xffffffff;
+    }
+}
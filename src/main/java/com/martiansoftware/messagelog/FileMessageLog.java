@@ -1,14 +1,21 @@
 package com.martiansoftware.messagelog;
 
-import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
-import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A robust file-based log of byte-array-based messages.  This can be used as 
@@ -17,15 +24,110 @@ import java.util.List;
  * all writes to synchronize to the underlying disk before returning from the
  * log() call.  See sync() and setAutoSync().
  * 
+ * When autoSync is enabled, concurrent writers share disk syncs: a writer
+ * that arrives while another writer's sync is in progress appends its
+ * transaction immediately and then waits for a single subsequent sync that
+ * covers every transaction written in the meantime ("group commit").
+ * 
+ * Each transaction is assigned a sequence number, returned by log(), that is
+ * one greater than that of the transaction before it.  A sparse index of
+ * sequence numbers to file offsets is kept in a sidecar file (see
+ * getIndexFile()) so that replayFrom() can start at any sequence number
+ * without scanning the whole log.  The index is verified and repaired as
+ * needed whenever the log is opened.
+ * 
+ * Transactions can be followed as they are written with a LogTailer (see
+ * tail() and tailFrom()).
+ * 
+ * A log is normally opened for exclusive use by one FileMessageLog, which
+ * locks the file.  Other processes can still read it with openReadOnly().
+ * 
+ * New logs are written in the versioned format described in LogFormat, in
+ * which a CRC-32C (hardware-accelerated where the JVM supports it) covers
+ * every field of each transaction.  Logs written in the original,
+ * unversioned format are still read, and appended to, in that format until
+ * they are truncated.
+ * 
+ * Logs in the versioned format can be preallocated (see setPreallocation())
+ * so that appends overwrite space already allocated to the file rather than
+ * extending it, which makes syncing them cheaper on most filesystems.
+ * 
+ * They can also be written through a memory-mapped window onto the end of
+ * the file (see setMemoryMapping()), so that appending a transaction doesn't
+ * require a system call.
+ * 
+ * A MessageLogListener (such as MessageLogMetrics, which can be exposed over
+ * JMX) can be attached with setListener() to measure writes, syncs, replays
+ * and recovery.
+ * 
+ * Closing a log in the versioned format records the length of its data in
+ * the file's header.  When the log is next opened without a MessageHandler,
+ * only the transactions written after that point are read and checked, so
+ * a log that was closed cleanly opens in constant time however large it is.
+ * 
  * @author mlamb
  */
 public class FileMessageLog implements MessageLog {
 
+    // transactions are encoded into a reusable buffer so each one costs a
+    // single write to the channel.  The buffer grows as needed, but anything
+    // larger than this is encoded into a one-off buffer instead of being kept.
+    private static final int INITIAL_WRITE_BUFFER_SIZE = 8192;
+    private static final int MAX_RETAINED_WRITE_BUFFER_SIZE = 1024 * 1024;
+    
+    // messages at least this large aren't copied into the write buffer; they
+    // are passed to the channel as-is in a gathering write.
+    static final int GATHER_THRESHOLD = 32 * 1024;
+    
+    // an index entry is recorded for the first transaction that starts at
+    // least this many bytes after the previously indexed one
+    static final int INDEX_INTERVAL = 64 * 1024;
+    
+    // when compression is enabled, smaller transactions are stored as-is
+    static final int MIN_COMPRESSED_LENGTH = 128;
+    
+    // how often tailers of a read-only log check for data written by
+    // another process, which can't notify them
+    static final long READ_ONLY_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    
+    // the most replaced mapped windows kept waiting for the next sync; older
+    // ones are forced and released so mappings don't accumulate between syncs
+    static final int MAX_UNFORCED_WINDOWS = 4;
+    
     private final File _f;
     private final RandomAccessFile _raf;
-    private final FileLock _flock;
+    private final FileChannel _channel;
+    private final FileLock _flock; // null if read-only
+    private final boolean _readOnly;
+    private final boolean _lenient; // true if a bad transaction may be one that's still being written
+    private final SequenceIndex _index;
     private final Object _lock = new Object();
+    private final Object _syncLock = new Object();
     private volatile boolean _autoSync = false;
+    private volatile long _writePosition = 0; // end of all data written so far
+    private long _syncedPosition = 0; // end of data known to be on disk; guarded by _syncLock
+    private volatile long _nextSeq = 0;
+    private long _lastIndexedPosition = 0; // guarded by _lock
+    private volatile int _format = LogFormat.CURRENT; // written only while holding _lock
+    private volatile CompressionCodec _codec = null;
+    private volatile int _truncations = 0; // lets tailers detect truncation
+    private final Object _appendMonitor = new Object(); // notified of writes while tailers wait
+    private volatile int _tailersWaiting = 0; // modified only while holding _appendMonitor
+    private long _preallocation = 0; // guarded by _lock
+    private long _allocated = 0; // length of the file, including preallocated space; guarded by _lock
+    private int _mapWindow = 0; // guarded by _lock
+    private volatile MappedByteBuffer _map = null; // the current write window; written only while holding _lock
+    private long _mapStart = 0; // file offset of _map; guarded by _lock
+    private boolean _channelBehind = false; // true if mapped writes have left the channel's position behind; guarded by _lock
+    private boolean _mapped = false; // true once any window has been mapped, after which the file isn't shortened; guarded by _lock
+    private final Queue<MappedByteBuffer> _unforced = new ConcurrentLinkedQueue<>(); // replaced windows that haven't been synced
+    private volatile MessageLogListener _listener = null; // written only while holding _lock
+    // measurements of the last full replay, kept for a listener that's set after it
+    private long _scanTransactions, _scanBytes, _scanNanos, _scanDiscarded; // guarded by _lock
+    private boolean _scanReported = false; // guarded by _lock
+    private volatile long _dataStart = 0; // offset of the first transaction, once the file has a header
+    private ByteBuffer _writeBuffer = ByteBuffer.allocateDirect(INITIAL_WRITE_BUFFER_SIZE);
+    private final MessageTransaction.CrcScratch _crcScratch = new MessageTransaction.CrcScratch(); // guarded by _lock
    
     /**
      * Creates a new FileMessageLog using the specified File, creating the file
@@ -49,18 +151,118 @@ public class FileMessageLog implements MessageLog {
      * state from the log)
      */
     public FileMessageLog(File f, MessageHandler h) throws IOException {
+        this(f, h, 0L, 1);
+    }
+    
+    /**
+     * Creates a new FileMessageLog using the specified File, creating the file
+     * on disk if necessary, and replays its contents using the specified
+     * number of threads (see replay(MessageHandler, int)).
+     * 
+     * @param f the file to use for message storage
+     * @param h a MessageHandler that will be called for each message read
+     * from the file when it is opened (e.g., to restore application
+     * state from the log)
+     * @param replayThreads the number of threads to use for the initial replay
+     */
+    public FileMessageLog(File f, MessageHandler h, int replayThreads) throws IOException {
+        this(f, h, 0L, replayThreads);
+    }
+    
+    /**
+     * Creates a new FileMessageLog whose first transaction will be assigned
+     * the specified sequence number unless the log already has an index that
+     * says otherwise.
+     */
+    FileMessageLog(File f, MessageHandler h, long firstSeq, int replayThreads) throws IOException {
+        this(f, h, firstSeq, replayThreads, false, false);
+    }
+    
+    private FileMessageLog(File f, MessageHandler h, long firstSeq, int replayThreads, boolean readOnly, boolean lenient) throws IOException {
         _f = f;
-        _raf = new RandomAccessFile(f, "rw");
+        _readOnly = readOnly;
+        _lenient = lenient;
+        _raf = new RandomAccessFile(f, readOnly ? "r" : "rw");
+        _channel = _raf.getChannel();
+        if (readOnly) {
+            _flock = null;
+        } else {
+            try {
+                _flock = _channel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                _raf.close();
+                throw new IOException("OverlappingFileLockException on " + f.getAbsolutePath());
+            }
+            if (_flock == null) {
+                _raf.close();
+                throw new IOException("Unable to obtain lock on " + f.getAbsolutePath());
+            }
+        }
         try {
-            _flock = _raf.getChannel().tryLock();
-        } catch (OverlappingFileLockException e) {
-            throw new IOException("OverlappingFileLockException on " + f.getAbsolutePath());
+            _index = new SequenceIndex(getIndexFile(f), firstSeq, readOnly);
+        } catch (IOException e) {
+            _raf.close();
+            throw e;
         }
-        if (_flock == null) throw new IOException("Unable to obtain lock on " + f.getAbsolutePath())     ;
 
         // need to replay even if h is null so that file pointer is at correct
-        // position for next write.
-        replay(h);        
+        // position for next write, but without a handler everything up to
+        // the last clean shutdown can be skipped.  If the log can't be read,
+        // the file is released so that it can be repaired or reopened.
+        try {
+            scan(h, replayThreads, h == null);
+        } catch (IOException | RuntimeException | Error e) {
+            _index.close();
+            _raf.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Opens an existing log for reading only, without locking it, so that it
+     * can be read while another process (or another FileMessageLog) is
+     * writing it.  Neither the log nor its index file are modified.  The log
+     * is replayed up to the last complete transaction with a valid CRC; a
+     * transaction that fails its CRC check is treated as one that is still
+     * being written, and ends the replay without error.
+     * 
+     * Writing to, truncating or syncing a read-only log fails with an
+     * IOException.  Calling replay() again reads any transactions written
+     * since it was opened, and a LogTailer obtained from tail() or
+     * tailFrom() follows them as they are written, checking the file for
+     * new data every READ_ONLY_POLL_NANOS while it waits.  A read-only log
+     * cannot follow its writer across a truncation; tailers fail once one is
+     * detected, and the log must be reopened.
+     * 
+     * @param f the file containing the log
+     * @param h a MessageHandler that will be called for each message read
+     * from the file when it is opened (may be null)
+     * @return a read-only FileMessageLog
+     * @throws IOException if the log does not exist or cannot be read
+     */
+    public static FileMessageLog openReadOnly(File f, MessageHandler h) throws IOException {
+        return new FileMessageLog(f, h, 0L, 1, true, true);
+    }
+    
+    /**
+     * Opens a log that is no longer written (e.g. a sealed segment of a
+     * SegmentedMessageLog) for reading only.  Unlike openReadOnly(), a
+     * transaction with a bad CRC is reported as corruption, since it can't be
+     * one that is still being written.
+     */
+    static FileMessageLog openSealed(File f, MessageHandler h, long firstSeq) throws IOException {
+        return new FileMessageLog(f, h, firstSeq, 1, true, false);
+    }
+    
+    /**
+     * Returns the sidecar file used to store the sequence index of the log
+     * stored in the specified file.
+     * 
+     * @param f the file used for message storage
+     * @return the file used to store the log's sequence index
+     */
+    public static File getIndexFile(File f) {
+        return new File(f.getPath() + ".index");
     }
     
     /**
@@ -71,6 +273,68 @@ public class FileMessageLog implements MessageLog {
         return _f;
     }
     
+    /**
+     * Returns the offset just past the last transaction in the log, i.e. the
+     * length of the valid data in the underlying file.
+     * 
+     * @return the offset just past the last transaction in the log
+     */
+    public long getPosition() {
+        return _writePosition;
+    }
+    
+    /**
+     * Returns the sequence number that will be assigned to the next
+     * transaction written to the log.
+     * 
+     * @return the sequence number of the next transaction
+     */
+    public long getNextSequence() {
+        return _nextSeq;
+    }
+    
+    /**
+     * Returns the sequence number of the first transaction in the log.  This
+     * is zero unless the log has been truncated.
+     * 
+     * @return the sequence number of the first transaction in the log
+     */
+    public long getFirstSequence() {
+        synchronized(_lock) {
+            return _index.getBaseSequence();
+        }
+    }
+    
+    /**
+     * Returns the version of the on-disk format used by this log: 1 for logs
+     * created by earlier versions of this library, otherwise 2.
+     * 
+     * @return the format version of the underlying file
+     */
+    public int getFormatVersion() {
+        synchronized(_lock) {
+            return _format;
+        }
+    }
+    
+    /**
+     * Returns true if this log was opened with openReadOnly()
+     * 
+     * @return true if this log is read-only
+     */
+    public boolean isReadOnly() {
+        return _readOnly;
+    }
+    
+    /**
+     * Returns true if the log contains no transactions.
+     * 
+     * @return true if the log contains no transactions
+     */
+    public boolean isEmpty() {
+        return _writePosition <= _dataStart;
+    }
+    
     /**
      * If set to true, all writes will be forced out to disk before returning from
      * log().  This provides greate robustness in the event of e.g. power failure,
@@ -86,6 +350,113 @@ public class FileMessageLog implements MessageLog {
         return this;
     }
 
+    /**
+     * Sets the codec used to compress transactions written to this log, or
+     * null (the default) to write them uncompressed.  Each transaction of at
+     * least MIN_COMPRESSED_LENGTH bytes is compressed individually (before
+     * the log is locked for writing), and is only stored compressed if that
+     * makes it smaller.  Compressed transactions are decompressed
+     * transparently by replays; the codec is registered with
+     * CompressionCodecs so that this log can be replayed later in the same
+     * JVM, but custom codecs must be registered before a log that uses them
+     * is reopened.
+     * 
+     * Logs in format version 1 (see getFormatVersion()) can't hold compressed
+     * transactions, so this has no effect on them.
+     * 
+     * @param codec the codec to use, e.g. CompressionCodecs.DEFLATE, or null
+     * @return this FileMessageLog
+     */
+    public FileMessageLog setCompression(CompressionCodec codec) {
+        if (codec != null) CompressionCodecs.register(codec);
+        _codec = codec;
+        return this;
+    }
+
+    /**
+     * Sets the size of the chunks in which space is preallocated for this
+     * log, or 0 (the default) to extend the file with each write.  Whenever a
+     * write reaches the end of the space allocated so far, the file is
+     * extended with zeros to the next multiple of chunkSize beyond it, so
+     * that the writes that follow fill space that's already allocated and
+     * syncing them doesn't have to update the file's size or extents.
+     * Extending the file holds up writers while the zeros are written, so
+     * chunks of a few megabytes are a reasonable choice.
+     * 
+     * Preallocated space is recognized as the end of the data when the log
+     * is read, and is removed when the log is closed.  Logs in format
+     * version 1 (see getFormatVersion()) can't be preallocated, so this has
+     * no effect on them.
+     * 
+     * @param chunkSize the preallocation chunk size in bytes, or 0
+     * @return this FileMessageLog
+     */
+    public FileMessageLog setPreallocation(long chunkSize) {
+        if (chunkSize < 0) throw new IllegalArgumentException("chunkSize must not be negative");
+        synchronized(_lock) {
+            _preallocation = chunkSize;
+        }
+        return this;
+    }
+
+    /**
+     * Sets the size of a memory-mapped window through which transactions are
+     * written, or 0 (the default) to write them to the file's channel.  In
+     * mapped mode each transaction is encoded directly into a
+     * MappedByteBuffer covering the end of the file, so writing it costs no
+     * system call; when the window is full, a new one is mapped starting at
+     * the end of the data.  Mapping a window extends the file with zeros to
+     * its end, just as preallocation does (see setPreallocation()).  A
+     * window is only unmapped once it's garbage collected, and a file can't
+     * safely be shortened while part of it may still be mapped, so any
+     * unused space is left in place when the log is closed and removed when
+     * it is next opened.  Transactions larger than the window are written to
+     * the channel as usual.
+     * 
+     * Mapped writes are only guaranteed to be on disk once the windows
+     * holding them have been forced, which sync() (and autoSync) do.  Logs in
+     * format version 1 (see getFormatVersion()) are always written to the
+     * channel, so this has no effect on them.
+     * 
+     * @param windowSize the size of the mapped window in bytes, or 0
+     * @return this FileMessageLog
+     */
+    public FileMessageLog setMemoryMapping(int windowSize) {
+        if (windowSize < 0) throw new IllegalArgumentException("windowSize must not be negative");
+        synchronized(_lock) {
+            _mapWindow = windowSize;
+            retireMap();
+        }
+        return this;
+    }
+
+    /**
+     * Sets the listener that receives measurements of this log's activity,
+     * or null (the default) to take no measurements.  As the log is replayed
+     * when it's opened, before a listener can be set, a new listener is told
+     * about that replay (and any data it discarded) immediately, unless a
+     * previous listener already was.
+     * 
+     * @param listener the listener, e.g. a MessageLogMetrics, or null
+     * @return this FileMessageLog
+     */
+    public FileMessageLog setListener(MessageLogListener listener) {
+        synchronized(_lock) {
+            _listener = listener;
+            if (listener != null && !_scanReported) {
+                reportScan(listener);
+                _scanReported = true;
+            }
+        }
+        return this;
+    }
+    
+    // must be called while holding _lock
+    private void reportScan(MessageLogListener listener) {
+        listener.replayed(_scanTransactions, _scanBytes, _scanNanos);
+        if (_scanDiscarded > 0) listener.discarded(_scanDiscarded);
+    }
+
     /**
      * Replays all messages from this FileMessageLog to the specified MessageHandler
      * 
@@ -95,26 +466,299 @@ public class FileMessageLog implements MessageLog {
      */
     @Override
     public FileMessageLog replay(MessageHandler h) throws IOException {
-        long dataLength = 0;
+        return replay(h, 1);
+    }
+
+    /**
+     * Replays all messages from this FileMessageLog to the specified
+     * MessageHandler, using the specified number of threads to read the log,
+     * verify its CRCs, and decode its messages.  Messages are still passed to
+     * the handler one at a time and in log order, unless the handler is a
+     * PartitionedMessageHandler, in which case messages from different
+     * partitions may be handled concurrently by up to that many threads.
+     * Read-only logs are always replayed by the calling thread alone.
+     * 
+     * @param h the MessageHandler to receive replayed messages
+     * @param threads the number of threads to use; 1 replays on the calling
+     * thread alone
+     * @return this FileMessageLog
+     * @throws IOException 
+     */
+    public FileMessageLog replay(MessageHandler h, int threads) throws IOException {
+        if (threads < 1) throw new IllegalArgumentException("threads must be at least 1");
+        scan(h, threads, false);
+        return this;
+    }
+    
+    /**
+     * Reads the log to find the end of its valid data, passing its messages
+     * to h.  If skipClean is true, the data recorded in the header by the
+     * last clean shutdown is assumed to be valid and not read.
+     */
+    private void scan(MessageHandler h, int threads, boolean skipClean) throws IOException {
+        synchronized(_lock) {
+            failIfClosed();
+            long started = System.nanoTime();
+            // a file without a complete header has no transactions, and any
+            // partial header left by an interrupted first write is discarded
+            int format = LogFormat.read(_channel, _f);
+            long start = LogFormat.dataStart(format);
+            long limit = format == 0 ? 0 : _channel.size();
+            if (format != 0) _format = format;
+            long seq = _index.getBaseSequence();
+            long lastIndexed = 0;
+            int verified = 0; // number of index entries confirmed by this scan
+            long[] clean = skipClean && format == LogFormat.V2 ? LogFormat.readCleanShutdown(_channel) : null;
+            if (clean != null && clean[0] >= start && clean[0] <= limit && clean[1] >= seq) {
+                // index entries before the clean length are trusted too
+                start = clean[0];
+                seq = clean[1];
+                while (verified < _index.size() && _index.offsetAt(verified) < start && _index.sequenceAt(verified) < seq) ++verified;
+                if (verified > 0) lastIndexed = _index.offsetAt(verified - 1);
+            }
+            long firstSeq = seq;
+            TransactionCursor r;
+            if (threads == 1 || _readOnly) {
+                TransactionReader tr = new TransactionReader(_channel, start, limit, _format);
+                // another process may be part way through writing the last transaction
+                tr.setLenient(_lenient);
+                r = tr;
+            } else {
+                r = new ParallelTransactionReader(_channel, start, limit, _format, threads, h);
+            }
+            try {
+                for (long pos = start; r.next(); pos = r.getPosition(), ++seq) {
+                    if (pos - lastIndexed >= INDEX_INTERVAL) {
+                        if (verified < _index.size() && _index.sequenceAt(verified) == seq && _index.offsetAt(verified) == pos) {
+                            ++verified;
+                        } else {
+                            _index.truncate(verified);
+                            _index.append(seq, pos);
+                            ++verified;
+                        }
+                        lastIndexed = pos;
+                    }
+                    if (h != null) r.dispatch(h);
+                }
+            } finally {
+                r.close();
+            }
+            _index.truncate(verified);
+            
+            // if the last transaction write failed, discard what's left of it
+            // so the next write starts at the end of the valid data.
+            long dataLength = r.getPosition();
+            long discarded = 0;
+            if (!_readOnly) {
+                discarded = Math.max(0, _channel.size() - dataLength);
+                if (discarded > 0) {
+                    // mapped windows mustn't be written past the new end of
+                    // the file, nor the file shortened beneath them; if any
+                    // may still be mapped, later writes reuse the space
+                    forceMaps();
+                    _map = null;
+                    if (!_mapped) _channel.truncate(dataLength);
+                }
+                _channel.position(dataLength);
+                _channelBehind = false;
+            }
+            _writePosition = dataLength;
+            _allocated = _mapped ? _channel.size() : dataLength;
+            _dataStart = LogFormat.dataStart(format);
+            if (dataLength == 0) _format = LogFormat.CURRENT;
+            _nextSeq = seq;
+            _lastIndexedPosition = lastIndexed;
+            
+            _scanTransactions = seq - firstSeq;
+            _scanBytes = dataLength - start;
+            _scanNanos = System.nanoTime() - started;
+            _scanDiscarded = discarded;
+            MessageLogListener listener = _listener;
+            _scanReported = listener != null;
+            if (listener != null) reportScan(listener);
+        }
+    }
+
+    /**
+     * Replays all messages from this FileMessageLog, starting with the
+     * transaction at the specified position, to the specified MessageHandler.
+     * The position must be the start of a transaction, such as a value
+     * previously returned by getPosition().
+     * 
+     * @param position the position of the first transaction to replay
+     * @param h the MessageHandler to receive replayed messages
+     * @return this FileMessageLog
+     * @throws IOException 
+     */
+    public FileMessageLog replayFromPosition(long position, MessageHandler h) throws IOException {
+        synchronized(_lock) {
+            failIfClosed();
+            if (position == 0) position = _dataStart;
+            if (position < _dataStart || position > _writePosition) {
+                throw new IOException("Invalid position " + position + " for " + _f.getAbsolutePath());
+            }
+            long started = System.nanoTime();
+            TransactionReader r = new TransactionReader(_channel, position, _writePosition, _format);
+            long count = 0;
+            for (; r.next(); ++count) {
+                if (h != null) r.dispatch(h);
+            }
+            MessageLogListener listener = _listener;
+            if (listener != null) listener.replayed(count, r.getPosition() - position, System.nanoTime() - started);
+        }
+        return this;
+    }
+    
+    /**
+     * Replays all messages from this FileMessageLog, starting with the
+     * transaction with the specified sequence number, to the specified
+     * MessageHandler.  The sparse index is used to begin reading close to
+     * the requested transaction.
+     * 
+     * @param seq the sequence number of the first transaction to replay
+     * @param h the MessageHandler to receive replayed messages
+     * @return this FileMessageLog
+     * @throws IOException if seq is not in the log, or if the log cannot be
+     * read
+     */
+    @Override
+    public FileMessageLog replayFrom(long seq, MessageHandler h) throws IOException {
         synchronized(_lock) {
             failIfClosed();
-            _raf.seek(0);
-            while (dataLength < _raf.length()) {
-                try { 
-                    MessageTransaction mt = new MessageTransaction(_raf);
-                    dataLength = _raf.getFilePointer();
-                    if (h != null) for(byte[] msg : mt.getMessages()) h.handleMessage(msg);
-                } catch (EOFException e) {
-                    // done reading data; looks like the last message write failed.
-                    // move file pointer to beginning of truncated message
-                    _raf.seek(dataLength);
-                    break;
-                }            
+            if (seq < _index.getBaseSequence() || seq > _nextSeq) {
+                throw new IOException("Sequence " + seq + " is not in " + _f.getAbsolutePath());
+            }
+            int i = _index.floor(seq);
+            long s = i < 0 ? _index.getBaseSequence() : _index.sequenceAt(i);
+            long position = i < 0 ? _dataStart : _index.offsetAt(i);
+            long started = System.nanoTime(), first = s;
+            TransactionReader r = new TransactionReader(_channel, position, _writePosition, _format);
+            for (; r.next(); ++s) {
+                if (s >= seq && h != null) r.dispatch(h);
             }
+            MessageLogListener listener = _listener;
+            if (listener != null) listener.replayed(s - first, r.getPosition() - position, System.nanoTime() - started);
         }
         return this;
     }
     
+    /**
+     * Returns a LogTailer that delivers every transaction in this log,
+     * starting with the first, and then follows new transactions as they are
+     * written.
+     * 
+     * @return a new LogTailer
+     * @throws IOException 
+     */
+    public LogTailer tail() throws IOException {
+        synchronized(_lock) {
+            failIfClosed();
+            return new LogTailer(this, _dataStart, _index.getBaseSequence(), 0, _truncations);
+        }
+    }
+    
+    /**
+     * Returns a LogTailer that delivers every transaction in this log,
+     * starting with the one with the specified sequence number, and then
+     * follows new transactions as they are written.  Use
+     * tailFrom(getNextSequence()) to follow only new transactions.
+     * 
+     * @param seq the sequence number of the first transaction to deliver
+     * @return a new LogTailer
+     * @throws IOException if seq is not in the log
+     */
+    public LogTailer tailFrom(long seq) throws IOException {
+        synchronized(_lock) {
+            failIfClosed();
+            if (seq < _index.getBaseSequence() || seq > _nextSeq) {
+                throw new IOException("Sequence " + seq + " is not in " + _f.getAbsolutePath());
+            }
+            int i = _index.floor(seq);
+            long s = i < 0 ? _index.getBaseSequence() : _index.sequenceAt(i);
+            long position = i < 0 ? _dataStart : _index.offsetAt(i);
+            return new LogTailer(this, position, s, seq - s, _truncations);
+        }
+    }
+    
+    // the limit up to which a tailer created at the specified truncation
+    // count, which has read up to the specified position, may read
+    long getTailLimit(int truncations, long position) throws IOException {
+        long limit = _readOnly ? refreshReadOnly(position) : _writePosition;
+        failIfClosed();
+        if (truncations != _truncations) throw new IOException("Log has been truncated: " + _f.getAbsolutePath());
+        return limit;
+    }
+    
+    // a read-only log only learns of another process's writes by looking at
+    // the file.  Returns the length of the data that might be readable.
+    private long refreshReadOnly(long position) throws IOException {
+        synchronized(_lock) {
+            failIfClosed();
+            long size = _channel.size();
+            // the file can also shrink when the writer discards preallocated
+            // space, but never to less than the data that has been read
+            if (size < Math.max(position, _writePosition)) ++_truncations;
+            if (_writePosition == 0) {
+                // nothing had been written when this was opened, so the
+                // format can only be known once the first write lands
+                int format = LogFormat.read(_channel, _f);
+                if (format == 0) return 0;
+                _format = format;
+                _dataStart = LogFormat.dataStart(format);
+            }
+            return size;
+        }
+    }
+    
+    long getDataStart() {
+        return _dataStart;
+    }
+    
+    TransactionReader newTransactionReader(long position, long limit, int bufferSize) {
+        TransactionReader r = new TransactionReader(_channel, position, limit, _format, bufferSize);
+        r.setLenient(_lenient);
+        return r;
+    }
+    
+    /**
+     * Waits until data has been written beyond the specified position, the
+     * log is closed, or the timeout elapses.
+     */
+    void awaitAppend(long position, long timeoutNanos) throws InterruptedException {
+        if (_readOnly) {
+            // another process's writes can't be waited for, only polled
+            synchronized(_appendMonitor) {
+                if (_channel.isOpen()) TimeUnit.NANOSECONDS.timedWait(_appendMonitor, Math.min(timeoutNanos, READ_ONLY_POLL_NANOS));
+            }
+            return;
+        }
+        if (_writePosition > position) return;
+        long deadline = System.nanoTime() + timeoutNanos;
+        synchronized(_appendMonitor) {
+            ++_tailersWaiting;
+            try {
+                // writers update _writePosition before checking
+                // _tailersWaiting, so either this sees their write or they
+                // see this waiting
+                while (_writePosition <= position && _channel.isOpen()) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) return;
+                    TimeUnit.NANOSECONDS.timedWait(_appendMonitor, remaining);
+                }
+            } finally {
+                --_tailersWaiting;
+            }
+        }
+    }
+    
+    private void notifyTailers() {
+        if (_tailersWaiting > 0) {
+            synchronized(_appendMonitor) {
+                _appendMonitor.notifyAll();
+            }
+        }
+    }
+    
     /**
      * Writes messages to the log.  More than one message can be supplied; multiple
      * messages will be written atomically together (if one fails, they all fail,
@@ -122,14 +766,15 @@ public class FileMessageLog implements MessageLog {
      * a set that failed).
      * 
      * @param messages the messages to write
-     * @return this FileMessageLog
+     * @return the sequence number of the transaction, or -1 if no messages
+     * were supplied
      * @throws IOException 
      */
     @Override
-    public FileMessageLog log(byte[]... messages) throws IOException {
-        if (messages == null || messages.length == 0) return this;
-        writeTransaction(new MessageTransaction(messages));
-        return this;
+    public long log(byte[]... messages) throws IOException {
+        if (messages == null || messages.length == 0) return -1;
+        // messages are written before this returns, so there's no need to copy them
+        return writeTransaction(MessageTransaction.wrapArrays(Arrays.asList(messages)));
     }
 
     /**
@@ -139,31 +784,248 @@ public class FileMessageLog implements MessageLog {
      * a set that failed).
      * 
      * @param messages the messages to write
-     * @return this FileMessageLog
+     * @return the sequence number of the transaction, or -1 if no messages
+     * were supplied
      * @throws IOException 
      */
     @Override
-    public FileMessageLog log(List<byte[]> messages) throws IOException {
-        if (messages == null || messages.isEmpty()) return this;
-        writeTransaction(new MessageTransaction(messages));
-        return this;
+    public long log(List<byte[]> messages) throws IOException {
+        if (messages == null || messages.isEmpty()) return -1;
+        return writeTransaction(MessageTransaction.wrapArrays(messages));
+    }
+
+    /**
+     * Writes messages to the log as a single transaction.  Each message is
+     * the content of a buffer between its position and limit.  The buffers
+     * are not copied or modified; large messages, particularly in direct
+     * buffers, are passed straight to the underlying FileChannel.
+     * 
+     * @param messages the messages to write
+     * @return the sequence number of the transaction, or -1 if no messages
+     * were supplied
+     * @throws IOException 
+     */
+    @Override
+    public long logBuffers(ByteBuffer... messages) throws IOException {
+        if (messages == null || messages.length == 0) return -1;
+        return writeTransaction(MessageTransaction.wrapBuffers(messages));
+    }
+
+    /**
+     * Writes messages to the log as a single transaction.  Each message is
+     * the content of a buffer between its position and limit.  The buffers
+     * are not copied or modified; large messages, particularly in direct
+     * buffers, are passed straight to the underlying FileChannel.
+     * 
+     * @param messages the messages to write
+     * @return the sequence number of the transaction, or -1 if no messages
+     * were supplied
+     * @throws IOException 
+     */
+    @Override
+    public long logBuffers(List<ByteBuffer> messages) throws IOException {
+        if (messages == null || messages.isEmpty()) return -1;
+        return writeTransaction(MessageTransaction.wrapBuffers(messages.toArray(new ByteBuffer[messages.size()])));
     }
     
     @Override
     public DataOutputStream getLogOutputStream() {
-        return new MessageDataOutputStream(new ByteArrayOutputStream());
+        return MessageDataOutputStream.get(this);
     }
     
     private void failIfClosed() throws IOException {
-        if (!_flock.isValid()) throw new IOException("File has been closed.");
+        if (!_channel.isOpen()) throw new IOException("File has been closed.");
     }
     
-    private void writeTransaction(MessageTransaction tx) throws IOException {
+    private void failIfReadOnly() throws IOException {
+        if (_readOnly) throw new IOException("Log is read-only: " + _f.getAbsolutePath());
+    }
+    
+    private long writeTransaction(MessageTransaction tx) throws IOException {
+        return writeTransactions(Collections.singletonList(tx));
+    }
+    
+    /**
+     * Writes several transactions with a single write (and, if autoSync is
+     * enabled, a single sync).  Returns the sequence number of the first one.
+     */
+    long writeTransactions(List<MessageTransaction> txs) throws IOException {
+        CompressionCodec codec = _codec;
+        if (codec != null && _format != LogFormat.V1) {
+            for (MessageTransaction tx : txs) tx.compress(codec, MIN_COMPRESSED_LENGTH);
+        }
+        long seq, end, written;
+        boolean autoSync;
+        // nothing is measured (or allocated) unless there's a listener
+        MessageLogListener listener = _listener;
+        long requested = listener == null ? 0 : System.nanoTime();
+        long lockWait;
         synchronized(_lock) {
+            lockWait = listener == null ? 0 : System.nanoTime() - requested;
             failIfClosed();
-            tx.writeTo(_raf);
-            if (_autoSync) sync();
+            failIfReadOnly();
+            int format = _format;
+            // the first write to an empty file includes the file's header
+            int header = _writePosition == 0 ? (int) LogFormat.dataStart(format) : 0;
+            long len = header, copied = header;
+            for (MessageTransaction tx : txs) {
+                len += tx.getLength(format);
+                copied += tx.getCopiedLength(GATHER_THRESHOLD, format);
+            }
+            MappedByteBuffer map = len <= _mapWindow && format != LogFormat.V1 ? getMappedWindow(len) : null;
+            if (map != null) {
+                if (header > 0) LogFormat.writeHeader(map);
+                for (MessageTransaction tx : txs) tx.writeTo(map, format, _crcScratch);
+                end = _writePosition + len;
+                _channelBehind = true;
+            } else {
+                if (_channelBehind) {
+                    _channel.position(_writePosition);
+                    _channelBehind = false;
+                }
+                ByteBuffer buf = getWriteBuffer(copied);
+                if (header > 0) LogFormat.writeHeader(buf);
+                if (copied == len) {
+                    for (MessageTransaction tx : txs) tx.writeTo(buf, format, _crcScratch);
+                    buf.flip();
+                    while (buf.hasRemaining()) _channel.write(buf);
+                } else {
+                    List<ByteBuffer> gather = new ArrayList<>();
+                    int region = 0;
+                    for (MessageTransaction tx : txs) region = tx.writeTo(buf, region, GATHER_THRESHOLD, gather, format, _crcScratch);
+                    buf.limit(buf.position()).position(region);
+                    gather.add(buf);
+                    ByteBuffer[] bufs = gather.toArray(new ByteBuffer[gather.size()]);
+                    for (long remaining = len; remaining > 0; ) remaining -= _channel.write(bufs);
+                }
+                end = _channel.position();
+            }
+            
+            seq = _nextSeq;
+            long start = _writePosition + header;
+            if (header > 0) _dataStart = header;
+            for (MessageTransaction tx : txs) {
+                if (start - _lastIndexedPosition >= INDEX_INTERVAL) {
+                    _index.append(_nextSeq, start);
+                    _lastIndexedPosition = start;
+                }
+                ++_nextSeq;
+                start += tx.getLength(format);
+            }
+            written = end - _writePosition;
+            _writePosition = end;
+            if (end > _allocated) {
+                _allocated = end;
+                // zeros can't be mistaken for v2 transactions, but they can
+                // for v1 transactions
+                if (_preallocation > 0 && format != LogFormat.V1) preallocate(end);
+            }
+            autoSync = _autoSync;
         }
+        notifyTailers();
+        if (listener != null) listener.written(txs.size(), written, lockWait);
+        // syncing happens outside of _lock so other writers can append while
+        // a force() is in progress and then share the next one.
+        if (autoSync) syncTo(end);
+        return seq;
+    }
+    
+    /**
+     * Ensures that all data up to the specified position is on disk.  If
+     * another thread's sync already covered it, returns immediately.
+     */
+    private void syncTo(long position) throws IOException {
+        synchronized(_syncLock) {
+            if (_syncedPosition >= position) return;
+            long target = _writePosition; // everything written so far, possibly including other writers' data
+            // mapped writes reach the disk when their windows are forced; the
+            // channel is still forced for the file's length
+            MessageLogListener listener = _listener;
+            long started = listener == null ? 0 : System.nanoTime();
+            forceMaps();
+            _channel.force(false);
+            if (listener != null) listener.synced(System.nanoTime() - started);
+            _syncedPosition = target;
+        }
+    }
+    
+    // returns the mapped window, positioned at the end of the data, mapping a
+    // new one if the current one doesn't have room for len more bytes.  Must
+    // be called while holding _lock.
+    private MappedByteBuffer getMappedWindow(long len) throws IOException {
+        MappedByteBuffer map = _map;
+        if (map == null || map.remaining() < len || _mapStart + map.position() != _writePosition) {
+            retireMap();
+            map = _channel.map(FileChannel.MapMode.READ_WRITE, _writePosition, _mapWindow);
+            _mapStart = _writePosition;
+            _allocated = Math.max(_allocated, _writePosition + _mapWindow);
+            _map = map;
+            _mapped = true;
+        }
+        return map;
+    }
+    
+    // forces every mapped window that may hold unsynced data
+    private void forceMaps() {
+        MappedByteBuffer map = _map;
+        for (MappedByteBuffer m; (m = _unforced.poll()) != null; ) m.force();
+        if (map != null) map.force();
+    }
+    
+    // stops writing through the current window, leaving it to be forced by
+    // the next sync unless too many are already waiting.  Must be called
+    // while holding _lock.
+    private void retireMap() {
+        if (_map != null) _unforced.add(_map);
+        _map = null;
+        if (_unforced.size() > MAX_UNFORCED_WINDOWS) {
+            // under _syncLock so that a concurrent sync can't finish while a
+            // window it didn't see is still being forced
+            synchronized(_syncLock) {
+                while (_unforced.size() > MAX_UNFORCED_WINDOWS) {
+                    MappedByteBuffer m = _unforced.poll();
+                    if (m != null) m.force();
+                }
+            }
+        }
+    }
+    
+    // the number of replaced windows waiting to be forced
+    int getUnforcedWindowCount() {
+        return _unforced.size();
+    }
+    
+    // extends the file with zeros to the next multiple of the preallocation
+    // chunk size after position.  Must be called while holding _lock.
+    private void preallocate(long position) throws IOException {
+        long target = (position / _preallocation + 1) * _preallocation;
+        writeZeros(_allocated, target);
+        _allocated = target;
+    }
+    
+    // writes zeros to the file from offset from up to offset to.  Must be
+    // called while holding _lock.
+    private void writeZeros(long from, long to) throws IOException {
+        if (from >= to) return;
+        ByteBuffer zeros = ByteBuffer.allocateDirect((int) Math.min(to - from, 64 * 1024));
+        while (from < to) {
+            zeros.clear();
+            if (to - from < zeros.capacity()) zeros.limit((int) (to - from));
+            from += _channel.write(zeros, from);
+        }
+    }
+    
+    // must be called while holding _lock
+    private ByteBuffer getWriteBuffer(long len) throws IOException {
+        if (len > Integer.MAX_VALUE) throw new IOException("Transaction too large (" + len + " bytes)");
+        if (len > MAX_RETAINED_WRITE_BUFFER_SIZE) return ByteBuffer.allocate((int) len);
+        if (len > _writeBuffer.capacity()) {
+            int cap = _writeBuffer.capacity();
+            while (cap < len) cap *= 2;
+            _writeBuffer = ByteBuffer.allocateDirect(cap);
+        }
+        _writeBuffer.clear();
+        return _writeBuffer;
     }
     
     /**
@@ -176,40 +1038,89 @@ public class FileMessageLog implements MessageLog {
      * @throws IOException 
      */
     public FileMessageLog sync() throws IOException {
+        failIfReadOnly();
+        syncTo(_writePosition);
+        return this;
+    }
+    
+    /**
+     * Discards all messages in this FileMessageLog, leaving it empty.  The
+     * truncation is forced out to disk before this method returns.  Sequence
+     * numbers are not reused; the next transaction written will have the
+     * same sequence number it would have had without the truncation.
+     * 
+     * Once memory mapping has been used (see setMemoryMapping()), the file
+     * can't safely be shortened, so it is overwritten with zeros instead,
+     * which costs a write of its full length.  Read-only logs in other
+     * processes can't detect such a truncation, and must be reopened.
+     * 
+     * @return this FileMessageLog
+     * @throws IOException 
+     */
+    public FileMessageLog truncate() throws IOException {
         synchronized(_lock) {
-            _raf.getChannel().force(false);
+            failIfClosed();
+            failIfReadOnly();
+            synchronized(_syncLock) {
+                _map = null;
+                _unforced.clear();
+                if (_mapped) {
+                    // windows may still be mapped, so the file is kept at its
+                    // length; a file of zeros is an empty log
+                    _allocated = _channel.size();
+                    writeZeros(0, _allocated);
+                } else {
+                    _channel.truncate(0);
+                    _allocated = 0;
+                }
+                _channel.position(0);
+                _channel.force(true);
+                _index.reset(_nextSeq);
+                _format = LogFormat.CURRENT; // an empty log can be rewritten in the current format
+                _writePosition = 0;
+                _channelBehind = false;
+                _dataStart = 0;
+                ++_truncations;
+                _syncedPosition = 0;
+                _lastIndexedPosition = 0;
+            }
         }
         return this;
     }
     
     /**
      * Closes this FileMessageLog and releases any locks/resources.  Once
-     * closed, no more logging or replays are permitted.
+     * closed, no more logging or replays are permitted.  Logs in format
+     * version 2 record the length of their data in the file's header, so
+     * that they can be reopened without being scanned.
      * 
      * @return this FileMessageLog
      * @throws IOException 
      */
     public FileMessageLog close() throws IOException {
         synchronized(_lock) {
-            sync();
-            _flock.release();
+            if (!_readOnly) {
+                sync();
+                _map = null;
+                _unforced.clear();
+                // unused mapped space is removed by the next scan instead
+                if (_allocated > _writePosition && !_mapped) {
+                    _channel.truncate(_writePosition);
+                    _allocated = _writePosition;
+                }
+                if (_format == LogFormat.V2 && _writePosition > _dataStart && _dataStart > 0) {
+                    // the data is on disk before the header says so
+                    ByteBuffer clean = LogFormat.cleanShutdown(_writePosition, _nextSeq);
+                    long pos = LogFormat.CLEAN_OFFSET;
+                    while (clean.hasRemaining()) pos += _channel.write(clean, pos);
+                    _channel.force(false);
+                }
+                _flock.release();
+            }
             _raf.close();
+            _index.close();
         }
+        notifyTailers();
         return this;
     }
-    
-    private class MessageDataOutputStream extends DataOutputStream {
-        private final ByteArrayOutputStream _bout;
-        
-        private MessageDataOutputStream(ByteArrayOutputStream bout){ 
-            super(bout);
-            _bout = bout;
-        }
-        
-        @Override
-        public void close() throws IOException {
-            super.close();
-            log(_bout.toByteArray());
-        }
-    }
 }
@@ -0,0 +1,170 @@
+package com.martiansoftware.messagelog;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * Constants and helpers describing the on-disk formats of a FileMessageLog.
+ *
+ * Version 1 files have no header; they are simply a sequence of transactions
+ * as written by MessageTransaction.writeTo(DataOutput), each protected by a
+ * CRC-32 of its messages (but not of its count or length fields).  Because
+ * that CRC is stored as a long, a v1 file always begins with four zero bytes;
+ * because a transaction always holds at least one message, its count is not
+ * zero.  A file containing only zeros holds no transactions.
+ *
+ * Version 2 files begin with a fixed-size header:
+ *
+ * magic (int) (4 bytes) - "MLOG"
+ * version (int) (4 bytes) - 2
+ * flags (int) (4 bytes) - currently 0
+ * clean length (long) (8 bytes) - see below
+ * clean next sequence (long) (8 bytes)
+ * clean crc (int) (4 bytes) - CRC-32C of the clean length and next sequence
+ *
+ * followed by a sequence of transactions:
+ *
+ * crc (int) (4 bytes) - CRC-32C of everything after this field
+ * length (int) (4 bytes) - the number of bytes after this field
+ * flags (int) (4 bytes) - the id of the CompressionCodec used, or 0
+ * count (int) (4 bytes)
+ *     length (int) (4 bytes)
+ *     data (byte[]) (n bytes)
+ *     ...
+ *
+ * In a compressed transaction, everything from count onwards is compressed,
+ * and is preceded by its uncompressed length (int).
+ *
+ * The header is written along with the first transaction, so a log that has
+ * never been written to is an empty file.  The "clean" fields are zero until
+ * the log is first closed; then they record the length of the data at the
+ * time and the sequence number of the next transaction.  Because data is
+ * only ever appended (or the whole file discarded), that prefix of the file
+ * remains valid whatever happens afterwards, so a log can be reopened by
+ * checking only the transactions that follow it.  New (or empty) logs are always
+ * written in the current version; existing logs keep the version they were
+ * created with.
+ */
+final class LogFormat {
+
+    static final int V1 = 1;
+    static final int V2 = 2;
+    static final int CURRENT = V2;
+
+    static final int MAGIC = 0x4d4c4f47; // "MLOG"
+    static final int HEADER_LENGTH = 32;
+
+    // crc (4) + length (4) + flags (4) + count (4)
+    static final int V2_FRAME_HEADER_LENGTH = 16;
+
+    // offset and length of the clean shutdown fields in the v2 header
+    static final int CLEAN_OFFSET = 12;
+    static final int CLEAN_LENGTH = 20;
+
+    private LogFormat() {
+    }
+
+    /**
+     * Returns the format version of the log in the specified channel, or 0
+     * if the log contains no transactions and is not yet (completely)
+     * initialized, e.g. an empty file or one whose first write was
+     * interrupted part way through the header.
+     *
+     * @throws IOException if the file is not a recognized log
+     */
+    static int read(FileChannel channel, File f) throws IOException {
+        long size = channel.size();
+        if (size == 0) return 0;
+        ByteBuffer b = ByteBuffer.allocate((int) Math.min(size, HEADER_LENGTH));
+        while (b.hasRemaining()) {
+            if (channel.read(b, b.position()) < 0) break;
+        }
+        b.flip();
+
+        ByteBuffer expected = ByteBuffer.allocate(HEADER_LENGTH);
+        writeHeader(expected);
+        expected.flip().limit(b.limit());
+        if (b.remaining() < HEADER_LENGTH) {
+            // too short to hold a complete header; an interrupted first write
+            // in either format, or v1 data shorter than a transaction
+            if (b.equals(expected) || isZeros(channel, size)) return 0;
+            return V1;
+        }
+        if (b.getInt(0) == 0) {
+            // every v1 transaction holds at least one message, so a zero
+            // count means zeros that were preallocated or mapped but never
+            // written, e.g. after a crash before the first write reached the
+            // disk.  Such a file holds no transactions.
+            if (b.getInt(8) != 0) return V1;
+            if (isZeros(channel, size)) return 0;
+            throw new IOException("Unrecognized log format in " + f.getAbsolutePath());
+        }
+        if (b.getInt(0) != MAGIC) throw new IOException("Unrecognized log format in " + f.getAbsolutePath());
+        int version = b.getInt(4);
+        if (version != V2) throw new IOException("Unsupported log format version " + version + " in " + f.getAbsolutePath());
+        return V2;
+    }
+
+    private static boolean isZeros(FileChannel channel, long size) throws IOException {
+        return TransactionReader.isPreallocatedTail(channel, 0, size);
+    }
+
+    /**
+     * Writes the current version's header into the specified buffer
+     */
+    static void writeHeader(ByteBuffer buf) {
+        buf.putInt(MAGIC).putInt(CURRENT).putInt(0);
+        for (int i = 12; i < HEADER_LENGTH; i += 4) buf.putInt(0);
+    }
+
+    /**
+     * Returns the clean shutdown fields recording the specified data length
+     * and next sequence number, ready to be written at CLEAN_OFFSET
+     */
+    static ByteBuffer cleanShutdown(long length, long nextSeq) {
+        ByteBuffer b = ByteBuffer.allocate(CLEAN_LENGTH);
+        b.putLong(length).putLong(nextSeq);
+        Checksum c = Crc32c.newChecksum();
+        c.update(b.array(), 0, 16);
+        b.putInt((int) c.getValue());
+        b.flip();
+        return b;
+    }
+
+    /**
+     * Reads the clean shutdown fields from the header of a v2 log.
+     *
+     * @return the recorded data length and next sequence number, or null if
+     * the log has never been closed or the fields are invalid
+     */
+    static long[] readCleanShutdown(FileChannel channel) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(CLEAN_LENGTH);
+        while (b.hasRemaining()) {
+            if (channel.read(b, CLEAN_OFFSET + b.position()) < 0) return null;
+        }
+        long length = b.getLong(0), nextSeq = b.getLong(8);
+        if (length == 0) return null;
+        b.flip();
+        if (!cleanShutdown(length, nextSeq).equals(b)) return null;
+        return new long[] {length, nextSeq};
+    }
+
+    /**
+     * Returns the offset of the first transaction in a log of the specified
+     * version
+     */
+    static long dataStart(int version) {
+        return version == V2 ? HEADER_LENGTH : 0;
+    }
+
+    /**
+     * Returns a new Checksum of the type used by the specified version
+     */
+    static Checksum newChecksum(int version) {
+        return version == V1 ? new CRC32() : Crc32c.newChecksum();
+    }
+}
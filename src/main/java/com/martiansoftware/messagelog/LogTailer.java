@@ -0,0 +1,131 @@
+package com.martiansoftware.messagelog;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Follows a FileMessageLog as it is written, delivering each transaction's
+ * messages to a MessageHandler once, in log order.  Obtained from
+ * FileMessageLog.tail() or tailFrom().
+ *
+ * A tailer only reads transactions that have been completely written, so it
+ * never sees a partial transaction.  poll() delivers everything that is
+ * available without waiting; poll(MessageHandler, long, TimeUnit) waits for
+ * new transactions if there are none, and is woken as soon as one is
+ * written (or, for a read-only log written by another process, within
+ * FileMessageLog.READ_ONLY_POLL_NANOS).  Tailing does not block writers.
+ *
+ * A tailer cannot follow a log across a call to truncate(); polling it
+ * afterwards results in an IOException.  A LogTailer is not thread-safe and
+ * should be used by one thread at a time.
+ *
+ * @author mlamb
+ */
+public class LogTailer implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileMessageLog _log;
+    private final int _generation; // the log's truncation count when this was created
+    private TransactionReader _reader = null; // created once there's data to read
+    private long _position; // where _reader will start
+    private long _seq; // sequence number of the next transaction read
+    private long _skip; // transactions to read but not deliver
+    private boolean _closed = false;
+
+    LogTailer(FileMessageLog log, long position, long seq, long skip, int generation) {
+        _log = log;
+        _position = position;
+        _seq = seq;
+        _skip = skip;
+        _generation = generation;
+    }
+
+    /**
+     * Returns the file offset just past the last transaction read
+     *
+     * @return the file offset just past the last transaction read
+     */
+    public long getPosition() {
+        return _reader == null ? _position : _reader.getPosition();
+    }
+
+    /**
+     * Returns the sequence number of the next transaction that will be
+     * delivered
+     *
+     * @return the sequence number of the next transaction that will be
+     * delivered
+     */
+    public long getNextSequence() {
+        return _seq + _skip;
+    }
+
+    /**
+     * Delivers every complete transaction written since the last poll
+     * without waiting for more.
+     *
+     * @param h the MessageHandler to receive the messages
+     * @return the number of transactions delivered
+     * @throws IOException if the log has been truncated or closed, or if it
+     * cannot be read
+     */
+    public int poll(MessageHandler h) throws IOException {
+        if (_closed) throw new IOException("Tailer has been closed.");
+        long limit = _log.getTailLimit(_generation, getPosition());
+        if (_reader == null) {
+            // the header of a new log is only written with its first transaction
+            long start = Math.max(_position, _log.getDataStart());
+            if (limit <= start) return 0;
+            _reader = _log.newTransactionReader(start, limit, BUFFER_SIZE);
+        } else {
+            _reader.setLimit(limit);
+        }
+        int result = 0;
+        while (_reader.next()) {
+            if (_skip > 0) {
+                --_skip;
+            } else {
+                if (h != null) _reader.dispatch(h);
+                ++result;
+            }
+            ++_seq;
+        }
+        return result;
+    }
+
+    /**
+     * Delivers every complete transaction written since the last poll,
+     * waiting up to the specified time for one to be written if there are
+     * none.
+     *
+     * @param h the MessageHandler to receive the messages
+     * @param timeout the maximum time to wait
+     * @param unit the unit of timeout
+     * @return the number of transactions delivered, which is zero only if
+     * the timeout elapsed
+     * @throws IOException if the log has been truncated or closed, or if it
+     * cannot be read
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public int poll(MessageHandler h, long timeout, TimeUnit unit) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (;;) {
+            int result = poll(h);
+            long remaining = deadline - System.nanoTime();
+            if (result > 0 || remaining <= 0) return result;
+            _log.awaitAppend(getPosition(), remaining);
+        }
+    }
+
+    /**
+     * Stops tailing and releases this tailer's buffer.  The log itself is not
+     * affected.
+     */
+    @Override
+    public void close() {
+        _closed = true;
+        _reader = null;
+    }
+}
@@ -0,0 +1,122 @@
+package com.martiansoftware.messagelog;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A DataOutputStream that buffers everything written to it and logs it as a
+ * single message to a MessageLog when closed.
+ *
+ * Streams are pooled per thread: get() returns the calling thread's cached
+ * stream unless that stream is already in use (in which case a new one is
+ * created and cached in its place, so that a stream that is never closed
+ * doesn't stop the thread's later streams being reused), and close() logs
+ * the buffered bytes directly from the stream's buffer and then makes the
+ * stream available for reuse.  A stream must not
+ * be used after it is closed; attempts to write to it fail.
+ */
+class MessageDataOutputStream extends DataOutputStream {
+
+    private static final ThreadLocal<MessageDataOutputStream> _pool = new ThreadLocal<>();
+
+    private final Buffer _buffer;
+    private final ByteBuffer[] _message = new ByteBuffer[1];
+    private MessageLog _log; // non-null while in use
+
+    /**
+     * Returns an open stream that will log its contents to the specified log
+     * when closed.
+     */
+    static MessageDataOutputStream get(MessageLog log) {
+        MessageDataOutputStream result = _pool.get();
+        if (result == null || result._log != null) {
+            result = new MessageDataOutputStream(new Buffer());
+            _pool.set(result);
+        }
+        result.open(log);
+        return result;
+    }
+
+    private MessageDataOutputStream(Buffer buffer) {
+        super(buffer);
+        _buffer = buffer;
+    }
+
+    private void open(MessageLog log) {
+        _log = log;
+        written = 0;
+        _buffer.open();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (_log == null) return; // already closed
+        try {
+            _message[0] = _buffer.contents();
+            _log.logBuffers(_message);
+        } finally {
+            _message[0] = null;
+            _buffer.release();
+            _log = null;
+        }
+    }
+
+    /**
+     * A growable byte array that can be reused and that exposes its contents
+     * as a ByteBuffer without copying them.
+     */
+    private static class Buffer extends OutputStream {
+        private static final int INITIAL_SIZE = 256;
+        private static final int MAX_RETAINED_SIZE = 64 * 1024;
+
+        private byte[] _buf = new byte[INITIAL_SIZE];
+        private ByteBuffer _view = ByteBuffer.wrap(_buf);
+        private int _count = 0;
+        private boolean _open = false;
+
+        void open() {
+            _open = true;
+        }
+
+        ByteBuffer contents() {
+            _view.clear();
+            _view.limit(_count);
+            return _view;
+        }
+
+        void release() {
+            _open = false;
+            _count = 0;
+            if (_buf.length > MAX_RETAINED_SIZE) {
+                _buf = new byte[INITIAL_SIZE];
+                _view = ByteBuffer.wrap(_buf);
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            ensure(1);
+            _buf[_count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || off + len > b.length) throw new IndexOutOfBoundsException();
+            ensure(len);
+            System.arraycopy(b, off, _buf, _count, len);
+            _count += len;
+        }
+
+        private void ensure(int n) throws IOException {
+            if (!_open) throw new IOException("Stream has been closed.");
+            if (_count + n <= _buf.length) return;
+            long cap = _buf.length;
+            while (cap < _count + n) cap *= 2;
+            _buf = Arrays.copyOf(_buf, (int) Math.min(cap, Integer.MAX_VALUE));
+            _view = ByteBuffer.wrap(_buf);
+        }
+    }
+}
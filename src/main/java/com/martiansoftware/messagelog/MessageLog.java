@@ -2,6 +2,7 @@ package com.martiansoftware.messagelog;
 
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 /**
@@ -10,6 +11,10 @@ import java.util.List;
  * the entire set of messages is written as a single transaction; any failures
  * to log a single message will result in no messages from that call being logged.
  * 
+ * Each transaction is assigned a sequence number, one greater than that of
+ * the transaction logged before it, which can later be used to resume a
+ * replay from that point.
+ * 
  * @author mlamb
  */
 public interface MessageLog {    
@@ -17,24 +22,53 @@ public interface MessageLog {
      * Logs one or more messages as a single transaction
      * 
      * @param messages the message(s) to log
-     * @return this MessageLog
+     * @return the sequence number of the transaction, or -1 if no messages
+     * were supplied
      * @throws IOException 
      */
-    public MessageLog log(byte[]... messages) throws IOException;
+    public long log(byte[]... messages) throws IOException;
     
     /**
      * Logs one or more messages as a single transaction
      * 
      * @param messages the message(s) to log
-     * @return this MessageLog
+     * @return the sequence number of the transaction, or -1 if no messages
+     * were supplied
+     * @throws IOException 
+     */
+    public long log(List<byte[]> messages) throws IOException;
+    
+    /**
+     * Logs one or more messages as a single transaction.  Each message is the
+     * content of a buffer between its position and limit.  Implementations
+     * do not modify the buffers, and avoid copying them where possible; the
+     * buffers must not be changed until this method returns.
+     * 
+     * @param messages the message(s) to log
+     * @return the sequence number of the transaction, or -1 if no messages
+     * were supplied
      * @throws IOException 
      */
-    public MessageLog log(List<byte[]> messages) throws IOException;
+    public long logBuffers(ByteBuffer... messages) throws IOException;
+    
+    /**
+     * Logs one or more messages as a single transaction.  Each message is the
+     * content of a buffer between its position and limit.  Implementations
+     * do not modify the buffers, and avoid copying them where possible; the
+     * buffers must not be changed until this method returns.
+     * 
+     * @param messages the message(s) to log
+     * @return the sequence number of the transaction, or -1 if no messages
+     * were supplied
+     * @throws IOException 
+     */
+    public long logBuffers(List<ByteBuffer> messages) throws IOException;
     
     /**
      * Returns a DataOutputStream that can be written to directly.  When the
      * DataOutputStream is closed, its contents are written as a single message
-     * to the log.
+     * to the log.  Implementations may reuse streams once they are closed, so
+     * a stream must not be used after it is closed.
      * 
      * @return a DataOutputStream that can be written to directly as a log message.
      */
@@ -50,4 +84,17 @@ public interface MessageLog {
      * @throws IOException
      */
     public MessageLog replay(MessageHandler handler) throws IOException;
+    
+    /**
+     * Plays back all messages in transactions with sequence numbers greater
+     * than or equal to seq, supplying them one-by-one in order to the
+     * supplied MessageHandler
+     * 
+     * @param seq the sequence number of the first transaction to play back
+     * @param handler a MessageHandler that will receive a callback for each
+     * message played back
+     * @return this MessageLog
+     * @throws IOException
+     */
+    public MessageLog replayFrom(long seq, MessageHandler handler) throws IOException;
 }
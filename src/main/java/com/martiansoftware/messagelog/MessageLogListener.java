@@ -0,0 +1,48 @@
+package com.martiansoftware.messagelog;
+
+/**
+ * Receives measurements of a FileMessageLog's activity, e.g. to feed a
+ * metrics system (see FileMessageLog.setListener()).  MessageLogMetrics is
+ * an implementation that accumulates them and exposes them over JMX.
+ *
+ * Methods are called synchronously by the threads doing the work, so they
+ * should be cheap and thread-safe, and should not call back into the log.
+ * No measurements are taken when a log has no listener.
+ */
+public interface MessageLogListener {
+
+    /**
+     * Called after a write of one or more transactions
+     *
+     * @param transactions the number of transactions written together
+     * @param bytes the number of bytes written
+     * @param lockWaitNanos the time spent waiting for other writers before
+     * writing
+     */
+    public void written(int transactions, long bytes, long lockWaitNanos);
+
+    /**
+     * Called after the log has been forced to disk
+     *
+     * @param nanos the time taken by the force
+     */
+    public void synced(long nanos);
+
+    /**
+     * Called after a replay, including the one made when the log is opened
+     *
+     * @param transactions the number of transactions read
+     * @param bytes the number of bytes read
+     * @param nanos the time taken by the replay
+     */
+    public void replayed(long transactions, long bytes, long nanos);
+
+    /**
+     * Called when an incomplete transaction (e.g., from a write interrupted
+     * by a crash) or unused preallocated space is discarded from the end of
+     * the log while it is being opened or replayed
+     *
+     * @param bytes the number of bytes discarded
+     */
+    public void discarded(long bytes);
+}
@@ -0,0 +1,195 @@
+package com.martiansoftware.messagelog;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * A MessageLogListener that accumulates a log's measurements and exposes
+ * them as an MXBean.  For example:
+ *
+ * MessageLogMetrics metrics = new MessageLogMetrics();
+ * fml.setListener(metrics);
+ * metrics.register(fml.getFile().getName());
+ *
+ * One instance can be shared by several logs (e.g. the segments of a
+ * SegmentedMessageLog) to report their combined activity.
+ *
+ * @author mlamb
+ */
+public class MessageLogMetrics implements MessageLogListener, MessageLogMetricsMXBean {
+
+    /** the JMX domain under which metrics are registered */
+    public static final String JMX_DOMAIN = "com.martiansoftware.messagelog";
+
+    private static final int HISTOGRAM_BUCKETS = 32;
+
+    private final AtomicLong _transactions = new AtomicLong();
+    private final AtomicLong _bytes = new AtomicLong();
+    private final AtomicLong _writes = new AtomicLong();
+    private final AtomicLong _maxBatch = new AtomicLong();
+    private final AtomicLong _lockWaitNanos = new AtomicLong();
+    private final AtomicLong _syncs = new AtomicLong();
+    private final AtomicLong _syncNanos = new AtomicLong();
+    private final AtomicLong _maxSyncNanos = new AtomicLong();
+    private final AtomicLongArray _syncHistogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+    private final AtomicLong _replays = new AtomicLong();
+    private final AtomicLong _replayedTransactions = new AtomicLong();
+    private final AtomicLong _replayedBytes = new AtomicLong();
+    private final AtomicLong _discarded = new AtomicLong();
+    private volatile long _lastReplayNanos = 0;
+    private volatile long _lastReplayBytes = 0;
+    private final Rate _transactionRate = new Rate();
+    private final Rate _byteRate = new Rate();
+    private ObjectName _name = null;
+
+    @Override
+    public void written(int transactions, long bytes, long lockWaitNanos) {
+        _transactions.addAndGet(transactions);
+        _bytes.addAndGet(bytes);
+        _writes.incrementAndGet();
+        _lockWaitNanos.addAndGet(lockWaitNanos);
+        max(_maxBatch, transactions);
+    }
+
+    @Override
+    public void synced(long nanos) {
+        _syncs.incrementAndGet();
+        _syncNanos.addAndGet(nanos);
+        max(_maxSyncNanos, nanos);
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        int bucket = micros < 2 ? 0 : 63 - Long.numberOfLeadingZeros(micros);
+        _syncHistogram.incrementAndGet(Math.min(bucket, HISTOGRAM_BUCKETS - 1));
+    }
+
+    @Override
+    public void replayed(long transactions, long bytes, long nanos) {
+        _replays.incrementAndGet();
+        _replayedTransactions.addAndGet(transactions);
+        _replayedBytes.addAndGet(bytes);
+        _lastReplayNanos = nanos;
+        _lastReplayBytes = bytes;
+    }
+
+    @Override
+    public void discarded(long bytes) {
+        _discarded.addAndGet(bytes);
+    }
+
+    private static void max(AtomicLong max, long value) {
+        for (long m = max.get(); value > m && !max.compareAndSet(m, value); m = max.get());
+    }
+
+    /**
+     * Registers this with the platform MBeanServer under the name
+     * JMX_DOMAIN:type=MessageLogMetrics,name=(the specified name)
+     *
+     * @param name identifies the log being measured, e.g. its file name
+     * @return the ObjectName this was registered under
+     * @throws JMException if this could not be registered
+     */
+    public synchronized ObjectName register(String name) throws JMException {
+        ObjectName on = new ObjectName(JMX_DOMAIN + ":type=MessageLogMetrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+        _name = on;
+        return on;
+    }
+
+    /**
+     * Unregisters this from the platform MBeanServer if it was registered
+     * with register()
+     *
+     * @throws JMException if this could not be unregistered
+     */
+    public synchronized void unregister() throws JMException {
+        if (_name == null) return;
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(_name);
+        _name = null;
+    }
+
+    @Override public long getTransactionsWritten() { return _transactions.get(); }
+    @Override public long getBytesWritten() { return _bytes.get(); }
+    @Override public long getWrites() { return _writes.get(); }
+    @Override public double getTransactionsPerSecond() { return _transactionRate.get(_transactions.get()); }
+    @Override public double getBytesPerSecond() { return _byteRate.get(_bytes.get()); }
+    @Override public double getMeanBatchSize() { return mean(_transactions.get(), _writes.get()); }
+    @Override public long getMaxBatchSize() { return _maxBatch.get(); }
+    @Override public long getLockWaitMicros() { return TimeUnit.NANOSECONDS.toMicros(_lockWaitNanos.get()); }
+    @Override public double getMeanLockWaitMicros() { return mean(_lockWaitNanos.get(), _writes.get()) / 1000; }
+    @Override public long getSyncs() { return _syncs.get(); }
+    @Override public double getMeanSyncMicros() { return mean(_syncNanos.get(), _syncs.get()) / 1000; }
+    @Override public long getMaxSyncMicros() { return TimeUnit.NANOSECONDS.toMicros(_maxSyncNanos.get()); }
+    @Override public long getReplays() { return _replays.get(); }
+    @Override public long getTransactionsReplayed() { return _replayedTransactions.get(); }
+    @Override public long getBytesReplayed() { return _replayedBytes.get(); }
+    @Override public long getLastReplayMillis() { return TimeUnit.NANOSECONDS.toMillis(_lastReplayNanos); }
+    @Override public double getLastReplayBytesPerSecond() { return mean(_lastReplayBytes * 1e9, _lastReplayNanos); }
+    @Override public long getBytesDiscarded() { return _discarded.get(); }
+
+    @Override
+    public long[] getSyncMicrosHistogram() {
+        long[] result = new long[HISTOGRAM_BUCKETS];
+        for (int i = 0; i < result.length; ++i) result[i] = _syncHistogram.get(i);
+        return result;
+    }
+
+    @Override
+    public long getSyncMicrosPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) throw new IllegalArgumentException("percentile must be between 0 and 100");
+        long[] histogram = getSyncMicrosHistogram();
+        long total = 0;
+        for (long n : histogram) total += n;
+        long target = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < histogram.length; ++i) {
+            seen += histogram[i];
+            if (seen >= target && seen > 0) return 1L << (i + 1);
+        }
+        return 0;
+    }
+
+    @Override
+    public void reset() {
+        for (AtomicLong a : new AtomicLong[] {_transactions, _bytes, _writes, _maxBatch, _lockWaitNanos, _syncs,
+                _syncNanos, _maxSyncNanos, _replays, _replayedTransactions, _replayedBytes, _discarded}) {
+            a.set(0);
+        }
+        for (int i = 0; i < HISTOGRAM_BUCKETS; ++i) _syncHistogram.set(i, 0);
+        _lastReplayNanos = 0;
+        _lastReplayBytes = 0;
+        _transactionRate.reset();
+        _byteRate.reset();
+    }
+
+    private static double mean(double total, long count) {
+        return count == 0 ? 0 : total / count;
+    }
+
+    // the rate at which a counter has grown since the previous reading at
+    // least a second ago
+    private static class Rate {
+        private long _time = System.nanoTime();
+        private long _count = 0;
+        private double _rate = 0;
+
+        synchronized double get(long count) {
+            long now = System.nanoTime();
+            long elapsed = now - _time;
+            if (elapsed >= TimeUnit.SECONDS.toNanos(1)) {
+                _rate = Math.max(0, count - _count) * 1e9 / elapsed;
+                _time = now;
+                _count = count;
+            }
+            return _rate;
+        }
+
+        synchronized void reset() {
+            _time = System.nanoTime();
+            _count = 0;
+            _rate = 0;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.martiansoftware.messagelog;
+
+/**
+ * The JMX management interface of MessageLogMetrics.  Rates are averaged
+ * over the time since the previous reading that was at least a second
+ * earlier, so they reflect the polling interval of whatever reads them.
+ */
+public interface MessageLogMetricsMXBean {
+
+    public long getTransactionsWritten();
+
+    public long getBytesWritten();
+
+    /** @return the number of writes, each of one or more transactions */
+    public long getWrites();
+
+    public double getTransactionsPerSecond();
+
+    public double getBytesPerSecond();
+
+    /** @return the mean number of transactions per write */
+    public double getMeanBatchSize();
+
+    public long getMaxBatchSize();
+
+    /** @return the total time writers have spent waiting for each other */
+    public long getLockWaitMicros();
+
+    public double getMeanLockWaitMicros();
+
+    public long getSyncs();
+
+    public double getMeanSyncMicros();
+
+    public long getMaxSyncMicros();
+
+    /**
+     * @return the number of syncs that took less than 2^(i+1) microseconds
+     * (and, for i &gt; 0, at least 2^i), at each index i
+     */
+    public long[] getSyncMicrosHistogram();
+
+    /**
+     * @param percentile a percentile between 0 and 100
+     * @return an upper bound on the specified percentile of sync times
+     */
+    public long getSyncMicrosPercentile(double percentile);
+
+    public long getReplays();
+
+    public long getTransactionsReplayed();
+
+    public long getBytesReplayed();
+
+    public long getLastReplayMillis();
+
+    public double getLastReplayBytesPerSecond();
+
+    public long getBytesDiscarded();
+
+    /** Resets every measurement to zero */
+    public void reset();
+}
@@ -3,16 +3,18 @@ package com.martiansoftware.messagelog;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.zip.CRC32;
+import java.util.zip.Checksum;
 
 /**
  * wraps one or more messages in a structure containing a message crc and length,
  * used for reading and writing from/to the message log
- * 
+ *
  * crc (long) (8 bytes)
  * count (int) (4 bytes)
  *     length (int) (4 bytes)
@@ -20,71 +22,320 @@ import java.util.zip.CRC32;
  *     length (int) (4 bytes)
  *     data (byte[]) (n bytes)
  *     ...
- * 
+ *
+ * That is the v1 layout; a transaction can also be encoded in the v2 layout
+ * described in LogFormat, which uses a CRC-32C covering every field.  In v2,
+ * a transaction can also be stored compressed (see compress()), in which
+ * case its count, lengths and messages are replaced by:
+ *
+ * uncompressed length (int) (4 bytes)
+ * compressed data (n bytes)
+ *
+ * with the id of the codec used stored in the low byte of its flags.
+ *
+ * Messages are held as ByteBuffers (the bytes between position and limit),
+ * which are never modified.  The public constructors copy the supplied
+ * messages; the wrap methods do not, and are used when the caller's data is
+ * guaranteed not to change until the transaction has been written.
+ *
  * @author mlamb
  */
 class MessageTransaction {
 
-    private final long _crc;
-    private final List<byte[]> _messages;
-    private final long _len;
-    
+    private long _crc = -1; // v1 crc, computed when first needed
+    private final ByteBuffer[] _messages;
+    private final long _len; // v1 length
+    private CompressionCodec _codec = null; // non-null if compressed for v2
+    private ByteBuffer _compressed = null;
+
     MessageTransaction(DataInput in) throws IOException {
-        _crc = in.readLong();
-        
+        long crc = in.readLong();
+
         int count = in.readInt();
-        _messages = new ArrayList<>(count);
+        _messages = new ByteBuffer[count];
 
         for (int i = 0; i < count; ++i) {
             byte[] b = new byte[in.readInt()];
             in.readFully(b);
-            _messages.add(b);
+            _messages[i] = ByteBuffer.wrap(b);
         }
 
-        if (_crc != getCRC()) throw new IOException("bad CRC");
+        if (crc != getCRC()) throw new IOException("bad CRC");
         _len = computeLength();
     }
-        
+
     private long computeLength() {
         long result = 12;
-        for (byte[] message : _messages) {
+        for (ByteBuffer message : _messages) {
             result += 4;
-            result += message.length;
+            result += message.remaining();
         }
         return result;
     }
-    
-    MessageTransaction (byte[]... b) {        
-        _messages = new java.util.ArrayList<>(b.length);
-        for (byte[] msg : b) _messages.add(Arrays.copyOf(msg, msg.length));
-        _crc = getCRC();
-        _len = computeLength();
-    } 
+
+    MessageTransaction (byte[]... b) {
+        this(copy(Arrays.asList(b)));
+    }
 
     MessageTransaction (List<byte[]>b) {
-        _messages = new java.util.ArrayList<>(b.size());
-        for (byte[] msg : b) _messages.add(Arrays.copyOf(msg, msg.length));
-        _crc = getCRC();
+        this(copy(b));
+    }
+
+    private MessageTransaction(ByteBuffer[] messages) {
+        _messages = messages;
         _len = computeLength();
     }
-    
+
+    /**
+     * Creates a MessageTransaction that uses the supplied arrays directly
+     * rather than copying them.
+     */
+    static MessageTransaction wrapArrays(List<byte[]> b) {
+        ByteBuffer[] messages = new ByteBuffer[b.size()];
+        for (int i = 0; i < messages.length; ++i) messages[i] = ByteBuffer.wrap(b.get(i));
+        return new MessageTransaction(messages);
+    }
+
+    /**
+     * Creates a MessageTransaction that uses the supplied buffers directly
+     * (or the array containing them) rather than copying them.  Each message
+     * is the content between the buffer's position and limit; the buffers
+     * themselves are not modified.
+     */
+    static MessageTransaction wrapBuffers(ByteBuffer[] b) {
+        return new MessageTransaction(b);
+    }
+
+    private static ByteBuffer[] copy(List<byte[]> b) {
+        ByteBuffer[] result = new ByteBuffer[b.size()];
+        for (int i = 0; i < result.length; ++i) {
+            byte[] msg = b.get(i);
+            result[i] = ByteBuffer.wrap(Arrays.copyOf(msg, msg.length));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of bytes written by writeTo()
+     */
+    long getLength() {
+        return _len;
+    }
+
+    /**
+     * Returns the number of bytes this transaction occupies in the specified
+     * format version
+     */
+    long getLength(int format) {
+        if (format == LogFormat.V1) return _len;
+        // crc, length, flags, uncompressed length, data
+        if (_codec != null) return 16 + _compressed.remaining();
+        // the v2 header is one int longer than the v1 header
+        return _len + 4;
+    }
+
+    /**
+     * Compresses this transaction's v2 encoding with the specified codec if
+     * it is at least minLength bytes long and compression makes it smaller.
+     * This has no effect on the v1 encoding.
+     *
+     * @return true if the transaction was compressed
+     */
+    boolean compress(CompressionCodec codec, int minLength) throws IOException {
+        long bodyLen = _len - 8; // count, lengths and messages
+        if (_codec != null || bodyLen < minLength || bodyLen > Integer.MAX_VALUE) return false;
+        ByteBuffer body = ByteBuffer.allocate((int) bodyLen);
+        body.putInt(_messages.length);
+        for (ByteBuffer msg : _messages) {
+            body.putInt(msg.remaining());
+            put(body, msg);
+        }
+        body.flip();
+        ByteBuffer compressed = codec.compress(body);
+        if (compressed.remaining() + 4 >= bodyLen) return false;
+        _codec = codec;
+        _compressed = compressed;
+        return true;
+    }
+
+    /**
+     * Returns the number of bytes writeTo(ByteBuffer, int, List) will copy
+     * into its buffer for the specified threshold.
+     */
+    long getCopiedLength(int gatherThreshold) {
+        return getCopiedLength(gatherThreshold, LogFormat.V1);
+    }
+
+    long getCopiedLength(int gatherThreshold, int format) {
+        long result = getLength(format);
+        if (format != LogFormat.V1 && _codec != null) return result;
+        for (ByteBuffer msg : _messages) {
+            if (msg.remaining() >= gatherThreshold) result -= msg.remaining();
+        }
+        return result;
+    }
+
+    /**
+     * Encodes this transaction into the supplied buffer, which must have at
+     * least getLength() bytes remaining.
+     */
+    void writeTo(ByteBuffer buf) {
+        writeTo(buf, LogFormat.V1);
+    }
+
+    /**
+     * Encodes this transaction in the specified format version into the
+     * supplied buffer, which must have at least getLength(format) bytes
+     * remaining.
+     */
+    void writeTo(ByteBuffer buf, int format) {
+        writeTo(buf, format, null);
+    }
+
+    /**
+     * Encodes this transaction as writeTo(ByteBuffer, int) does, computing its
+     * CRC with the supplied scratch space (or new scratch space if it is null)
+     */
+    void writeTo(ByteBuffer buf, int format, CrcScratch scratch) {
+        writeHeader(buf, format, scratch);
+        if (format != LogFormat.V1 && _codec != null) {
+            put(buf, _compressed);
+            return;
+        }
+        for (ByteBuffer msg : _messages) {
+            buf.putInt(msg.remaining());
+            put(buf, msg);
+        }
+    }
+
+    private void writeHeader(ByteBuffer buf, int format, CrcScratch scratch) {
+        if (format == LogFormat.V1) {
+            buf.putLong(getCRC());
+        } else {
+            buf.putInt((int) getV2CRC(scratch == null ? new CrcScratch() : scratch));
+            buf.putInt((int) (getLength(format) - 8));
+            if (_codec != null) {
+                buf.putInt(_codec.getId());
+                buf.putInt((int) (_len - 8));
+                return;
+            }
+            buf.putInt(0); // flags
+        }
+        buf.putInt(_messages.length);
+    }
+
+    /**
+     * Encodes this transaction for a gathering write.  Messages smaller than
+     * gatherThreshold are copied into buf along with the transaction's header
+     * fields; larger messages are not copied.  Instead, the region of buf
+     * encoded since regionStart is added to out, followed by a view of the
+     * message itself.  buf must have at least getCopiedLength(gatherThreshold)
+     * bytes remaining.
+     *
+     * @return the start of the region of buf that has not yet been added to out
+     */
+    int writeTo(ByteBuffer buf, int regionStart, int gatherThreshold, List<ByteBuffer> out) {
+        return writeTo(buf, regionStart, gatherThreshold, out, LogFormat.V1, null);
+    }
+
+    int writeTo(ByteBuffer buf, int regionStart, int gatherThreshold, List<ByteBuffer> out, int format, CrcScratch scratch) {
+        if (format != LogFormat.V1 && _codec != null) {
+            writeTo(buf, format, scratch);
+            return regionStart;
+        }
+        writeHeader(buf, format, scratch);
+        for (ByteBuffer msg : _messages) {
+            buf.putInt(msg.remaining());
+            if (msg.remaining() < gatherThreshold) {
+                put(buf, msg);
+            } else {
+                ByteBuffer region = buf.duplicate();
+                region.limit(buf.position()).position(regionStart);
+                out.add(region);
+                out.add(msg.duplicate());
+                regionStart = buf.position();
+            }
+        }
+        return regionStart;
+    }
+
     void writeTo(DataOutput out) throws IOException {
-        out.writeLong(_crc);
-        out.writeInt(_messages.size());
-        for (byte[] msg : _messages) {
-            out.writeInt(msg.length);
-            out.write(msg);
+        out.writeLong(getCRC());
+        out.writeInt(_messages.length);
+        byte[] chunk = null;
+        for (ByteBuffer msg : _messages) {
+            out.writeInt(msg.remaining());
+            if (msg.hasArray()) {
+                out.write(msg.array(), msg.arrayOffset() + msg.position(), msg.remaining());
+            } else {
+                if (chunk == null) chunk = new byte[8192];
+                ByteBuffer b = msg.duplicate();
+                while (b.hasRemaining()) {
+                    int n = Math.min(chunk.length, b.remaining());
+                    b.get(chunk, 0, n);
+                    out.write(chunk, 0, n);
+                }
+            }
         }
     }
 
+    // copies msg into buf without changing msg's position
+    private static void put(ByteBuffer buf, ByteBuffer msg) {
+        if (msg.hasArray()) buf.put(msg.array(), msg.arrayOffset() + msg.position(), msg.remaining());
+        else buf.put(msg.duplicate());
+    }
+
+    // the v1 crc, which covers only the messages themselves
     private long getCRC() {
-        CRC32 crc = new CRC32();
-        for (byte[] msg : _messages) crc.update(msg);
-        return crc.getValue();        
+        if (_crc == -1) {
+            CRC32 crc = new CRC32();
+            byte[] chunk = null;
+            for (ByteBuffer msg : _messages) chunk = Crc32c.update(crc, msg, chunk);
+            _crc = crc.getValue();
+        }
+        return _crc;
     }
-    
-    // underlying byte arrays are NOT immutable.  Use with care.
+
+    // the v2 crc, which covers everything in the encoded transaction after
+    // the crc itself
+    private long getV2CRC(CrcScratch scratch) {
+        Checksum crc = scratch.crc;
+        ByteBuffer fields = scratch.fields;
+        crc.reset();
+        fields.clear();
+        fields.putInt((int) (getLength(LogFormat.V2) - 8));
+        if (_codec != null) {
+            fields.putInt(_codec.getId()).putInt((int) (_len - 8));
+            crc.update(fields.array(), 0, 12);
+            scratch.chunk = Crc32c.update(crc, _compressed, scratch.chunk);
+            return crc.getValue();
+        }
+        fields.putInt(0).putInt(_messages.length);
+        crc.update(fields.array(), 0, 12);
+        for (ByteBuffer msg : _messages) {
+            fields.putInt(0, msg.remaining());
+            crc.update(fields.array(), 0, 4);
+            scratch.chunk = Crc32c.update(crc, msg, scratch.chunk);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Space for computing v2 CRCs that can be reused from one transaction to
+     * the next, so that encoding a transaction allocates nothing.  Not
+     * thread-safe.
+     */
+    static final class CrcScratch {
+        final Checksum crc = Crc32c.newChecksum();
+        final ByteBuffer fields = ByteBuffer.allocate(12);
+        byte[] chunk = null; // for copying direct buffers; see Crc32c.update()
+    }
+
+    // underlying byte arrays are NOT immutable.  Use with care.  Only valid
+    // for transactions whose messages are backed by whole arrays.
     Iterable<byte[]> getMessages() {
-        return Collections.unmodifiableList(_messages);
+        List<byte[]> result = new ArrayList<>(_messages.length);
+        for (ByteBuffer msg : _messages) result.add(msg.array());
+        return Collections.unmodifiableList(result);
     }
 }
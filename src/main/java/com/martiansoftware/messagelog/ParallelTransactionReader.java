@@ -0,0 +1,545 @@
+package com.martiansoftware.messagelog;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Checksum;
+
+/**
+ * A TransactionCursor that spreads the work of replaying a log over several
+ * threads while still presenting transactions in log order.
+ *
+ * The work is pipelined in three stages:
+ *
+ * 1. a reader thread splits the log into transactions (without checking
+ *    their CRCs) and copies them into batches of about BATCH_SIZE bytes;
+ * 2. a pool of worker threads checks the CRCs of each batch, decompresses
+ *    any compressed transactions and, if the messages will be needed as
+ *    byte arrays, copies them out;
+ * 3. the thread calling next() and dispatch() takes the finished batches in
+ *    the order they were read.
+ *
+ * Failures (a bad CRC, a corrupt transaction, an I/O error) are reported by
+ * next() at the point in the log where they occurred, so everything before
+ * them is still dispatched, just as with a TransactionReader.
+ *
+ * PartitionedMessageHandlers are not called by the dispatching thread;
+ * instead each message is queued to one of several single-threaded "lanes"
+ * chosen by its partition, so that messages in the same partition are
+ * handled in order while different partitions are handled concurrently.
+ * All queued messages have been handled by the time next() returns false or
+ * throws.
+ */
+class ParallelTransactionReader implements TransactionCursor {
+
+    // the approximate number of bytes in each batch
+    static final int BATCH_SIZE = 1024 * 1024;
+
+    private final FileChannel _channel;
+    private final long _limit;
+    private final int _format;
+    private final ExecutorService _workers;
+    private final Thread _reader;
+    private final BlockingQueue<Future<Batch>> _batches;
+    private final ConcurrentLinkedQueue<byte[]> _free = new ConcurrentLinkedQueue<>(); // recycled batch buffers
+    private final boolean _copy; // true if workers should copy messages into byte arrays
+    private volatile boolean _closed = false;
+
+    private Batch _batch = null; // the batch containing the current transaction
+    private int _frame = -1; // index of the current transaction within _batch
+    private long _position;
+    private boolean _done = false;
+    private ByteBuffer _view = null; // read-only view of _viewArray for ByteBufferMessageHandlers
+    private byte[] _viewArray = null;
+
+    // used only when dispatching to a PartitionedMessageHandler
+    private final ExecutorService[] _lanes;
+    private final List<List<byte[]>> _pending; // messages not yet queued to each lane
+    private final Semaphore _laneTasks; // limits how far the lanes can fall behind
+    private final AtomicReference<Throwable> _laneFailure = new AtomicReference<>();
+    private PartitionedMessageHandler _laneHandler = null;
+
+    /**
+     * Creates a new ParallelTransactionReader and starts reading
+     *
+     * @param channel the channel to read
+     * @param position the file offset of the first transaction to read
+     * @param limit the file offset at which reading stops
+     * @param format the format version of the log
+     * @param threads the number of worker threads (and, for
+     * PartitionedMessageHandlers, lanes) to use
+     * @param h the handler that will be passed to dispatch(), used to decide
+     * how messages should be prepared.  May be null.
+     */
+    ParallelTransactionReader(final FileChannel channel, final long position, final long limit, int format, int threads, MessageHandler h) {
+        _channel = channel;
+        _limit = limit;
+        _format = format;
+        _position = position;
+        _copy = h != null && !(h instanceof ByteBufferMessageHandler);
+        _batches = new ArrayBlockingQueue<>(threads * 2);
+        _workers = Executors.newFixedThreadPool(threads, daemonThreads("messagelog-replay-worker"));
+
+        if (h instanceof PartitionedMessageHandler) {
+            _lanes = new ExecutorService[threads];
+            _pending = new ArrayList<>(threads);
+            for (int i = 0; i < threads; ++i) {
+                _lanes[i] = Executors.newSingleThreadExecutor(daemonThreads("messagelog-replay-lane-" + i));
+                _pending.add(new ArrayList<byte[]>());
+            }
+            _laneTasks = new Semaphore(threads * 4);
+        } else {
+            _lanes = null;
+            _pending = null;
+            _laneTasks = null;
+        }
+
+        _reader = daemonThreads("messagelog-replay-reader").newThread(new Runnable() {
+            @Override public void run() {
+                read(position, limit);
+            }
+        });
+        _reader.start();
+    }
+
+    @Override
+    public boolean next() throws IOException {
+        checkLanes();
+        if (_done) return false;
+        while (_batch == null || _frame + 1 >= _batch.frames) {
+            if (_batch != null) release(_batch);
+            _batch = null;
+            _view = null;
+            _viewArray = null;
+            flushLanes();
+            Batch b;
+            try {
+                b = take();
+            } catch (IOException | RuntimeException e) {
+                finishLanes();
+                throw e;
+            }
+            if (b.last) {
+                _position = b.start;
+                _done = true;
+                finishLanes();
+                return false;
+            }
+            _batch = b;
+            _frame = -1;
+        }
+        ++_frame;
+        if (_frame == _batch.bad) {
+            flushLanes();
+            finishLanes();
+            if (_batch.error != null) throw _batch.error;
+            // see TransactionReader: the remains of an interrupted write
+            // into preallocated space end the data
+            if (_format != LogFormat.V1 && TransactionReader.isPreallocatedTail(_channel, _batch.positions[_frame], _limit)) {
+                _done = true;
+                return false;
+            }
+            throw new IOException("bad CRC at offset " + _position);
+        }
+        _position = _batch.positions[_frame];
+        return true;
+    }
+
+    @Override
+    public long getPosition() {
+        return _position;
+    }
+
+    @Override
+    public void dispatch(MessageHandler h) {
+        int first = _frame == 0 ? 0 : _batch.frameMessageEnds[_frame - 1];
+        int end = _batch.frameMessageEnds[_frame];
+        if (_lanes != null && h instanceof PartitionedMessageHandler) {
+            _laneHandler = (PartitionedMessageHandler) h;
+            for (int m = first; m < end; ++m) {
+                byte[] message = message(m);
+                int lane = _laneHandler.getPartition(message) % _lanes.length;
+                if (lane < 0) lane += _lanes.length;
+                _pending.get(lane).add(message);
+            }
+        } else if (h instanceof ByteBufferMessageHandler) {
+            ByteBufferMessageHandler bh = (ByteBufferMessageHandler) h;
+            for (int m = first; m < end; ++m) {
+                byte[] src = _batch.source(m);
+                if (src != _viewArray) {
+                    _view = ByteBuffer.wrap(src).asReadOnlyBuffer();
+                    _viewArray = src;
+                }
+                _view.clear();
+                _view.position(_batch.messageStarts[m]);
+                _view.limit(_batch.messageEnds[m]);
+                bh.handleMessage(_view);
+            }
+        } else if (h instanceof PositionedMessageHandler) {
+            PositionedMessageHandler ph = (PositionedMessageHandler) h;
+            for (int m = first; m < end; ++m) {
+                // messages outside data were decompressed
+                long offset = _batch.source(m) == _batch.data ? _batch.start + _batch.messageStarts[m] : -1;
+                ph.handleMessage(message(m), offset);
+            }
+        } else {
+            for (int m = first; m < end; ++m) h.handleMessage(message(m));
+        }
+    }
+
+    @Override
+    public void close() {
+        if (_closed) return;
+        _closed = true;
+        // the reader can't be interrupted because an interrupt during a read
+        // would close the channel, so it is unblocked instead
+        _batches.clear();
+        boolean interrupted = false;
+        while (_reader.isAlive()) {
+            try {
+                _reader.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        _workers.shutdownNow();
+        if (_lanes != null) {
+            for (ExecutorService lane : _lanes) lane.shutdownNow();
+        }
+    }
+
+    // the byte array for message m of the current batch
+    private byte[] message(int m) {
+        if (_batch.copies != null) return _batch.copies[m];
+        return Arrays.copyOfRange(_batch.source(m), _batch.messageStarts[m], _batch.messageEnds[m]);
+    }
+
+    // runs on the reader thread
+    private void read(long position, long limit) {
+        TransactionReader r = new TransactionReader(_channel, position, limit, _format);
+        try {
+            Future<Batch> last;
+            try {
+                Batch b = newBatch(position);
+                while (r.next(false)) {
+                    if (b.frames > 0 && b.size + r.getTransactionLength() > b.data.length) {
+                        put(submit(b));
+                        b = newBatch(b.positions[b.frames - 1]);
+                    }
+                    b.add(r);
+                }
+                if (b.frames > 0) put(submit(b));
+                Batch end = new Batch(r.getPosition(), new byte[0]);
+                end.last = true;
+                last = completed(end, null);
+            } catch (Throwable t) {
+                last = completed(null, t);
+            }
+            put(last);
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+    private Future<Batch> submit(Batch b) {
+        try {
+            return _workers.submit(b);
+        } catch (RuntimeException e) {
+            return completed(null, e); // the pool was shut down by close()
+        }
+    }
+
+    private void put(Future<Batch> f) throws InterruptedException {
+        while (!_closed) {
+            if (_batches.offer(f, 100, TimeUnit.MILLISECONDS)) return;
+        }
+        throw new InterruptedException();
+    }
+
+    private Batch take() throws IOException {
+        try {
+            return _batches.take().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted during replay");
+        } catch (ExecutionException e) {
+            Throwable t = e.getCause();
+            if (t instanceof IOException) throw (IOException) t;
+            if (t instanceof RuntimeException) throw (RuntimeException) t;
+            if (t instanceof Error) throw (Error) t;
+            throw new IOException(t);
+        }
+    }
+
+    private Batch newBatch(long start) {
+        byte[] data = _free.poll();
+        return new Batch(start, data == null ? new byte[BATCH_SIZE] : data);
+    }
+
+    private void release(Batch b) {
+        // only standard-size buffers are kept so an unusually large
+        // transaction doesn't pin its memory for the rest of the replay
+        if (b.data.length == BATCH_SIZE) _free.offer(b.data);
+    }
+
+    // queues each lane's pending messages to the lane
+    private void flushLanes() throws IOException {
+        if (_lanes == null) return;
+        for (int i = 0; i < _lanes.length; ++i) {
+            final List<byte[]> messages = _pending.get(i);
+            if (messages.isEmpty()) continue;
+            _pending.set(i, new ArrayList<byte[]>());
+            final PartitionedMessageHandler h = _laneHandler;
+            acquireLaneTask();
+            _lanes[i].execute(new Runnable() {
+                @Override public void run() {
+                    try {
+                        if (_laneFailure.get() == null) {
+                            for (byte[] message : messages) h.handleMessage(message);
+                        }
+                    } catch (Throwable t) {
+                        _laneFailure.compareAndSet(null, t);
+                    } finally {
+                        _laneTasks.release();
+                    }
+                }
+            });
+        }
+    }
+
+    // waits for the lanes to handle everything queued to them so far
+    private void finishLanes() throws IOException {
+        if (_lanes == null) return;
+        List<Future<?>> idle = new ArrayList<>(_lanes.length);
+        for (ExecutorService lane : _lanes) idle.add(lane.submit(new Runnable() {
+            @Override public void run() {}
+        }));
+        try {
+            for (Future<?> f : idle) f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted during replay");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        checkLanes();
+    }
+
+    private void acquireLaneTask() throws IOException {
+        try {
+            _laneTasks.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted during replay");
+        }
+    }
+
+    // rethrows the first failure of a PartitionedMessageHandler
+    private void checkLanes() {
+        Throwable t = _laneFailure.get();
+        if (t == null) return;
+        if (t instanceof Error) throw (Error) t;
+        throw (RuntimeException) t;
+    }
+
+    private Future<Batch> completed(final Batch b, final Throwable t) {
+        FutureTask<Batch> f = new FutureTask<>(new Callable<Batch>() {
+            @Override public Batch call() throws Exception {
+                if (t instanceof Exception) throw (Exception) t;
+                if (t instanceof Error) throw (Error) t;
+                return b;
+            }
+        });
+        f.run();
+        return f;
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            @Override public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * A run of consecutive transactions, copied end to end into a single
+     * array.  Built by the reader thread and then checked by a worker thread.
+     */
+    private class Batch implements Callable<Batch> {
+        final long start; // file offset of the first transaction
+        byte[] data;
+        int size = 0;
+
+        int frames = 0;
+        long[] positions = new long[64]; // file offset just past each transaction
+        long[] crcs = new long[64]; // stored crc of each transaction
+        int[] frameMessageEnds = new int[64]; // index just past each transaction's last message
+        boolean[] compressed = new boolean[64];
+        boolean anyCompressed = false;
+
+        int messages = 0;
+        int[] messageStarts = new int[256]; // offset of each message in its source
+        int[] messageEnds = new int[256]; // offset just past each message in its source
+        byte[][] sources = null; // the array holding each message, if not data
+
+        byte[][] copies = null;
+        int bad = -1; // index of the first transaction that can't be read
+        IOException error = null; // why it can't be read, if not a bad crc
+        boolean last = false; // marks the end of the data
+
+        Batch(long start, byte[] data) {
+            this.start = start;
+            this.data = data;
+        }
+
+        // offset of transaction f in data
+        int frameStart(int f) {
+            return f == 0 ? 0 : (int) (positions[f - 1] - start);
+        }
+
+        byte[] source(int m) {
+            return sources == null ? data : sources[m];
+        }
+
+        void add(TransactionReader r) {
+            int len = r.getTransactionLength();
+            if (size + len > data.length) data = Arrays.copyOf(data, size + len);
+            if (frames == positions.length) {
+                positions = Arrays.copyOf(positions, frames * 2);
+                crcs = Arrays.copyOf(crcs, frames * 2);
+                frameMessageEnds = Arrays.copyOf(frameMessageEnds, frames * 2);
+                compressed = Arrays.copyOf(compressed, frames * 2);
+            }
+            int count = r.getMessageCount();
+            ensureMessages(messages + count);
+            r.copyTransaction(data, size);
+            for (int i = 0; i < count; ++i) addMessage(size + r.getMessageOffset(i), r.getMessageLength(i));
+            size += len;
+            positions[frames] = r.getPosition();
+            crcs[frames] = r.getStoredCRC();
+            frameMessageEnds[frames] = messages;
+            compressed[frames] = r.isCompressed();
+            anyCompressed |= r.isCompressed();
+            ++frames;
+        }
+
+        private void ensureMessages(int n) {
+            if (n > messageEnds.length) {
+                int cap = Math.max(n, messages * 2);
+                messageStarts = Arrays.copyOf(messageStarts, cap);
+                messageEnds = Arrays.copyOf(messageEnds, cap);
+                if (sources != null) sources = Arrays.copyOf(sources, cap);
+            }
+        }
+
+        private void addMessage(int offset, int length) {
+            messageStarts[messages] = offset;
+            messageEnds[messages] = offset + length;
+            ++messages;
+        }
+
+        @Override
+        public Batch call() {
+            Checksum crc = LogFormat.newChecksum(_format);
+            for (int f = 0, m = 0; f < frames; ++f) {
+                crc.reset();
+                if (_format == LogFormat.V1) {
+                    // v1 crcs cover only the messages
+                    for (; m < frameMessageEnds[f]; ++m) crc.update(data, messageStarts[m], messageEnds[m] - messageStarts[m]);
+                } else {
+                    // v2 crcs cover everything after the crc itself
+                    int from = frameStart(f) + 4;
+                    crc.update(data, from, (int) (positions[f] - start) - from);
+                }
+                if (crc.getValue() != crcs[f]) {
+                    bad = f;
+                    break;
+                }
+            }
+            if (anyCompressed) inflate();
+            if (_copy) {
+                int valid = bad < 0 ? messages : (bad == 0 ? 0 : frameMessageEnds[bad - 1]);
+                copies = new byte[messages][];
+                for (int m = 0; m < valid; ++m) copies[m] = Arrays.copyOfRange(source(m), messageStarts[m], messageEnds[m]);
+            }
+            return this;
+        }
+
+        // rebuilds the message tables with the messages of compressed
+        // transactions, which the reader thread left out
+        private void inflate() {
+            int[] oldStarts = messageStarts, oldEnds = messageEnds, oldFrameEnds = frameMessageEnds.clone();
+            int valid = bad < 0 ? frames : bad;
+            messageStarts = new int[oldStarts.length];
+            messageEnds = new int[oldEnds.length];
+            sources = new byte[oldStarts.length][];
+            messages = 0;
+            for (int f = 0, m = 0; f < valid; ++f) {
+                if (!compressed[f]) {
+                    ensureMessages(messages + oldFrameEnds[f] - m);
+                    for (; m < oldFrameEnds[f]; ++m) {
+                        sources[messages] = data;
+                        addMessage(oldStarts[m], oldEnds[m] - oldStarts[m]);
+                    }
+                } else {
+                    try {
+                        inflate(f);
+                    } catch (IOException e) {
+                        bad = f;
+                        error = e;
+                        break;
+                    }
+                }
+                frameMessageEnds[f] = messages;
+            }
+        }
+
+        // adds the messages of compressed transaction f
+        private void inflate(int f) throws IOException {
+            long offset = f == 0 ? start : positions[f - 1];
+            int from = frameStart(f);
+            CompressionCodec codec = CompressionCodecs.get(ByteBuffer.wrap(data).getInt(from + 8));
+            ByteBuffer raw = ByteBuffer.allocate(ByteBuffer.wrap(data).getInt(from + 12));
+            try {
+                codec.decompress(ByteBuffer.wrap(data, from + 16, (int) (positions[f] - start) - from - 16), raw);
+            } catch (IOException e) {
+                throw new IOException("Invalid compressed transaction at offset " + offset, e);
+            }
+            byte[] a = raw.array();
+            int end = a.length;
+            int count = raw.getInt(0);
+            int off = 4, i = 0;
+            for (; i < count; ++i) {
+                int msgLen = off + 4 <= end ? raw.getInt(off) : -1;
+                if (msgLen < 0 || msgLen > end - off - 4) break;
+                off += 4;
+                ensureMessages(messages + 1);
+                sources[messages] = a;
+                addMessage(off, msgLen);
+                off += msgLen;
+            }
+            if (count < 0 || i < count || off != end) throw new IOException("Corrupt transaction at offset " + offset);
+        }
+    }
+}
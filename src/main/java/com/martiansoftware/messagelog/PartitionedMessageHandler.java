@@ -0,0 +1,24 @@
+package com.martiansoftware.messagelog;
+
+/**
+ * A MessageHandler that only needs messages to be replayed in order within a
+ * partition (e.g., messages affecting the same key), allowing a parallel
+ * replay (see FileMessageLog.replay(MessageHandler, int)) to hand messages
+ * from different partitions to it concurrently.
+ *
+ * Messages in the same partition are always handled one at a time, in log
+ * order, by the same thread.  Messages in different partitions may be handled
+ * concurrently, so handleMessage() must be thread-safe across partitions.
+ * Outside of a parallel replay, this is an ordinary MessageHandler.
+ */
+public interface PartitionedMessageHandler extends MessageHandler {
+
+    /**
+     * Returns the partition of the specified message.  This is called in log
+     * order by the thread driving the replay, so it should be cheap.
+     *
+     * @param message the message
+     * @return the message's partition; any int value is allowed
+     */
+    public int getPartition(byte[] message);
+}
@@ -0,0 +1,32 @@
+package com.martiansoftware.messagelog;
+
+/**
+ * A MessageHandler that is also told where each replayed message is stored
+ * in the log file, so that it can read the message (or part of it) again
+ * later without replaying the log.
+ *
+ * The offset is that of the message's first byte.  It is -1 for messages
+ * that are not stored verbatim, i.e. those in compressed transactions, and
+ * for messages from sources that don't know where they are stored.
+ */
+public abstract class PositionedMessageHandler implements MessageHandler {
+
+    /**
+     * Handles a single message.
+     *
+     * @param message the message
+     * @param offset the file offset of the message's first byte, or -1 if it
+     * is not stored verbatim
+     */
+    public abstract void handleMessage(byte[] message, long offset);
+
+    /**
+     * Handles a message whose location is unknown.
+     *
+     * @param message the message
+     */
+    @Override
+    public void handleMessage(byte[] message) {
+        handleMessage(message, -1);
+    }
+}
@@ -0,0 +1,522 @@
+package com.martiansoftware.messagelog;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A MessageLog that stores its messages in a directory of segment files,
+ * each of which is a FileMessageLog.  Messages are always appended to the
+ * newest segment; once that segment exceeds a configurable size or age, a
+ * new segment is started ("rolled").  Replays read all segments in order.
+ *
+ * Because each segment is a separate file, old data can be discarded by
+ * deleting entire segments (see deleteSegmentsBefore()) without rewriting
+ * anything, and no single file grows without bound.
+ *
+ * Segment files are named with the zero-padded sequence number of their
+ * first transaction (e.g. "00000000000000000000.log") so that they sort in
+ * log order and so that replayFrom() can go directly to the segment
+ * containing a given sequence number.  Sequence numbers continue across
+ * segments.
+ */
+public class SegmentedMessageLog implements MessageLog {
+
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String LOCK_FILE = "segments.lock";
+
+    /**
+     * The default maximum size of a segment (64MB)
+     */
+    public static final long DEFAULT_MAX_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    private final File _dir;
+    private final RandomAccessFile _lockFile;
+    private final FileLock _flock;
+
+    // readers of _active (loggers) share the lock; rolling, replaying and
+    // closing take it exclusively.
+    private final ReadWriteLock _lock = new ReentrantReadWriteLock();
+    private final List<File> _segments = new ArrayList<>();
+    // volatile so that needsRoll() can check them without the lock; written
+    // only while holding the write lock (or in the constructor)
+    private volatile FileMessageLog _active;
+    private volatile long _activeSince;
+
+    private volatile long _maxSegmentSize = DEFAULT_MAX_SEGMENT_SIZE;
+    private volatile long _maxSegmentAgeMillis = 0;
+    private volatile boolean _autoSync = false;
+    private volatile CompressionCodec _codec = null;
+    private volatile long _preallocation = 0;
+    private volatile int _mapWindow = 0;
+    private volatile MessageLogListener _listener = null;
+
+    /**
+     * Creates a new SegmentedMessageLog in the specified directory, creating
+     * the directory if necessary.
+     *
+     * @param dir the directory to use for segment storage
+     * @throws IOException
+     */
+    public SegmentedMessageLog(File dir) throws IOException {
+        this(dir, null);
+    }
+
+    /**
+     * Creates a new SegmentedMessageLog in the specified directory, creating
+     * the directory if necessary.
+     *
+     * @param dir the directory to use for segment storage
+     * @param h a MessageHandler that will be called for each message read
+     * from the segments when the log is opened (e.g., to restore application
+     * state from the log)
+     * @throws IOException
+     */
+    public SegmentedMessageLog(File dir, MessageHandler h) throws IOException {
+        _dir = dir;
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Unable to create directory " + dir.getAbsolutePath());
+
+        _lockFile = new RandomAccessFile(new File(dir, LOCK_FILE), "rw");
+        FileLock flock;
+        try {
+            flock = _lockFile.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            flock = null;
+        }
+        if (flock == null) {
+            _lockFile.close();
+            throw new IOException("Unable to obtain lock on " + dir.getAbsolutePath());
+        }
+        _flock = flock;
+
+        _segments.addAll(listSegments(dir));
+        if (_segments.isEmpty()) _segments.add(segmentFile(0));
+
+        for (int i = 0; i < _segments.size() - 1; ++i) openSealed(i, h).close();
+        _active = openSegment(_segments.size() - 1, h);
+        _activeSince = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns the directory containing this log's segments
+     * @return the directory containing this log's segments
+     */
+    public File getDirectory() {
+        return _dir;
+    }
+
+    /**
+     * Sets the size in bytes beyond which the current segment is closed and
+     * a new one is started.  Segments may exceed this size by up to one
+     * transaction.  Default is DEFAULT_MAX_SEGMENT_SIZE.
+     *
+     * @param maxSegmentSize the maximum segment size in bytes
+     * @return this SegmentedMessageLog
+     */
+    public SegmentedMessageLog setMaxSegmentSize(long maxSegmentSize) {
+        if (maxSegmentSize <= 0) throw new IllegalArgumentException("maxSegmentSize must be positive");
+        _maxSegmentSize = maxSegmentSize;
+        return this;
+    }
+
+    /**
+     * Sets the age beyond which the current segment is closed and a new one
+     * is started when the next message is logged.  A segment's age is
+     * measured from the time it was created or, for the segment that was
+     * current when the log was opened, from the time the log was opened.
+     * Zero (the default) disables age-based rolling.
+     *
+     * @param maxSegmentAge the maximum segment age, or zero for no limit
+     * @param unit the unit of maxSegmentAge
+     * @return this SegmentedMessageLog
+     */
+    public SegmentedMessageLog setMaxSegmentAge(long maxSegmentAge, TimeUnit unit) {
+        if (maxSegmentAge < 0) throw new IllegalArgumentException("maxSegmentAge must not be negative");
+        _maxSegmentAgeMillis = unit.toMillis(maxSegmentAge);
+        return this;
+    }
+
+    /**
+     * If set to true, all writes will be forced out to disk before returning from
+     * log().  See FileMessageLog.setAutoSync().
+     *
+     * @param autoSync if true, automatically force all writes to disk
+     * @return this SegmentedMessageLog
+     */
+    public SegmentedMessageLog setAutoSync(boolean autoSync) {
+        _lock.writeLock().lock();
+        try {
+            _autoSync = autoSync;
+            _active.setAutoSync(autoSync);
+        } finally {
+            _lock.writeLock().unlock();
+        }
+        return this;
+    }
+
+    /**
+     * Sets the codec used to compress transactions written to this log, or
+     * null to write them uncompressed.  See FileMessageLog.setCompression().
+     *
+     * @param codec the codec to use, or null
+     * @return this SegmentedMessageLog
+     */
+    public SegmentedMessageLog setCompression(CompressionCodec codec) {
+        _lock.writeLock().lock();
+        try {
+            _codec = codec;
+            _active.setCompression(codec);
+        } finally {
+            _lock.writeLock().unlock();
+        }
+        return this;
+    }
+
+    /**
+     * Sets the size of the chunks in which space is preallocated for the
+     * active segment, or 0 to extend it with each write.  See
+     * FileMessageLog.setPreallocation().
+     *
+     * @param chunkSize the preallocation chunk size in bytes, or 0
+     * @return this SegmentedMessageLog
+     */
+    public SegmentedMessageLog setPreallocation(long chunkSize) {
+        if (chunkSize < 0) throw new IllegalArgumentException("chunkSize must not be negative");
+        _lock.writeLock().lock();
+        try {
+            _preallocation = chunkSize;
+            _active.setPreallocation(chunkSize);
+        } finally {
+            _lock.writeLock().unlock();
+        }
+        return this;
+    }
+
+    /**
+     * Sets the size of the memory-mapped window through which the active
+     * segment is written, or 0 to write it through its channel.  See
+     * FileMessageLog.setMemoryMapping().
+     *
+     * @param windowSize the size of the mapped window in bytes, or 0
+     * @return this SegmentedMessageLog
+     */
+    public SegmentedMessageLog setMemoryMapping(int windowSize) {
+        if (windowSize < 0) throw new IllegalArgumentException("windowSize must not be negative");
+        _lock.writeLock().lock();
+        try {
+            _mapWindow = windowSize;
+            _active.setMemoryMapping(windowSize);
+        } finally {
+            _lock.writeLock().unlock();
+        }
+        return this;
+    }
+
+    /**
+     * Sets the listener that receives measurements of the active segment's
+     * activity (and that of each segment after it), or null.  See
+     * FileMessageLog.setListener().
+     *
+     * @param listener the listener, e.g. a MessageLogMetrics, or null
+     * @return this SegmentedMessageLog
+     */
+    public SegmentedMessageLog setListener(MessageLogListener listener) {
+        _lock.writeLock().lock();
+        try {
+            _listener = listener;
+            _active.setListener(listener);
+        } finally {
+            _lock.writeLock().unlock();
+        }
+        return this;
+    }
+
+    /**
+     * Returns the segment files currently making up this log, oldest first.
+     *
+     * @return the segment files currently making up this log, oldest first
+     */
+    public List<File> getSegments() {
+        _lock.readLock().lock();
+        try {
+            return new ArrayList<>(_segments);
+        } finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long log(byte[]... messages) throws IOException {
+        if (messages == null || messages.length == 0) return -1;
+        rollIfNeeded();
+        _lock.readLock().lock();
+        try {
+            return _active.log(messages);
+        } finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long log(List<byte[]> messages) throws IOException {
+        if (messages == null || messages.isEmpty()) return -1;
+        rollIfNeeded();
+        _lock.readLock().lock();
+        try {
+            return _active.log(messages);
+        } finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long logBuffers(ByteBuffer... messages) throws IOException {
+        if (messages == null || messages.length == 0) return -1;
+        rollIfNeeded();
+        _lock.readLock().lock();
+        try {
+            return _active.logBuffers(messages);
+        } finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long logBuffers(List<ByteBuffer> messages) throws IOException {
+        if (messages == null || messages.isEmpty()) return -1;
+        rollIfNeeded();
+        _lock.readLock().lock();
+        try {
+            return _active.logBuffers(messages);
+        } finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public DataOutputStream getLogOutputStream() {
+        return MessageDataOutputStream.get(this);
+    }
+
+    /**
+     * Replays all messages from all segments, oldest first, to the specified
+     * MessageHandler
+     *
+     * @param h the MessageHandler to receive replayed messages
+     * @return this SegmentedMessageLog
+     * @throws IOException
+     */
+    @Override
+    public SegmentedMessageLog replay(MessageHandler h) throws IOException {
+        _lock.writeLock().lock();
+        try {
+            for (int i = 0; i < _segments.size() - 1; ++i) openSealed(i, h).close();
+            _active.replay(h);
+        } finally {
+            _lock.writeLock().unlock();
+        }
+        return this;
+    }
+
+    /**
+     * Replays all messages in transactions with sequence numbers greater
+     * than or equal to seq to the specified MessageHandler.  Segments
+     * entirely before seq are not read at all.
+     *
+     * @param seq the sequence number of the first transaction to replay
+     * @param h the MessageHandler to receive replayed messages
+     * @return this SegmentedMessageLog
+     * @throws IOException if seq is not in the log, or if the log cannot be
+     * read
+     */
+    @Override
+    public SegmentedMessageLog replayFrom(long seq, MessageHandler h) throws IOException {
+        _lock.writeLock().lock();
+        try {
+            int first = _segments.size() - 1;
+            while (first > 0 && firstSequence(_segments.get(first)) > seq) --first;
+            for (int i = first; i < _segments.size(); ++i) {
+                boolean active = i == _segments.size() - 1;
+                FileMessageLog segment = active ? _active : openSealed(i, null);
+                try {
+                    if (i == first) segment.replayFrom(seq, h);
+                    else segment.replay(h);
+                } finally {
+                    if (!active) segment.close();
+                }
+            }
+        } finally {
+            _lock.writeLock().unlock();
+        }
+        return this;
+    }
+
+    /**
+     * Returns the sequence number that will be assigned to the next
+     * transaction written to the log.
+     *
+     * @return the sequence number of the next transaction
+     */
+    public long getNextSequence() {
+        _lock.readLock().lock();
+        try {
+            return _active.getNextSequence();
+        } finally {
+            _lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Closes the current segment and starts a new one, regardless of the
+     * current segment's size or age.
+     *
+     * @return this SegmentedMessageLog
+     * @throws IOException
+     */
+    public SegmentedMessageLog roll() throws IOException {
+        _lock.writeLock().lock();
+        try {
+            rollLocked();
+        } finally {
+            _lock.writeLock().unlock();
+        }
+        return this;
+    }
+
+    /**
+     * Deletes all segments older than the specified segment, along with their
+     * sequence indexes.  The specified segment itself is not deleted.  This
+     * is the mechanism for discarding old data; it never rewrites any file.
+     *
+     * @param segment a segment returned by getSegments()
+     * @return the number of segments deleted
+     * @throws IOException if the specified file is not a segment of this
+     * log, or if a segment could not be deleted
+     */
+    public int deleteSegmentsBefore(File segment) throws IOException {
+        _lock.writeLock().lock();
+        try {
+            int n = _segments.indexOf(segment);
+            if (n < 0) throw new IOException(segment + " is not a segment of " + _dir.getAbsolutePath());
+            for (int i = 0; i < n; ++i) {
+                File f = _segments.get(0);
+                if (f.exists() && !f.delete()) throw new IOException("Unable to delete " + f.getAbsolutePath());
+                FileMessageLog.getIndexFile(f).delete(); // the index is only a cache
+                _segments.remove(0);
+            }
+            return n;
+        } finally {
+            _lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Forces any pending writes out to disk.  See FileMessageLog.sync().
+     *
+     * @return this SegmentedMessageLog
+     * @throws IOException
+     */
+    public SegmentedMessageLog sync() throws IOException {
+        _lock.readLock().lock();
+        try {
+            _active.sync();
+        } finally {
+            _lock.readLock().unlock();
+        }
+        return this;
+    }
+
+    /**
+     * Closes this SegmentedMessageLog and releases any locks/resources.  Once
+     * closed, no more logging or replays are permitted.
+     *
+     * @return this SegmentedMessageLog
+     * @throws IOException
+     */
+    public SegmentedMessageLog close() throws IOException {
+        _lock.writeLock().lock();
+        try {
+            _active.close();
+            _flock.release();
+            _lockFile.close();
+        } finally {
+            _lock.writeLock().unlock();
+        }
+        return this;
+    }
+
+    private void rollIfNeeded() throws IOException {
+        if (!needsRoll()) return;
+        _lock.writeLock().lock();
+        try {
+            if (needsRoll()) rollLocked();
+        } finally {
+            _lock.writeLock().unlock();
+        }
+    }
+
+    // called without the lock first, so the answer may be stale; rollIfNeeded()
+    // asks again under the write lock before rolling
+    private boolean needsRoll() {
+        FileMessageLog active = _active;
+        if (active.getPosition() >= _maxSegmentSize) return true;
+        long maxAge = _maxSegmentAgeMillis;
+        return maxAge > 0
+                && !active.isEmpty()
+                && System.currentTimeMillis() - _activeSince >= maxAge;
+    }
+
+    // must be called while holding the write lock
+    private void rollLocked() throws IOException {
+        if (!_flock.isValid()) throw new IOException("Log has been closed.");
+        if (_active.isEmpty()) return; // never leave an empty segment behind
+        File next = segmentFile(_active.getNextSequence());
+        _active.close();
+        _segments.add(next);
+        _active = openSegment(_segments.size() - 1, null).setAutoSync(_autoSync).setCompression(_codec).setPreallocation(_preallocation).setMemoryMapping(_mapWindow).setListener(_listener);
+        _activeSince = System.currentTimeMillis();
+    }
+
+    private FileMessageLog openSegment(int i, MessageHandler h) throws IOException {
+        File f = _segments.get(i);
+        return new FileMessageLog(f, h, firstSequence(f), 1);
+    }
+
+    // segments other than the active one are only read, so they're opened
+    // without being locked, synced or rewritten
+    private FileMessageLog openSealed(int i, MessageHandler h) throws IOException {
+        File f = _segments.get(i);
+        return FileMessageLog.openSealed(f, h, firstSequence(f));
+    }
+
+    private File segmentFile(long firstSeq) {
+        return new File(_dir, String.format("%020d%s", firstSeq, SEGMENT_SUFFIX));
+    }
+
+    private static long firstSequence(File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private static List<File> listSegments(File dir) throws IOException {
+        File[] files = dir.listFiles(new FileFilter() {
+            @Override public boolean accept(File f) {
+                return f.isFile() && f.getName().matches("\\d{20}" + SEGMENT_SUFFIX.replace(".", "\\."));
+            }
+        });
+        if (files == null) throw new IOException("Unable to list " + dir.getAbsolutePath());
+        Arrays.sort(files);
+        return Arrays.asList(files);
+    }
+}
@@ -0,0 +1,174 @@
+package com.martiansoftware.messagelog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A sparse index mapping transaction sequence numbers to file offsets in a
+ * FileMessageLog, stored in a sidecar file next to the log.
+ *
+ * The file consists of a header followed by fixed-size entries:
+ *
+ * magic (int) (4 bytes)
+ * version (int) (4 bytes)
+ * base sequence (long) (8 bytes) - the sequence number of the first transaction in the log
+ *     sequence (long) (8 bytes)
+ *     offset (long) (8 bytes)
+ *     ...
+ *
+ * Apart from the base sequence, everything in the index can be rebuilt from
+ * the log itself, so entries are written without being forced to disk and
+ * are verified against the log whenever it is fully scanned.
+ *
+ * A read-only index loads the file if it exists, but never writes it; any
+ * changes are kept in memory.
+ */
+class SequenceIndex {
+
+    private static final int MAGIC = 0x4d4c4958; // "MLIX"
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 16;
+    private static final int ENTRY_LENGTH = 16;
+
+    private final RandomAccessFile _raf; // null if read-only and the file doesn't exist
+    private final FileChannel _channel;
+    private final boolean _readOnly;
+    private final ByteBuffer _entry = ByteBuffer.allocate(ENTRY_LENGTH);
+    private long _base;
+    private int _size = 0;
+    private long[] _seqs = new long[64];
+    private long[] _offsets = new long[64];
+
+    /**
+     * Opens or creates the index stored in the specified file.
+     *
+     * @param f the index file
+     * @param defaultBase the base sequence to use if the file does not
+     * contain a valid index
+     * @throws IOException
+     */
+    SequenceIndex(File f, long defaultBase) throws IOException {
+        this(f, defaultBase, false);
+    }
+
+    /**
+     * Opens the index stored in the specified file, creating it unless
+     * readOnly is true.
+     *
+     * @param f the index file
+     * @param defaultBase the base sequence to use if the file does not
+     * contain a valid index
+     * @param readOnly if true, the file is never written
+     * @throws IOException
+     */
+    SequenceIndex(File f, long defaultBase, boolean readOnly) throws IOException {
+        _readOnly = readOnly;
+        _raf = readOnly && !f.exists() ? null : new RandomAccessFile(f, readOnly ? "r" : "rw");
+        _channel = _raf == null ? null : _raf.getChannel();
+        if (!load()) reset(defaultBase);
+    }
+
+    private boolean load() throws IOException {
+        if (_channel == null) return false;
+        long len = _channel.size();
+        if (len < HEADER_LENGTH) return false;
+        ByteBuffer b = ByteBuffer.allocate((int) Math.min(len, Integer.MAX_VALUE));
+        while (b.hasRemaining()) {
+            if (_channel.read(b, b.position()) < 0) break;
+        }
+        b.flip();
+        if (b.getInt() != MAGIC || b.getInt() != VERSION) return false;
+        _base = b.getLong();
+        while (b.remaining() >= ENTRY_LENGTH) {
+            long seq = b.getLong();
+            long offset = b.getLong();
+            // a partially written entry, or one that doesn't follow its
+            // predecessor, ends the usable part of the index
+            if (_size > 0 ? seq <= _seqs[_size - 1] || offset <= _offsets[_size - 1] : seq <= _base) break;
+            add(seq, offset);
+        }
+        long valid = HEADER_LENGTH + (long) _size * ENTRY_LENGTH;
+        if (valid < len && !_readOnly) _channel.truncate(valid);
+        return true;
+    }
+
+    long getBaseSequence() {
+        return _base;
+    }
+
+    int size() {
+        return _size;
+    }
+
+    long sequenceAt(int i) {
+        return _seqs[i];
+    }
+
+    long offsetAt(int i) {
+        return _offsets[i];
+    }
+
+    /**
+     * Returns the index of the last entry whose sequence number is less than
+     * or equal to seq, or -1 if there is none.
+     */
+    int floor(long seq) {
+        int i = Arrays.binarySearch(_seqs, 0, _size, seq);
+        return i >= 0 ? i : -i - 2;
+    }
+
+    void append(long seq, long offset) throws IOException {
+        if (_readOnly) {
+            add(seq, offset);
+            return;
+        }
+        _entry.clear();
+        _entry.putLong(seq).putLong(offset).flip();
+        long pos = HEADER_LENGTH + (long) _size * ENTRY_LENGTH;
+        while (_entry.hasRemaining()) pos += _channel.write(_entry, pos);
+        add(seq, offset);
+    }
+
+    /**
+     * Discards all but the first n entries
+     */
+    void truncate(int n) throws IOException {
+        if (n >= _size) return;
+        _size = n;
+        if (!_readOnly) _channel.truncate(HEADER_LENGTH + (long) n * ENTRY_LENGTH);
+    }
+
+    /**
+     * Discards all entries and sets a new base sequence.  Because the base
+     * sequence cannot be recovered from the log, this is forced to disk.
+     */
+    void reset(long base) throws IOException {
+        _base = base;
+        _size = 0;
+        if (_readOnly) return;
+        ByteBuffer b = ByteBuffer.allocate(HEADER_LENGTH);
+        b.putInt(MAGIC).putInt(VERSION).putLong(base).flip();
+        long pos = 0;
+        while (b.hasRemaining()) pos += _channel.write(b, pos);
+        _channel.truncate(HEADER_LENGTH);
+        _channel.force(true);
+    }
+
+    void close() throws IOException {
+        if (_raf != null) _raf.close();
+    }
+
+    private void add(long seq, long offset) {
+        if (_size == _seqs.length) {
+            _seqs = Arrays.copyOf(_seqs, _size * 2);
+            _offsets = Arrays.copyOf(_offsets, _size * 2);
+        }
+        _seqs[_size] = seq;
+        _offsets[_size] = offset;
+        ++_size;
+    }
+}
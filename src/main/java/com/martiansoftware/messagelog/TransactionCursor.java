@@ -0,0 +1,34 @@
+package com.martiansoftware.messagelog;
+
+import java.io.IOException;
+
+/**
+ * Steps through the transactions in a region of a log, in order.
+ */
+interface TransactionCursor {
+
+    /**
+     * Advances to the next transaction.
+     *
+     * @return true if a complete transaction was read, false if there is no
+     * more data or only a truncated transaction remains
+     * @throws IOException if the transaction is corrupt
+     */
+    boolean next() throws IOException;
+
+    /**
+     * Returns the file offset just past the last complete transaction read.
+     * After next() returns false, this is the end of the valid data.
+     */
+    long getPosition();
+
+    /**
+     * Supplies each message in the current transaction to the specified handler
+     */
+    void dispatch(MessageHandler h);
+
+    /**
+     * Releases any resources held by the cursor.  Safe to call more than once.
+     */
+    void close();
+}
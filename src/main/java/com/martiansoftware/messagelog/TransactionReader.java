@@ -0,0 +1,427 @@
+package com.martiansoftware.messagelog;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.Checksum;
+
+/**
+ * Reads MessageTransactions in either format version (see LogFormat)
+ * sequentially from a FileChannel using large
+ * positional reads into a reusable buffer.  Transactions are located and
+ * CRC-checked in place; message bytes are only copied out of the buffer if
+ * they are dispatched to a MessageHandler that requires byte arrays.
+ * ByteBufferMessageHandlers instead receive a read-only view of the buffer,
+ * and PositionedMessageHandlers are also given each message's file offset.
+ *
+ * A transaction that extends past the end of the data being read is treated
+ * as a truncated tail (e.g., a write that was interrupted by a crash) and
+ * ends the read without error.  A complete transaction with a bad CRC
+ * results in an IOException, unless the reader is lenient (see
+ * setLenient()), or unless it is a v2 transaction followed only by zeros,
+ * which is the remains of a write into preallocated space that was
+ * interrupted by a crash, and is treated as a truncated tail.
+ *
+ * Compressed transactions are decompressed into a second reusable buffer,
+ * after their CRC has been checked.
+ *
+ * Reading does not move the channel's position.
+ */
+class TransactionReader implements TransactionCursor {
+
+    static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+    private static final int V1_HEADER_LENGTH = 12; // crc (8) + count (4)
+
+    private final FileChannel _channel;
+    private long _limit;
+    private final int _format;
+    private final Checksum _crc;
+    private boolean _lenient = false; // if true, a bad transaction ends the read like a truncated one
+
+    // _buf holds file data starting at file offset _bufStart, up to _buf.limit()
+    private ByteBuffer _buf;
+    private long _bufStart;
+    private ByteBuffer _view; // read-only view of _buf for ByteBufferMessageHandlers
+
+    // holds the current transaction's messages if it was compressed
+    private ByteBuffer _inflated = null;
+    private ByteBuffer _inflatedView = null;
+    private boolean _compressed = false; // true if the current transaction was compressed
+
+    private int _frameStart = 0; // offset of the current transaction within _buf
+    private long _position; // file offset just past the last complete transaction
+    private long _storedCRC; // the crc recorded for the current transaction
+
+    // offsets (relative to _buf) and lengths of messages in the current transaction
+    private int _count = 0;
+    private int[] _offsets = new int[16];
+    private int[] _lengths = new int[16];
+
+    /**
+     * Creates a new TransactionReader
+     *
+     * @param channel the channel to read
+     * @param position the file offset of the first transaction to read
+     * @param limit the file offset at which reading stops
+     * @param format the format version of the log
+     */
+    TransactionReader(FileChannel channel, long position, long limit, int format) {
+        this(channel, position, limit, format, DEFAULT_BUFFER_SIZE);
+    }
+
+    TransactionReader(FileChannel channel, long position, long limit, int format, int bufferSize) {
+        _channel = channel;
+        _limit = limit;
+        _format = format;
+        _crc = LogFormat.newChecksum(format);
+        _position = position;
+        _bufStart = position;
+        _buf = ByteBuffer.allocate(bufferSize);
+        _buf.limit(0);
+    }
+
+    /**
+     * Moves the offset at which reading stops, so that reading can continue
+     * after data has been appended.  Data before the old limit that has
+     * already been read is not read again.
+     */
+    void setLimit(long limit) {
+        _limit = limit;
+    }
+
+    /**
+     * If set to true, a transaction with a bad CRC or a corrupt structure
+     * ends the read without error, as a truncated one does, rather than
+     * causing an IOException.  Used when reading a log that another process
+     * may be writing, whose last transaction may be seen part way through
+     * being written.
+     */
+    void setLenient(boolean lenient) {
+        _lenient = lenient;
+    }
+
+    @Override
+    public long getPosition() {
+        return _position;
+    }
+
+    /**
+     * Returns the number of messages in the current transaction
+     */
+    int getMessageCount() {
+        return _count;
+    }
+
+    /**
+     * Returns the length of the specified message in the current transaction
+     */
+    int getMessageLength(int i) {
+        return _lengths[i];
+    }
+
+    /**
+     * Returns the offset of the specified message in the current transaction
+     * from the start of the transaction
+     */
+    int getMessageOffset(int i) {
+        return _offsets[i] - _frameStart;
+    }
+
+    /**
+     * Returns the length of the current transaction
+     */
+    int getTransactionLength() {
+        return (int) (_position - _bufStart) - _frameStart;
+    }
+
+    /**
+     * Copies the whole of the current transaction into dst
+     */
+    void copyTransaction(byte[] dst, int offset) {
+        System.arraycopy(_buf.array(), _buf.arrayOffset() + _frameStart, dst, offset, getTransactionLength());
+    }
+
+    /**
+     * Returns true if the current transaction is compressed.  When read
+     * without verification, a compressed transaction's messages are not
+     * decompressed and getMessageCount() returns zero.
+     */
+    boolean isCompressed() {
+        return _compressed;
+    }
+
+    /**
+     * Returns the crc recorded for the current transaction
+     */
+    long getStoredCRC() {
+        return _storedCRC;
+    }
+
+    @Override
+    public boolean next() throws IOException {
+        return next(true);
+    }
+
+    /**
+     * Advances to the next transaction, optionally without checking its CRC
+     * (for callers that check it elsewhere).
+     *
+     * @param verify if true, the transaction's CRC is checked
+     * @return true if a complete transaction was read, false if there is no
+     * more data or only a truncated transaction remains
+     * @throws IOException if the transaction is corrupt
+     */
+    boolean next(boolean verify) throws IOException {
+        _frameStart = (int) (_position - _bufStart);
+        _count = 0;
+        _compressed = false;
+        if (_position >= _limit) return false;
+        int len = _format == LogFormat.V1 ? nextV1(verify) : nextV2(verify);
+        if (len < 0) {
+            // the rest of a bad or truncated transaction may still be being
+            // written, so it's read again next time rather than reused
+            if (_lenient) _buf.limit(_frameStart);
+            return false;
+        }
+        _position += len;
+        return true;
+    }
+
+    // reads the v1 transaction at _frameStart, returning its length or -1 if
+    // it is truncated
+    private int nextV1(boolean verify) throws IOException {
+        if (!ensure(V1_HEADER_LENGTH)) return -1;
+        long crc = _buf.getLong(_frameStart);
+        int count = _buf.getInt(_frameStart + 8);
+        if (count < 0) return corrupt("Corrupt transaction");
+
+        int len = V1_HEADER_LENGTH;
+        for (int i = 0; i < count; ++i) {
+            if (!ensure(len + 4)) return -1;
+            int msgLen = _buf.getInt(_frameStart + len);
+            if (msgLen < 0 || (long) len + 4 + msgLen > Integer.MAX_VALUE) return corrupt("Corrupt transaction");
+            len += 4;
+            if (!ensure(len + msgLen)) return -1;
+            addMessage(len, msgLen);
+            len += msgLen;
+        }
+
+        // ensure() may have moved the transaction within the buffer, so
+        // message offsets are only made absolute now that it's complete
+        for (int i = 0; i < _count; ++i) _offsets[i] += _frameStart;
+        if (verify) {
+            _crc.reset();
+            byte[] a = _buf.array();
+            int base = _buf.arrayOffset();
+            for (int i = 0; i < _count; ++i) _crc.update(a, base + _offsets[i], _lengths[i]);
+            if (crc != _crc.getValue()) return corrupt("bad CRC");
+        }
+        _storedCRC = crc;
+        return len;
+    }
+
+    // reads the v2 transaction at _frameStart, returning its length or -1 if
+    // it is truncated
+    private int nextV2(boolean verify) throws IOException {
+        if (!ensure(LogFormat.V2_FRAME_HEADER_LENGTH)) return -1;
+        int bodyLen = _buf.getInt(_frameStart + 4);
+        // no transaction has a length of zero, so this is a zero-filled
+        // region where a write never landed, and the end of the data
+        if (bodyLen == 0) return -1;
+        if (bodyLen < LogFormat.V2_FRAME_HEADER_LENGTH - 8 || bodyLen > Integer.MAX_VALUE - 8) return corrupt("Corrupt transaction");
+        int len = bodyLen + 8;
+        if (!ensure(len)) return -1;
+
+        // the crc covers every field, so nothing else is trusted until it's
+        // checked.  When the caller checks crcs itself, it's only checked
+        // here if the transaction turns out to be malformed, so that
+        // corruption is reported the same way either way.
+        long crc = _buf.getInt(_frameStart) & 0xffffffffL;
+        if (verify && !isV2CRCValid(crc, bodyLen)) return badV2CRC(len);
+        _storedCRC = crc;
+        int flags = _buf.getInt(_frameStart + 8);
+        if ((flags & ~0xff) != 0) return v2Error("Unsupported transaction flags " + flags, verify, crc, bodyLen);
+        if (flags != 0) return inflate(flags, verify, crc, len);
+        if (!parseMessages(_buf, _frameStart + 12, _frameStart + len)) return v2Error("Corrupt transaction", verify, crc, bodyLen);
+        return len;
+    }
+
+    // finishes reading a compressed v2 transaction, whose flags hold the id
+    // of the codec that compressed it
+    private int inflate(int codecId, boolean verify, long crc, int len) throws IOException {
+        CompressionCodec codec = CompressionCodecs.get(codecId);
+        if (codec == null) return v2Error("Unknown compression codec " + codecId, verify, crc, len - 8);
+        int rawLen = _buf.getInt(_frameStart + 12);
+        if (rawLen < 4) return v2Error("Corrupt transaction", verify, crc, len - 8);
+        _compressed = true;
+        if (!verify) return len;
+
+        if (_inflated == null || _inflated.capacity() < rawLen) {
+            _inflated = ByteBuffer.allocate(Math.max(rawLen, 8192));
+            _inflatedView = null;
+        }
+        _inflated.clear().limit(rawLen);
+        ByteBuffer src = _buf.duplicate();
+        src.limit(_frameStart + len).position(_frameStart + 16);
+        try {
+            codec.decompress(src, _inflated);
+        } catch (IOException e) {
+            throw new IOException("Invalid compressed transaction at offset " + _position, e);
+        }
+        if (!parseMessages(_inflated, 0, rawLen)) throw new IOException("Corrupt transaction at offset " + _position);
+        return len;
+    }
+
+    // reads the count and messages stored in b between start and end into
+    // _offsets and _lengths, returning false if they don't fit exactly
+    private boolean parseMessages(ByteBuffer b, int start, int end) {
+        int count = b.getInt(start);
+        if (count < 0) return false;
+        int off = start + 4;
+        for (int i = 0; i < count; ++i) {
+            int msgLen = off + 4 <= end ? b.getInt(off) : -1;
+            if (msgLen < 0 || msgLen > end - off - 4) return false;
+            off += 4;
+            addMessage(off, msgLen);
+            off += msgLen;
+        }
+        return off == end;
+    }
+
+    private boolean isV2CRCValid(long crc, int bodyLen) {
+        _crc.reset();
+        _crc.update(_buf.array(), _buf.arrayOffset() + _frameStart + 4, bodyLen + 4);
+        return crc == _crc.getValue();
+    }
+
+    // reports a malformed v2 transaction, as a bad CRC if the CRC hasn't
+    // been checked yet and is wrong
+    private int v2Error(String message, boolean verified, long crc, int bodyLen) throws IOException {
+        if (!verified && !isV2CRCValid(crc, bodyLen)) return badV2CRC(bodyLen + 8);
+        throw new IOException(message + " at offset " + _position);
+    }
+
+    // reports a v2 transaction of the specified length with a bad CRC
+    private int badV2CRC(int len) throws IOException {
+        if (isPreallocatedTail(_channel, _position + len, _limit)) return -1;
+        return corrupt("bad CRC");
+    }
+
+    // reports a bad transaction, returning -1 to end the read if lenient
+    private int corrupt(String message) throws IOException {
+        if (_lenient) return -1;
+        throw new IOException(message + " at offset " + _position);
+    }
+
+    /**
+     * Returns true if the specified region of the channel is non-empty and
+     * contains only zeros, i.e. a transaction ending at the start of it was
+     * the last one written into preallocated space.
+     */
+    static boolean isPreallocatedTail(FileChannel channel, long from, long to) throws IOException {
+        if (from >= to) return false;
+        ByteBuffer b = ByteBuffer.allocate((int) Math.min(to - from, 64 * 1024));
+        while (from < to) {
+            b.clear();
+            if (to - from < b.capacity()) b.limit((int) (to - from));
+            int n = channel.read(b, from);
+            if (n < 0) break;
+            for (int i = 0; i < n; ++i) {
+                if (b.get(i) != 0) return false;
+            }
+            from += n;
+        }
+        return true;
+    }
+
+    @Override
+    public void dispatch(MessageHandler h) {
+        if (h instanceof ByteBufferMessageHandler) {
+            dispatch((ByteBufferMessageHandler) h);
+            return;
+        }
+        ByteBuffer src = _compressed ? _inflated : _buf;
+        byte[] a = src.array();
+        int base = src.arrayOffset();
+        PositionedMessageHandler ph = h instanceof PositionedMessageHandler ? (PositionedMessageHandler) h : null;
+        for (int i = 0; i < _count; ++i) {
+            int off = base + _offsets[i];
+            byte[] message = Arrays.copyOfRange(a, off, off + _lengths[i]);
+            if (ph != null) {
+                ph.handleMessage(message, _compressed ? -1 : _bufStart + _offsets[i]);
+            } else {
+                h.handleMessage(message);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private void dispatch(ByteBufferMessageHandler h) {
+        ByteBuffer view;
+        if (_compressed) {
+            if (_inflatedView == null) _inflatedView = _inflated.asReadOnlyBuffer();
+            view = _inflatedView;
+        } else {
+            if (_view == null) _view = _buf.asReadOnlyBuffer();
+            view = _view;
+        }
+        for (int i = 0; i < _count; ++i) {
+            view.clear();
+            view.position(_offsets[i]);
+            view.limit(_offsets[i] + _lengths[i]);
+            h.handleMessage(view);
+        }
+    }
+
+    private void addMessage(int offset, int length) {
+        if (_count == _offsets.length) {
+            _offsets = Arrays.copyOf(_offsets, _count * 2);
+            _lengths = Arrays.copyOf(_lengths, _count * 2);
+        }
+        _offsets[_count] = offset;
+        _lengths[_count] = length;
+        ++_count;
+    }
+
+    /**
+     * Ensures that the first n bytes of the current transaction are in the
+     * buffer, reading more data (and compacting or growing the buffer) as
+     * needed.
+     *
+     * @return false if the data ends before n bytes are available
+     */
+    private boolean ensure(int n) throws IOException {
+        if (_frameStart + n <= _buf.limit()) return true;
+        if (_bufStart + _frameStart + n > _limit) return false;
+
+        // move the current transaction to the front of the buffer
+        if (n > _buf.capacity()) {
+            int cap = _buf.capacity();
+            while (cap < n) cap = (int) Math.min(Integer.MAX_VALUE, cap * 2L);
+            ByteBuffer b = ByteBuffer.allocate(cap);
+            _buf.position(_frameStart);
+            b.put(_buf);
+            _buf = b;
+            _view = null;
+        } else {
+            _buf.position(_frameStart);
+            _buf.compact();
+        }
+        _bufStart += _frameStart;
+        _frameStart = 0;
+
+        // fill as much of the buffer as the data allows
+        long remaining = _limit - (_bufStart + _buf.position());
+        if (remaining < _buf.remaining()) _buf.limit(_buf.position() + (int) remaining);
+        while (_buf.hasRemaining()) {
+            if (_channel.read(_buf, _bufStart + _buf.position()) < 0) break;
+        }
+        _buf.flip();
+        return n <= _buf.limit();
+    }
+}
@@ -0,0 +1,151 @@
+package com.martiansoftware.util;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reads the values of an EventSourcedKVMap that keeps its values on disk
+ * (see EventSourcedKVMap.openOnDisk()).  Each value is represented in memory
+ * by a Locator giving the offset and length of its UTF-8 bytes in either the
+ * log or the current snapshot.  Recently read values are kept in a bounded
+ * LRU cache keyed by Locator; since a Locator is replaced whenever its value
+ * changes or moves, cached values never need to be invalidated.
+ *
+ * @author mlamb
+ */
+final class DiskValues implements Closeable {
+
+    /**
+     * The location of a value
+     */
+    static final class Locator {
+        final Source source;
+        final long offset;
+        final int length;
+
+        Locator(Source source, long offset, int length) {
+            this.source = source;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * A file that values are read from, with positional reads that don't
+     * block one another
+     */
+    static final class Source implements Closeable {
+        private final File _file;
+        private volatile FileChannel _channel;
+        private volatile boolean _closed = false;
+
+        Source(File f) throws IOException {
+            _file = f;
+            _channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+        }
+
+        byte[] read(long offset, int length) throws IOException {
+            for (;;) {
+                FileChannel c = _channel;
+                ByteBuffer b = ByteBuffer.allocate(length);
+                try {
+                    while (b.hasRemaining()) {
+                        if (c.read(b, offset + b.position()) < 0) throw new EOFException();
+                    }
+                    return b.array();
+                } catch (ClosedByInterruptException e) {
+                    throw e;
+                } catch (ClosedChannelException e) {
+                    // an interrupt during another thread's read closes the
+                    // channel for everyone, so it's reopened
+                    synchronized(this) {
+                        if (_closed) throw e;
+                        if (_channel == c) _channel = FileChannel.open(_file.toPath(), StandardOpenOption.READ);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            _closed = true;
+            _channel.close();
+        }
+    }
+
+    private final Source _log;
+    private Source _snapshot = null;
+    private final Map<Locator, String> _cache;
+
+    /**
+     * Creates a new DiskValues reading from the specified log file
+     *
+     * @param log the log file
+     * @param cacheSize the maximum number of values to cache
+     */
+    DiskValues(File log, final int cacheSize) throws IOException {
+        _log = new Source(log);
+        _cache = cacheSize == 0 ? null : Collections.synchronizedMap(new LinkedHashMap<Locator, String>(16, 0.75f, true) {
+            @Override protected boolean removeEldestEntry(Map.Entry<Locator, String> eldest) {
+                return size() > cacheSize;
+            }
+        });
+    }
+
+    Locator inLog(long offset, int length) {
+        return new Locator(_log, offset, length);
+    }
+
+    /**
+     * Makes s the current snapshot, closing the previous one.  Locators into
+     * the previous snapshot can no longer be read.
+     */
+    void setSnapshot(Source s) throws IOException {
+        Source old = _snapshot;
+        _snapshot = s;
+        if (old != null) old.close();
+    }
+
+    String cached(Locator l) {
+        return _cache == null ? null : _cache.get(l);
+    }
+
+    void cache(Locator l, String value) {
+        if (_cache != null) _cache.put(l, value);
+    }
+
+    /**
+     * Carries any cached value over to a value's new location
+     */
+    void moved(Locator from, Locator to) {
+        if (_cache == null) return;
+        String value = _cache.remove(from);
+        if (value != null) _cache.put(to, value);
+    }
+
+    byte[] readBytes(Locator l) throws IOException {
+        return l.source.read(l.offset, l.length);
+    }
+
+    String read(Locator l) throws IOException {
+        return new String(readBytes(l), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        _log.close();
+        if (_snapshot != null) _snapshot.close();
+        if (_cache != null) _cache.clear();
+    }
+}
@@ -1,78 +1,526 @@
 package com.martiansoftware.util;
 
 import com.martiansoftware.messagelog.FileMessageLog;
-import com.martiansoftware.messagelog.MessageHandler;
+import com.martiansoftware.messagelog.PositionedMessageHandler;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
 import java.io.DataInputStream;
-import java.io.DataOutput;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
 
 /**
+ * A sorted String-to-String Map whose contents are persisted to a
+ * FileMessageLog.  Every mutation is logged, and the map is rebuilt from the
+ * log when it is opened.
+ * 
+ * To keep startup time proportional to the size of the map rather than to
+ * its entire write history, the map can write snapshots of its contents (see
+ * snapshot() and setSnapshotInterval()).  A snapshot is stored in a file
+ * alongside the log (see getSnapshotFile()) and records the log position it
+ * covers; on open, the snapshot is loaded and only the log entries written
+ * after it are replayed.  compact() additionally discards the log entries
+ * covered by the snapshot.
+ *
+ * A map opened with openOnDisk() keeps only its keys in memory.  Each value
+ * is represented by its location in the log or the snapshot, and get() reads
+ * it from there, through a bounded LRU cache of recently used values.  This
+ * allows maps much larger than the heap; the files are the same either way.
+ * 
+ * Each update is logged as a single record: a one-byte opcode followed by
+ * its keys and values in the compact encoding described in KVRecords
+ * (varint lengths and UTF-8, with no limit on string length).  The keys of
+ * a putAll() record, and of a snapshot, are prefix-compressed against the
+ * preceding key.  Logs written by earlier versions, whose records begin with
+ * a two-byte opcode, are still read.
+ * 
+ * Updates that must survive a crash together can be collected in a Batch
+ * (see newBatch()), which is logged as a single record, and so with a single
+ * write and sync.  Batches are log-atomic only: readers may see them half
+ * applied.
+ * 
+ * The map is safe for concurrent use.  Reads never block: they go straight
+ * to a ConcurrentSkipListMap, and scale across threads.  Updates are
+ * serialized, and each is logged before it is applied, so a reader never
+ * sees a value that hasn't been logged.  Single-key updates are atomic;
+ * putAll(), clear() and batches are logged atomically but their effects may
+ * be seen by concurrent readers part way through being applied, and
+ * iterators are weakly consistent, as with any ConcurrentSkipListMap.  Keys
+ * may not be null, but values may.
  *
  * @author mlamb
  */
 public class EventSourcedKVMap implements Map<String, String> {
 
-    // TODO: allow custom comparator
+    private static final int SNAPSHOT_MAGIC = 0x45534b53; // "ESKS"
+    private static final int SNAPSHOT_VERSION = 2;
+    
+    // record opcodes.  Records written by earlier versions begin with a char,
+    // and so with a zero byte.
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final byte OP_CLEAR = 3;
+    private static final byte OP_PUT_ALL = 4;
+    private static final byte OP_BATCH = 5; // a count followed by that many put, remove and clear records
+    
+    // stands in for null values, which ConcurrentSkipListMap doesn't allow
+    private static final Object NULL = new Object();
+    
     private final FileMessageLog _fml;
-    private final TreeMap<String, String> _map;
+    private final ConcurrentSkipListMap<String, Object> _map; // values are Strings, NULL, or DiskValues.Locators
+    private volatile int _size = 0; // ConcurrentSkipListMap.size() is O(n); written only while synchronized on _fml
+    private final DiskValues _disk; // null unless values are kept on disk
+    private final File _snapshotFile;
+    private int _snapshotInterval = 0;
+    private int _updatesSinceSnapshot = 0;
+    
+    // reused for every record logged; guarded by synchronizing on _fml
+    private final RecordBuffer _record = new RecordBuffer();
+    private final DataOutputStream _recordOut = new DataOutputStream(_record);
     
     public EventSourcedKVMap(File f) throws IOException {
         this(f, null);
     }
     
     public EventSourcedKVMap(File f, Comparator<? super String> comparator) throws IOException {
-        _map = comparator == null ? new TreeMap<String, String>() : new TreeMap<String, String>(comparator);
-        _fml = new FileMessageLog(f, new MH());        
+        this(f, comparator, -1);
+    }
+
+    private EventSourcedKVMap(File f, Comparator<? super String> comparator, int cacheSize) throws IOException {
+        _map = comparator == null ? new ConcurrentSkipListMap<String, Object>() : new ConcurrentSkipListMap<String, Object>(comparator);
+        _snapshotFile = getSnapshotFile(f);
+        _fml = new FileMessageLog(f);
+        DiskValues disk = null;
+        try {
+            _disk = disk = cacheSize < 0 ? null : new DiskValues(f, cacheSize);
+            
+            long position = readSnapshot();
+            if (position < 0) {
+                position = 0;
+            } else if (position > _fml.getPosition()) {
+                // the log was truncated by compact() after this snapshot
+                // was written; rewrite it to cover what is now the start of
+                // the log before anything else is appended.
+                position = 0;
+                writeSnapshot(0);
+            }
+            _fml.replayFromPosition(position, new MH());
+        } catch (Throwable t) {
+            // nobody else can close the log (and release its lock)
+            try {
+                try {
+                    _fml.close();
+                } finally {
+                    if (disk != null) disk.close();
+                }
+            } catch (Throwable suppressed) {
+                t.addSuppressed(suppressed);
+            }
+            throw t;
+        }
+    }
+    
+    /**
+     * Opens a map that keeps only its keys in memory, reading each value from
+     * the log or snapshot when it is needed.  Values that are read or written
+     * are cached, up to the specified number of them.
+     *
+     * @param f the log file backing the map
+     * @param comparator the comparator used to order the keys, or null for
+     * their natural order
+     * @param cacheSize the maximum number of values to cache; zero disables
+     * caching
+     * @return the map
+     * @throws IOException
+     */
+    public static EventSourcedKVMap openOnDisk(File f, Comparator<? super String> comparator, int cacheSize) throws IOException {
+        if (cacheSize < 0) throw new IllegalArgumentException("cacheSize must not be negative");
+        return new EventSourcedKVMap(f, comparator, cacheSize);
+    }
+
+    /**
+     * Returns the file used to store snapshots of the map backed by the
+     * specified log file.
+     * 
+     * @param f the log file backing the map
+     * @return the file used to store snapshots of the map
+     */
+    public static File getSnapshotFile(File f) {
+        return new File(f.getPath() + ".snapshot");
+    }
+
+    /**
+     * Returns true if this map keeps its values on disk (see openOnDisk())
+     *
+     * @return true if this map keeps its values on disk
+     */
+    public boolean isOnDisk() {
+        return _disk != null;
+    }
+    
+    /**
+     * Causes a snapshot to be written automatically after every
+     * snapshotInterval updates.  Zero (the default) disables automatic
+     * snapshots.
+     * 
+     * @param snapshotInterval the number of updates between snapshots, or
+     * zero to disable automatic snapshots
+     * @return this EventSourcedKVMap
+     */
+    public EventSourcedKVMap setSnapshotInterval(int snapshotInterval) {
+        if (snapshotInterval < 0) throw new IllegalArgumentException("snapshotInterval must not be negative");
+        synchronized(_fml) {
+            _snapshotInterval = snapshotInterval;
+        }
+        return this;
+    }
+    
+    /**
+     * Writes a snapshot of the current contents of the map.  The next time
+     * the map is opened, only updates made after the snapshot will be read
+     * from the log.
+     * 
+     * @throws IOException 
+     */
+    public void snapshot() throws IOException {
+        synchronized(_fml) {
+            _fml.sync();
+            writeSnapshot(_fml.getPosition());
+        }
+    }
+    
+    /**
+     * Writes a snapshot of the current contents of the map and then discards
+     * the entire log, which the snapshot makes redundant.
+     * 
+     * @throws IOException 
+     */
+    public void compact() throws IOException {
+        synchronized(_fml) {
+            snapshot();
+            _fml.truncate();
+            writeSnapshot(0);
+        }
     }
     
-    @Override public int size() { return _map.size(); }
+    @Override public int size() { return _size; }
     @Override public boolean isEmpty() { return _map.isEmpty(); }
     @Override public boolean containsKey(Object o) { return _map.containsKey(o); }
-    @Override public boolean containsValue(Object o) { return _map.containsValue(o); }
-    @Override public String get(Object o) { return _map.get(o); }
+    @Override public String get(Object o) { return value((String) o, _map.get(o)); }
     @Override public Set<String> keySet() { return Collections.unmodifiableSet(_map.keySet()); }
-    @Override public Collection<String> values() { return Collections.unmodifiableCollection(_map.values()); }
-    @Override public Set<Entry<String, String>> entrySet() { return Collections.unmodifiableSet(_map.entrySet()); }
+    
+    @Override public boolean containsValue(Object o) {
+        for (Entry<String, Object> e : _map.entrySet()) {
+            if (Objects.equals(o, value(e.getKey(), e.getValue()))) return true;
+        }
+        return false;
+    }
+    
+    @Override public Collection<String> values() {
+        return new AbstractCollection<String>() {
+            @Override public int size() { return _size; }
+            @Override public boolean contains(Object o) { return containsValue(o); }
+            @Override public Iterator<String> iterator() {
+                final Iterator<Entry<String, Object>> i = _map.entrySet().iterator();
+                return new Iterator<String>() {
+                    @Override public boolean hasNext() { return i.hasNext(); }
+                    @Override public String next() {
+                        Entry<String, Object> e = i.next();
+                        return value(e.getKey(), e.getValue());
+                    }
+                    @Override public void remove() { throw new UnsupportedOperationException(); }
+                };
+            }
+        };
+    }
+    
+    @Override public Set<Entry<String, String>> entrySet() {
+        return new AbstractSet<Entry<String, String>>() {
+            @Override public int size() { return _size; }
+            @Override public Iterator<Entry<String, String>> iterator() {
+                final Iterator<Entry<String, Object>> i = _map.entrySet().iterator();
+                return new Iterator<Entry<String, String>>() {
+                    @Override public boolean hasNext() { return i.hasNext(); }
+                    @Override public Entry<String, String> next() {
+                        Entry<String, Object> e = i.next();
+                        return new AbstractMap.SimpleImmutableEntry<>(e.getKey(), value(e.getKey(), e.getValue()));
+                    }
+                    @Override public void remove() { throw new UnsupportedOperationException(); }
+                };
+            }
+        };
+    }
 
     @Override public boolean equals(Object o) {
         if (o == null || !(o instanceof EventSourcedKVMap)) return false;
-        return _map.equals(((EventSourcedKVMap) o)._map);
+        EventSourcedKVMap m = (EventSourcedKVMap) o;
+        if (m.size() != size()) return false;
+        for (Entry<String, Object> e : _map.entrySet()) {
+            Object v = m._map.get(e.getKey());
+            if (v == null || !Objects.equals(m.value(e.getKey(), v), value(e.getKey(), e.getValue()))) return false;
+        }
+        return true;
+    }
+    @Override public int hashCode() {
+        int h = 0;
+        for (Entry<String, Object> e : _map.entrySet()) h += e.getKey().hashCode() ^ Objects.hashCode(value(e.getKey(), e.getValue()));
+        return h;
     }
-    @Override public int hashCode() { return _map.hashCode(); }
     
-    public void close() throws IOException { _fml.close(); }
+    public void close() throws IOException {
+        try {
+            _fml.close();
+        } finally {
+            if (_disk != null) _disk.close();
+        }
+    }
     public void sync() throws IOException { _fml.sync(); }
     
-    // it's utter insanity that writeUTF doesn't handle nulls.
-    private void writeString(DataOutput out, String s) throws IOException {
-        out.writeBoolean(s == null);
-        if (s != null) out.writeUTF(s);
-    }    
-    private String readString(DataInput in) throws IOException {
+    // must be called while synchronized on _fml.  Writes the snapshot to a
+    // temporary file and then moves it into place so that an existing
+    // snapshot is only ever replaced by a complete one.  When values are kept
+    // on disk, they are then read from the new snapshot, which allows the log
+    // to be truncated.
+    private void writeSnapshot(long position) throws IOException {
+        File tmp = new File(_snapshotFile.getPath() + ".tmp");
+        long[] offsets = _disk == null ? null : new long[_size];
+        int[] lengths = _disk == null ? null : new int[_size];
+        FileOutputStream fout = new FileOutputStream(tmp);
+        try {
+            CheckedOutputStream cout = new CheckedOutputStream(new BufferedOutputStream(fout, 65536), new CRC32());
+            // DataOutputStream.size() stops counting at 2 GB
+            CountingOutputStream count = new CountingOutputStream(cout);
+            DataOutputStream d = new DataOutputStream(count);
+            d.writeInt(SNAPSHOT_MAGIC);
+            d.writeInt(SNAPSHOT_VERSION);
+            d.writeLong(position);
+            d.writeInt(_size);
+            String prev = null;
+            int i = 0;
+            for (Map.Entry<String, Object> e : _map.entrySet()) {
+                KVRecords.writeKey(d, e.getKey(), prev);
+                Object v = e.getValue();
+                int len = v instanceof DiskValues.Locator
+                        ? KVRecords.writeUTF8(d, _disk.readBytes((DiskValues.Locator) v))
+                        : KVRecords.writeString(d, unmask(v));
+                if (offsets != null) {
+                    offsets[i] = count.getCount() - Math.max(len, 0);
+                    lengths[i] = len;
+                }
+                prev = e.getKey();
+                ++i;
+            }
+            d.writeLong(cout.getChecksum().getValue());
+            d.flush();
+            fout.getChannel().force(true);
+        } finally {
+            fout.close();
+        }
+        Files.move(tmp.toPath(), _snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        _updatesSinceSnapshot = 0;
+
+        if (_disk != null) {
+            // nothing has changed since the entries were written, so they
+            // come back in the same order
+            DiskValues.Source snapshot = new DiskValues.Source(_snapshotFile);
+            int i = 0;
+            for (Map.Entry<String, Object> e : _map.entrySet()) {
+                if (lengths[i] >= 0) {
+                    DiskValues.Locator l = new DiskValues.Locator(snapshot, offsets[i], lengths[i]);
+                    Object old = _map.put(e.getKey(), l);
+                    if (old instanceof DiskValues.Locator) _disk.moved((DiskValues.Locator) old, l);
+                }
+                ++i;
+            }
+            _disk.setSnapshot(snapshot);
+        }
+    }
+    
+    // loads the snapshot, if there is a valid one, into _map and returns the
+    // log position it covers.  Returns -1 if there is no valid snapshot.
+    private long readSnapshot() throws IOException {
+        FileInputStream fin;
+        try {
+            fin = new FileInputStream(_snapshotFile);
+        } catch (FileNotFoundException e) {
+            return -1;
+        }
+        DiskValues.Source snapshot = null;
+        try {
+            CountingInputStream counter = new CountingInputStream(new CheckedInputStream(new BufferedInputStream(fin, 65536), new CRC32()));
+            DataInputStream din = new DataInputStream(counter);
+            if (din.readInt() != SNAPSHOT_MAGIC) return -1;
+            int version = din.readInt();
+            if (version != 1 && version != SNAPSHOT_VERSION) return -1;
+            if (_disk != null && version == SNAPSHOT_VERSION) snapshot = new DiskValues.Source(_snapshotFile);
+            long position = din.readLong();
+            int count = din.readInt();
+            ConcurrentSkipListMap<String, Object> m = new ConcurrentSkipListMap<>(_map.comparator());
+            String k = null;
+            for (int i = 0; i < count; ++i) {
+                if (version == 1) {
+                    m.put(readLegacyString(din), mask(readLegacyString(din)));
+                    continue;
+                }
+                k = KVRecords.readKey(din, k);
+                if (snapshot == null) {
+                    m.put(k, mask(KVRecords.readString(din)));
+                    continue;
+                }
+                int len = KVRecords.readVarint(din) - 1;
+                if (len < 0) {
+                    m.put(k, NULL);
+                } else {
+                    m.put(k, new DiskValues.Locator(snapshot, counter.getCount(), len));
+                    if (din.skipBytes(len) != len) throw new EOFException();
+                }
+            }
+            long crc = ((CheckedInputStream) counter.getIn()).getChecksum().getValue();
+            if (din.readLong() != crc) return -1;
+            _map.putAll(m);
+            _size = _map.size();
+            if (snapshot != null) {
+                _disk.setSnapshot(snapshot);
+                snapshot = null;
+            }
+            return position;
+        } catch (EOFException e) {
+            return -1; // incomplete snapshot; fall back to a full replay
+        } catch (IOException e) {
+            return -1; // malformed snapshot; the crc check can't be reached
+        } finally {
+            fin.close();
+            if (snapshot != null) snapshot.close();
+        }
+    }
+    
+    // must be called while synchronized on _fml after each logged update
+    private void updated() throws IOException {
+        if (_snapshotInterval > 0 && ++_updatesSinceSnapshot >= _snapshotInterval) snapshot();
+    }
+    
+    private static Object mask(String v) {
+        return v == null ? NULL : v;
+    }
+    
+    private static String unmask(Object v) {
+        return v == NULL ? null : (String) v;
+    }
+    
+    // returns the value represented by v, the current mapping for key,
+    // reading it from disk if necessary.  A value's Locator is replaced when
+    // the value changes or moves (and a snapshot is only discarded, or the
+    // log truncated, after all of its values have moved), so a read is only
+    // trusted if the Locator is still current afterwards.
+    private String value(String key, Object v) {
+        while (v instanceof DiskValues.Locator) {
+            DiskValues.Locator l = (DiskValues.Locator) v;
+            String result = _disk.cached(l);
+            if (result != null) return result;
+            IOException failure = null;
+            try {
+                result = _disk.read(l);
+            } catch (IOException e) {
+                failure = e;
+            }
+            Object current = _map.get(key);
+            if (current == v) {
+                if (failure != null) throw new RuntimeException(failure);
+                _disk.cache(l, result);
+                return result;
+            }
+            v = current;
+        }
+        return unmask(v);
+    }
+
+    // returns what _map should hold for value v, which was just logged as
+    // the len UTF-8 bytes ending end bytes before the end of the log
+    private Object stored(String v, int len, int end) {
+        if (_disk == null || v == null) return mask(v);
+        DiskValues.Locator l = _disk.inLog(_fml.getPosition() - end - len, len);
+        _disk.cache(l, v);
+        return l;
+    }
+
+    // these apply updates to _map, and must be called while synchronized on
+    // _fml (or while opening the map)
+    private Object apply(String k, Object v) {
+        Object prev = _map.put(k, v);
+        if (prev == null) ++_size;
+        return prev;
+    }
+    private Object applyRemove(String k) {
+        Object prev = _map.remove(k);
+        if (prev != null) --_size;
+        return prev;
+    }
+    private void applyClear() {
+        _map.clear();
+        _size = 0;
+    }
+    
+    // strings in records written by earlier versions; a null flag followed
+    // by writeUTF(), which can't handle nulls.
+    private static String readLegacyString(DataInput in) throws IOException {
         boolean isNull = in.readBoolean();
         return isNull ? null : in.readUTF();
     }
     
+    // records are logged as a single message in a transaction of their own,
+    // and the log is never compressed, so a record's last bytes are the last
+    // bytes of the log once it has been written
     @Override
     public String put(String k, String v) {
+        if (k == null) throw new NullPointerException();
         synchronized(_fml) {
-            String result = _map.put(k, v);
+            String result = _disk == null ? null : get(k);
+            int len;
             try {
-                DataOutputStream d = _fml.getLogOutputStream();
-                d.writeChar('p');
-                writeString(d, k);
-                writeString(d, v);
-                d.close();
+                DataOutputStream d = newRecord();
+                d.writeByte(OP_PUT);
+                KVRecords.writeString(d, k);
+                len = KVRecords.writeString(d, v);
+                logRecord();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            } finally {
+                _record.release();
+            }
+            Object prev = apply(k, stored(v, len, 0));
+            if (_disk == null) result = unmask(prev);
+            try {
+                updated();
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }            
@@ -85,12 +533,21 @@ public class EventSourcedKVMap implements Map<String, String> {
         if (!(o instanceof String)) return null;
         String k = (String) o;
         synchronized(_fml) {
-            String result = _map.remove(k);
+            if (!_map.containsKey(k)) return null;
+            String result = get(k);
+            try {
+                DataOutputStream d = newRecord();
+                d.writeByte(OP_REMOVE);
+                KVRecords.writeString(d, k);
+                logRecord();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            } finally {
+                _record.release();
+            }
+            applyRemove(k);
             try {
-                DataOutputStream d = _fml.getLogOutputStream();
-                d.writeChar('r');
-                writeString(d, k);
-                d.close();
+                updated();
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }            
@@ -101,17 +558,45 @@ public class EventSourcedKVMap implements Map<String, String> {
     @Override
     public void putAll(Map<? extends String, ? extends String> map) {
         if (map.isEmpty()) return;
+        for (String k : map.keySet()) {
+            if (k == null) throw new NullPointerException();
+        }
         synchronized(_fml) {
-            _map.putAll(map);
+            // where each value ends, counting back from the end of the record
+            int[] ends = _disk == null ? null : new int[map.size()];
+            int[] lengths = _disk == null ? null : new int[map.size()];
             try {
-                DataOutputStream d = _fml.getLogOutputStream();
-                d.writeChar('P');
-                d.writeInt(map.size());
+                DataOutputStream d = newRecord();
+                d.writeByte(OP_PUT_ALL);
+                KVRecords.writeVarint(d, map.size());
+                String prev = null;
+                int i = 0;
                 for (Map.Entry<? extends String, ? extends String> e : map.entrySet()) {
-                    writeString(d, e.getKey());
-                    writeString(d, e.getValue());
+                    KVRecords.writeKey(d, e.getKey(), prev);
+                    int len = KVRecords.writeString(d, e.getValue());
+                    if (ends != null) {
+                        ends[i] = _record.size();
+                        lengths[i] = len;
+                    }
+                    prev = e.getKey();
+                    ++i;
+                }
+                if (ends != null) {
+                    for (int j = 0; j < i; ++j) ends[j] = _record.size() - ends[j];
                 }
-                d.close();
+                logRecord();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            } finally {
+                _record.release();
+            }
+            int i = 0;
+            for (Map.Entry<? extends String, ? extends String> e : map.entrySet()) {
+                apply(e.getKey(), ends == null ? mask(e.getValue()) : stored(e.getValue(), lengths[i], ends[i]));
+                ++i;
+            }
+            try {
+                updated();
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }            
@@ -123,31 +608,300 @@ public class EventSourcedKVMap implements Map<String, String> {
         synchronized(_fml) {
             if (_map.isEmpty()) return;
             try {
-                _fml.log(new byte[] {'c'});
+                _fml.log(new byte[] {OP_CLEAR});
+                applyClear();
+                updated();
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }                        
         }
     }
     
-    private class MH implements MessageHandler {
+    /**
+     * Returns a new, empty Batch of updates to this map.  Batches are atomic
+     * in the log only; see Batch.
+     * 
+     * @return a new Batch
+     */
+    public Batch newBatch() {
+        return new Batch();
+    }
+    
+    /**
+     * A log-atomic sequence of puts, removes and clears: they are logged as
+     * a single record when committed, so after a crash either all of them
+     * are replayed or none are.  They are NOT atomic to readers.  They are
+     * applied to the map one at a time while other updates wait, so a
+     * concurrent reader may see some of a batch's updates but not others,
+     * as with putAll().  A Batch is not thread-safe.
+     */
+    public class Batch {
+        private final List<String> _keys = new ArrayList<>(); // null for a clear
+        private final List<String> _values = new ArrayList<>();
+        private final List<Byte> _ops = new ArrayList<>();
+        
+        private Batch() {
+        }
+        
+        public Batch put(String k, String v) {
+            if (k == null) throw new NullPointerException();
+            return add(OP_PUT, k, v);
+        }
+        
+        public Batch remove(String k) {
+            if (k == null) throw new NullPointerException();
+            return add(OP_REMOVE, k, null);
+        }
+        
+        public Batch clear() {
+            return add(OP_CLEAR, null, null);
+        }
+        
+        /**
+         * Returns the number of updates in this batch
+         * 
+         * @return the number of updates in this batch
+         */
+        public int size() {
+            return _ops.size();
+        }
+        
+        /**
+         * Logs and applies the updates in this batch, leaving it empty and
+         * ready for reuse.  If the batch can't be logged, none of its
+         * updates are applied.  Concurrent readers may see the updates part
+         * way through being applied.
+         * 
+         * @throws IOException if the batch cannot be logged
+         */
+        public void commit() throws IOException {
+            if (_ops.isEmpty()) return;
+            int n = _ops.size();
+            synchronized(_fml) {
+                // where each value ends, counting back from the end of the record
+                int[] ends = _disk == null ? null : new int[n];
+                int[] lengths = _disk == null ? null : new int[n];
+                try {
+                    DataOutputStream d = newRecord();
+                    d.writeByte(OP_BATCH);
+                    KVRecords.writeVarint(d, n);
+                    for (int i = 0; i < n; ++i) {
+                        byte op = _ops.get(i);
+                        d.writeByte(op);
+                        if (op == OP_CLEAR) continue;
+                        KVRecords.writeString(d, _keys.get(i));
+                        if (op == OP_PUT) {
+                            int len = KVRecords.writeString(d, _values.get(i));
+                            if (ends != null) {
+                                ends[i] = _record.size();
+                                lengths[i] = len;
+                            }
+                        }
+                    }
+                    if (ends != null) {
+                        for (int i = 0; i < n; ++i) ends[i] = _record.size() - ends[i];
+                    }
+                    logRecord();
+                } finally {
+                    _record.release();
+                }
+                for (int i = 0; i < n; ++i) {
+                    switch (_ops.get(i)) {
+                        case OP_PUT: String v = _values.get(i);
+                                     apply(_keys.get(i), ends == null ? mask(v) : stored(v, lengths[i], ends[i]));
+                                     break;
+                        case OP_REMOVE: applyRemove(_keys.get(i)); break;
+                        default: applyClear();
+                    }
+                }
+                _ops.clear();
+                _keys.clear();
+                _values.clear();
+                updated();
+            }
+        }
+        
+        private Batch add(byte op, String k, String v) {
+            _ops.add(op);
+            _keys.add(k);
+            _values.add(v);
+            return this;
+        }
+    }
+    
+    // starts a new record in _record.  Must be called while synchronized on
+    // _fml, and followed by _record.release() in a finally block so that a
+    // record that fails part way through is discarded rather than logged.
+    private DataOutputStream newRecord() {
+        _record.reset();
+        return _recordOut;
+    }
+    
+    private void logRecord() throws IOException {
+        _fml.logBuffers(_record.contents());
+    }
+    
+    /**
+     * A reusable buffer for records, whose contents are logged without being
+     * copied
+     */
+    private static class RecordBuffer extends ByteArrayOutputStream {
+        private static final int INITIAL_SIZE = 256;
+        private static final int MAX_RETAINED_SIZE = 64 * 1024;
+
+        RecordBuffer() {
+            super(INITIAL_SIZE);
+        }
+
+        ByteBuffer contents() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+
+        // empties the buffer, dropping it if a large record made it grow
+        void release() {
+            count = 0;
+            if (buf.length > MAX_RETAINED_SIZE) buf = new byte[INITIAL_SIZE];
+        }
+    }
+    
+    /**
+     * Counts the bytes written through it
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long _count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        long getCount() {
+            return _count;
+        }
+
+        @Override public void write(int b) throws IOException {
+            out.write(b);
+            ++_count;
+        }
+
+        @Override public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            _count += len;
+        }
+    }
+    
+    /**
+     * Counts the bytes read through it, which for a stream at the start of a
+     * file is the file offset of the next byte
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private long _count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        long getCount() {
+            return _count;
+        }
+
+        InputStream getIn() {
+            return in;
+        }
+
+        @Override public int read() throws IOException {
+            int result = in.read();
+            if (result >= 0) ++_count;
+            return result;
+        }
+
+        @Override public int read(byte[] b, int off, int len) throws IOException {
+            int result = in.read(b, off, len);
+            if (result > 0) _count += result;
+            return result;
+        }
+
+        @Override public long skip(long n) throws IOException {
+            long result = in.skip(n);
+            _count += result;
+            return result;
+        }
+
+        @Override public boolean markSupported() {
+            return false;
+        }
+    }
+
+    private class MH extends PositionedMessageHandler {
 
         @Override
-        public void handleMessage(byte[] message) {
-            DataInputStream din = new DataInputStream(new ByteArrayInputStream(message));
+        public void handleMessage(byte[] message, long offset) {
+            // older versions of clear() logged a single 'c' byte
+            if (message.length == 1 && message[0] == 'c') {
+                applyClear();
+                return;
+            }
+            ByteArrayInputStream bin = new ByteArrayInputStream(message);
+            DataInputStream din = new DataInputStream(bin);
             try {
-                switch(din.readChar()) {
-                    case 'p': _map.put(readString(din), readString(din)); break;
-                    case 'r': _map.remove(readString(din)); break;
-                    case 'c': _map.clear(); break;
-                    case 'P': int count = din.readInt();
-                              for (int i = 0; i < count; ++i) _map.put(readString(din), readString(din));
-                              break;
-                    default:  throw new RuntimeException("Unrecognized command '" + (char) message[0] + "'");
+                if (message[0] == 0) {
+                    replayLegacy(din);
+                    return;
+                }
+                // values are located where they were logged, if the
+                // location is known
+                long end = _disk == null || offset < 0 ? -1 : offset + message.length;
+                byte op = din.readByte();
+                if (op == OP_BATCH) {
+                    int count = KVRecords.readVarint(din);
+                    for (int i = 0; i < count; ++i) replay(din.readByte(), din, bin, end);
+                } else {
+                    replay(op, din, bin, end);
                 }
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
-        }        
+        }
+        
+        private void replay(byte op, DataInputStream din, ByteArrayInputStream bin, long end) throws IOException {
+            switch(op) {
+                case OP_PUT: apply(KVRecords.readString(din), readValue(din, bin, end)); break;
+                case OP_REMOVE: applyRemove(KVRecords.readString(din)); break;
+                case OP_CLEAR: applyClear(); break;
+                case OP_PUT_ALL: int count = KVRecords.readVarint(din);
+                                 String k = null;
+                                 for (int i = 0; i < count; ++i) {
+                                     k = KVRecords.readKey(din, k);
+                                     apply(k, readValue(din, bin, end));
+                                 }
+                                 break;
+                default: throw new RuntimeException("Unrecognized command " + op);
+            }
+        }
+        
+        // reads a value for _map from a record ending at file offset end,
+        // or at an unknown location if end is -1
+        private Object readValue(DataInputStream din, ByteArrayInputStream bin, long end) throws IOException {
+            if (end < 0) return mask(KVRecords.readString(din));
+            int len = KVRecords.readVarint(din) - 1;
+            if (len < 0) return NULL;
+            long offset = end - bin.available();
+            if (din.skipBytes(len) != len) throw new EOFException();
+            return _disk.inLog(offset, len);
+        }
+
+        // values from records written by earlier versions are kept in memory
+        // until the next snapshot, since they aren't stored as UTF-8
+        private void replayLegacy(DataInputStream din) throws IOException {
+            char op = din.readChar();
+            switch(op) {
+                case 'p': apply(readLegacyString(din), mask(readLegacyString(din))); break;
+                case 'r': applyRemove(readLegacyString(din)); break;
+                case 'c': applyClear(); break;
+                case 'P': int count = din.readInt();
+                          for (int i = 0; i < count; ++i) apply(readLegacyString(din), mask(readLegacyString(din)));
+                          break;
+                default:  throw new RuntimeException("Unrecognized command '" + op + "'");
+            }
+        }
     }
 }
@@ -0,0 +1,447 @@
+package com.martiansoftware.util;
+
+import com.martiansoftware.messagelog.ByteBufferMessageHandler;
+import com.martiansoftware.messagelog.FileMessageLog;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A map from long keys to long values whose contents are persisted to a
+ * FileMessageLog, for counters and id-to-offset tables that would otherwise
+ * be pushed through an EventSourcedKVMap as Strings.  Every mutation is
+ * logged, and the map is rebuilt from the log when it is opened.
+ *
+ * Entries are held in an open-addressing hash table of primitive keys and
+ * values (linear probing, with deletions shifting later entries back rather
+ * than leaving tombstones), so nothing is boxed and each entry costs 16
+ * bytes plus the table's spare capacity.  Each update is logged as a
+ * fixed-width record: a one-byte opcode followed by the key and the new
+ * value, as applicable.  addAndGet() logs the resulting value, so replay
+ * never needs to read the map.
+ *
+ * Snapshots work as they do for EventSourcedKVMap: see snapshot(),
+ * setSnapshotInterval() and compact().
+ *
+ * Methods that read a key that isn't present return zero; containsKey()
+ * tells zero values from missing keys.  The map is thread-safe; every
+ * operation synchronizes on the map.
+ *
+ * @author mlamb
+ */
+public class EventSourcedLongMap {
+
+    private static final int SNAPSHOT_MAGIC = 0x45534c53; // "ESLS"
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private static final byte OP_PUT = 1; // key, value
+    private static final byte OP_REMOVE = 2; // key
+    private static final byte OP_CLEAR = 3;
+    private static final int PUT_LENGTH = 17;
+    private static final int REMOVE_LENGTH = 9;
+
+    private static final int MIN_CAPACITY = 16;
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private final FileMessageLog _fml;
+    private final File _snapshotFile;
+    private int _snapshotInterval = 0;
+    private int _updatesSinceSnapshot = 0;
+
+    // the hash table.  Zero marks an empty slot, so the zero key is kept
+    // separately.
+    private long[] _keys;
+    private long[] _values;
+    private int _mask;
+    private int _count = 0; // entries in the table, excluding the zero key
+    private int _resizeAt;
+    private boolean _hasZeroKey = false;
+    private long _zeroKeyValue = 0;
+
+    // reused for every record logged
+    private final ByteBuffer _record = ByteBuffer.allocate(PUT_LENGTH);
+    private final ByteBuffer[] _records = {_record};
+
+    public EventSourcedLongMap(File f) throws IOException {
+        allocate(MIN_CAPACITY);
+        _snapshotFile = getSnapshotFile(f);
+        _fml = new FileMessageLog(f);
+        try {
+            long position = readSnapshot();
+            if (position < 0) {
+                position = 0;
+            } else if (position > _fml.getPosition()) {
+                // the log was truncated by compact() after this snapshot was
+                // written; see EventSourcedKVMap
+                position = 0;
+                writeSnapshot(0);
+            }
+            _fml.replayFromPosition(position, new MH());
+        } catch (Throwable t) {
+            // nobody else can close the log (and release its lock)
+            try {
+                _fml.close();
+            } catch (Throwable suppressed) {
+                t.addSuppressed(suppressed);
+            }
+            throw t;
+        }
+    }
+
+    /**
+     * Returns the file used to store snapshots of the map backed by the
+     * specified log file.
+     *
+     * @param f the log file backing the map
+     * @return the file used to store snapshots of the map
+     */
+    public static File getSnapshotFile(File f) {
+        return new File(f.getPath() + ".snapshot");
+    }
+
+    /**
+     * Receives the entries of an EventSourcedLongMap
+     */
+    public interface Visitor {
+        void visit(long key, long value);
+    }
+
+    /**
+     * Causes a snapshot to be written automatically after every
+     * snapshotInterval updates.  Zero (the default) disables automatic
+     * snapshots.
+     *
+     * @param snapshotInterval the number of updates between snapshots, or
+     * zero to disable automatic snapshots
+     * @return this EventSourcedLongMap
+     */
+    public synchronized EventSourcedLongMap setSnapshotInterval(int snapshotInterval) {
+        if (snapshotInterval < 0) throw new IllegalArgumentException("snapshotInterval must not be negative");
+        _snapshotInterval = snapshotInterval;
+        return this;
+    }
+
+    /**
+     * Writes a snapshot of the current contents of the map.  The next time
+     * the map is opened, only updates made after the snapshot will be read
+     * from the log.
+     *
+     * @throws IOException
+     */
+    public synchronized void snapshot() throws IOException {
+        _fml.sync();
+        writeSnapshot(_fml.getPosition());
+    }
+
+    /**
+     * Writes a snapshot of the current contents of the map and then discards
+     * the entire log, which the snapshot makes redundant.
+     *
+     * @throws IOException
+     */
+    public synchronized void compact() throws IOException {
+        snapshot();
+        _fml.truncate();
+        writeSnapshot(0);
+    }
+
+    public synchronized int size() {
+        return _hasZeroKey ? _count + 1 : _count;
+    }
+
+    public synchronized boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public synchronized boolean containsKey(long key) {
+        return key == 0 ? _hasZeroKey : indexOf(key) >= 0;
+    }
+
+    /**
+     * Returns the value for the specified key, or zero if it isn't present
+     *
+     * @param key the key
+     * @return the value, or zero
+     */
+    public synchronized long get(long key) {
+        if (key == 0) return _zeroKeyValue;
+        int i = indexOf(key);
+        return i < 0 ? 0 : _values[i];
+    }
+
+    /**
+     * Associates the specified value with the specified key
+     *
+     * @param key the key
+     * @param value the value
+     * @return the previous value, or zero if the key wasn't present
+     * @throws IOException if the update cannot be logged
+     */
+    public synchronized long put(long key, long value) throws IOException {
+        log(OP_PUT, key, value);
+        long result = store(key, value);
+        updated();
+        return result;
+    }
+
+    /**
+     * Adds delta to the value for the specified key, which is treated as
+     * zero if it isn't present
+     *
+     * @param key the key
+     * @param delta the amount to add
+     * @return the new value
+     * @throws IOException if the update cannot be logged
+     */
+    public synchronized long addAndGet(long key, long delta) throws IOException {
+        long result = get(key) + delta;
+        put(key, result);
+        return result;
+    }
+
+    /**
+     * Removes the specified key
+     *
+     * @param key the key
+     * @return the previous value, or zero if the key wasn't present
+     * @throws IOException if the update cannot be logged
+     */
+    public synchronized long remove(long key) throws IOException {
+        if (!containsKey(key)) return 0;
+        log(OP_REMOVE, key, 0);
+        long result = delete(key);
+        updated();
+        return result;
+    }
+
+    public synchronized void clear() throws IOException {
+        if (isEmpty()) return;
+        log(OP_CLEAR, 0, 0);
+        allocate(MIN_CAPACITY);
+        updated();
+    }
+
+    /**
+     * Passes every entry to the specified visitor, in no particular order.
+     * The map is locked while this runs, so the visitor must not update it.
+     *
+     * @param v the visitor
+     */
+    public synchronized void forEach(Visitor v) {
+        if (_hasZeroKey) v.visit(0, _zeroKeyValue);
+        long[] keys = _keys, values = _values;
+        for (int i = 0; i < keys.length; ++i) {
+            if (keys[i] != 0) v.visit(keys[i], values[i]);
+        }
+    }
+
+    public synchronized void close() throws IOException { _fml.close(); }
+    public synchronized void sync() throws IOException { _fml.sync(); }
+
+    private void log(byte op, long key, long value) throws IOException {
+        _record.clear();
+        _record.put(op);
+        if (op != OP_CLEAR) _record.putLong(key);
+        if (op == OP_PUT) _record.putLong(value);
+        _record.flip();
+        _fml.logBuffers(_records);
+    }
+
+    // must be called after each logged update
+    private void updated() throws IOException {
+        if (_snapshotInterval > 0 && ++_updatesSinceSnapshot >= _snapshotInterval) snapshot();
+    }
+
+    private void allocate(int capacity) {
+        _keys = new long[capacity];
+        _values = new long[capacity];
+        _mask = capacity - 1;
+        _resizeAt = capacity / 4 * 3;
+        _count = 0;
+        _hasZeroKey = false;
+        _zeroKeyValue = 0;
+    }
+
+    private int slot(long key) {
+        long h = key * 0x9e3779b97f4a7c15L;
+        return (int) (h ^ (h >>> 32)) & _mask;
+    }
+
+    // returns the slot holding key, which is not zero, or -1
+    private int indexOf(long key) {
+        for (int i = slot(key);; i = (i + 1) & _mask) {
+            long k = _keys[i];
+            if (k == key) return i;
+            if (k == 0) return -1;
+        }
+    }
+
+    // these apply updates to the table, returning the previous value
+    private long store(long key, long value) {
+        if (key == 0) {
+            long prev = _zeroKeyValue;
+            _hasZeroKey = true;
+            _zeroKeyValue = value;
+            return prev;
+        }
+        for (int i = slot(key);; i = (i + 1) & _mask) {
+            long k = _keys[i];
+            if (k == key) {
+                long prev = _values[i];
+                _values[i] = value;
+                return prev;
+            }
+            if (k == 0) {
+                _keys[i] = key;
+                _values[i] = value;
+                if (++_count > _resizeAt) rehash();
+                return 0;
+            }
+        }
+    }
+
+    private long delete(long key) {
+        if (key == 0) {
+            long prev = _zeroKeyValue;
+            _hasZeroKey = false;
+            _zeroKeyValue = 0;
+            return prev;
+        }
+        int i = indexOf(key);
+        if (i < 0) return 0;
+        long prev = _values[i];
+        // move back any later entries in the run that can no longer be
+        // reached from their home slot once i is empty
+        for (int j = (i + 1) & _mask; _keys[j] != 0; j = (j + 1) & _mask) {
+            int home = slot(_keys[j]);
+            boolean reachable = i < j ? (home > i && home <= j) : (home > i || home <= j);
+            if (!reachable) {
+                _keys[i] = _keys[j];
+                _values[i] = _values[j];
+                i = j;
+            }
+        }
+        _keys[i] = 0;
+        _values[i] = 0;
+        --_count;
+        return prev;
+    }
+
+    private void rehash() {
+        if (_keys.length == MAX_CAPACITY) throw new IllegalStateException("EventSourcedLongMap is full");
+        long[] keys = _keys, values = _values;
+        _keys = new long[keys.length * 2];
+        _values = new long[keys.length * 2];
+        _mask = _keys.length - 1;
+        _resizeAt = _keys.length / 4 * 3;
+        for (int i = 0; i < keys.length; ++i) {
+            if (keys[i] == 0) continue;
+            int j = slot(keys[i]);
+            while (_keys[j] != 0) j = (j + 1) & _mask;
+            _keys[j] = keys[i];
+            _values[j] = values[i];
+        }
+    }
+
+    // must be called while synchronized.  Writes the snapshot to a temporary
+    // file and then moves it into place so that an existing snapshot is only
+    // ever replaced by a complete one.
+    private void writeSnapshot(long position) throws IOException {
+        File tmp = new File(_snapshotFile.getPath() + ".tmp");
+        FileOutputStream fout = new FileOutputStream(tmp);
+        try {
+            CheckedOutputStream cout = new CheckedOutputStream(new BufferedOutputStream(fout, 65536), new CRC32());
+            DataOutputStream d = new DataOutputStream(cout);
+            d.writeInt(SNAPSHOT_MAGIC);
+            d.writeInt(SNAPSHOT_VERSION);
+            d.writeLong(position);
+            d.writeInt(size());
+            if (_hasZeroKey) {
+                d.writeLong(0);
+                d.writeLong(_zeroKeyValue);
+            }
+            for (int i = 0; i < _keys.length; ++i) {
+                if (_keys[i] == 0) continue;
+                d.writeLong(_keys[i]);
+                d.writeLong(_values[i]);
+            }
+            d.writeLong(cout.getChecksum().getValue());
+            d.flush();
+            fout.getChannel().force(true);
+        } finally {
+            fout.close();
+        }
+        Files.move(tmp.toPath(), _snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        _updatesSinceSnapshot = 0;
+    }
+
+    // loads the snapshot, if there is a valid one, and returns the log
+    // position it covers.  Returns -1 if there is no valid snapshot.
+    private long readSnapshot() throws IOException {
+        FileInputStream fin;
+        try {
+            fin = new FileInputStream(_snapshotFile);
+        } catch (FileNotFoundException e) {
+            return -1;
+        }
+        try {
+            CheckedInputStream cin = new CheckedInputStream(new BufferedInputStream(fin, 65536), new CRC32());
+            DataInputStream din = new DataInputStream(cin);
+            if (din.readInt() != SNAPSHOT_MAGIC || din.readInt() != SNAPSHOT_VERSION) return -1;
+            long position = din.readLong();
+            int count = din.readInt();
+            if (count < 0) return -1;
+            // sized up front so loading never rehashes
+            int capacity = MIN_CAPACITY;
+            while (capacity < MAX_CAPACITY && capacity / 4 * 3 < count) capacity *= 2;
+            allocate(capacity);
+            for (int i = 0; i < count; ++i) store(din.readLong(), din.readLong());
+            long crc = cin.getChecksum().getValue();
+            if (din.readLong() == crc) return position;
+        } catch (EOFException e) {
+            // incomplete snapshot; fall back to a full replay
+        } finally {
+            fin.close();
+        }
+        allocate(MIN_CAPACITY);
+        return -1;
+    }
+
+    private class MH extends ByteBufferMessageHandler {
+
+        @Override
+        public void handleMessage(ByteBuffer message) {
+            int p = message.position();
+            byte op = message.remaining() > 0 ? message.get(p) : 0;
+            switch(op) {
+                case OP_PUT: check(message, PUT_LENGTH);
+                             store(message.getLong(p + 1), message.getLong(p + 9));
+                             break;
+                case OP_REMOVE: check(message, REMOVE_LENGTH);
+                                delete(message.getLong(p + 1));
+                                break;
+                case OP_CLEAR: check(message, 1);
+                               allocate(MIN_CAPACITY);
+                               break;
+                default: throw new RuntimeException("Unrecognized command " + op);
+            }
+        }
+
+        private void check(ByteBuffer message, int length) {
+            if (message.remaining() != length) throw new RuntimeException("Corrupt record of length " + message.remaining());
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.martiansoftware.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encoding helpers for the log records and snapshots of EventSourcedKVMap.
+ *
+ * Lengths and counts are unsigned varints (seven bits per byte, least
+ * significant group first, high bit set on all but the last byte).  A string
+ * is a varint of its UTF-8 length plus one, followed by its UTF-8 bytes; a
+ * length of zero denotes null.  Within a run of keys, each key is written as
+ * a varint of the number of leading chars it shares with the previous key,
+ * followed by the rest of the key as a string.
+ *
+ * @author mlamb
+ */
+final class KVRecords {
+
+    private KVRecords() {
+    }
+
+    static void writeVarint(DataOutput out, int v) throws IOException {
+        while ((v & ~0x7f) != 0) {
+            out.writeByte((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte(v);
+    }
+
+    static int readVarint(DataInput in) throws IOException {
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            result |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) return result;
+        }
+        throw new IOException("malformed varint");
+    }
+
+    /**
+     * Writes a string, which may be null
+     *
+     * @return the number of UTF-8 bytes written after the length, or -1 for
+     * null
+     */
+    static int writeString(DataOutput out, String s) throws IOException {
+        if (s == null) {
+            out.writeByte(0);
+            return -1;
+        }
+        return writeUTF8(out, s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Writes a (non-null) string that is already encoded as UTF-8
+     *
+     * @return the number of UTF-8 bytes written after the length
+     */
+    static int writeUTF8(DataOutput out, byte[] b) throws IOException {
+        writeVarint(out, b.length + 1);
+        out.write(b);
+        return b.length;
+    }
+
+    static String readString(DataInput in) throws IOException {
+        int len = readVarint(in) - 1;
+        if (len < 0) return null;
+        byte[] b = new byte[len];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes a (non-null) key, sharing its leading chars with prev, which may
+     * be null at the start of a run
+     */
+    static void writeKey(DataOutput out, String key, String prev) throws IOException {
+        int shared = 0;
+        if (prev != null) {
+            int max = Math.min(key.length(), prev.length());
+            while (shared < max && key.charAt(shared) == prev.charAt(shared)) ++shared;
+            // the suffix mustn't begin half way through a surrogate pair,
+            // which can't be encoded as UTF-8
+            if (shared > 0 && Character.isHighSurrogate(key.charAt(shared - 1))) --shared;
+        }
+        writeVarint(out, shared);
+        writeString(out, key.substring(shared));
+    }
+
+    static String readKey(DataInput in, String prev) throws IOException {
+        int shared = readVarint(in);
+        String suffix = readString(in);
+        if (suffix == null || shared > (prev == null ? 0 : prev.length())) throw new IOException("malformed key");
+        return shared == 0 ? suffix : prev.substring(0, shared).concat(suffix);
+    }
+}
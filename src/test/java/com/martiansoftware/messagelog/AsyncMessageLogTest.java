@@ -0,0 +1,194 @@
+package com.martiansoftware.messagelog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class AsyncMessageLogTest {
+    
+    private FileMessageLog newFML() throws IOException {
+        File f = File.createTempFile("asyncmessagelog", "test");
+        f.deleteOnExit();
+        FileMessageLog.getIndexFile(f).deleteOnExit();
+        return new FileMessageLog(f);
+    }
+    
+    private List<String> readAll(File f) throws IOException {
+        final List<String> result = new ArrayList<>();
+        new FileMessageLog(f, new MessageHandler() {
+            @Override public void handleMessage(byte[] message) { result.add(new String(message)); }
+        }).close();
+        return result;
+    }
+    
+    @Test
+    public void testAsyncWrites() throws Exception {
+        FileMessageLog fml = newFML();
+        AsyncMessageLog log = new AsyncMessageLog(fml, 16, AsyncMessageLog.Backpressure.BLOCK);
+        List<Future<Long>> futures = new ArrayList<>();
+        for (int i = 0; i < 1000; ++i) futures.add(log.logAsync(("test " + i).getBytes()));
+        for (int i = 0; i < 1000; ++i) assertEquals(i, futures.get(i).get().longValue());
+        assertEquals(1000, log.log("test 1000".getBytes()));
+        assertEquals(-1, log.logAsync().get().longValue());
+        log.close();
+        
+        List<String> messages = readAll(fml.getFile());
+        assertEquals(1001, messages.size());
+        for (int i = 0; i <= 1000; ++i) assertEquals("test " + i, messages.get(i));
+    }
+    
+    @Test
+    public void testConcurrentWriters() throws Exception {
+        FileMessageLog fml = newFML();
+        final AsyncMessageLog log = new AsyncMessageLog(fml).setAutoSync(true);
+        Thread[] writers = new Thread[4];
+        for (int i = 0; i < writers.length; ++i) {
+            writers[i] = new Thread() {
+                @Override public void run() {
+                    try {
+                        for (int j = 0; j < 100; ++j) log.log("x".getBytes());
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            writers[i].start();
+        }
+        for (Thread t : writers) t.join();
+        log.close();
+        assertEquals(400, readAll(fml.getFile()).size());
+    }
+    
+    @Test
+    public void testFailWhenFull() throws Exception {
+        FileMessageLog fml = newFML();
+        AsyncMessageLog log = new AsyncMessageLog(fml, 1, AsyncMessageLog.Backpressure.FAIL);
+        int failures = 0;
+        for (int i = 0; i < 10000; ++i) {
+            try {
+                log.logAsync(new byte[100]);
+            } catch (IOException expected) {
+                ++failures;
+            }
+        }
+        log.close();
+        assertTrue(failures > 0);
+        assertEquals(10000 - failures, readAll(fml.getFile()).size());
+    }
+    
+    @Test
+    public void testReplayAndClose() throws Exception {
+        FileMessageLog fml = newFML();
+        AsyncMessageLog log = new AsyncMessageLog(fml);
+        for (int i = 0; i < 10; ++i) log.logAsync(("test " + i).getBytes());
+        final int[] count = {0};
+        log.replayFrom(5, new MessageHandler() {
+            @Override public void handleMessage(byte[] message) { ++count[0]; }
+        });
+        assertEquals(5, count[0]);
+        log.close();
+        try {
+            log.logAsync("x".getBytes());
+            fail("Able to write after close!");
+        } catch (IOException expected) {}
+    }
+    
+    @Test
+    public void testWriterError() throws Exception {
+        File f = File.createTempFile("asyncmessagelog", "test");
+        f.deleteOnExit();
+        FileMessageLog.getIndexFile(f).deleteOnExit();
+        FileMessageLog fml = new FileMessageLog(f) {
+            @Override long writeTransactions(List<MessageTransaction> txs) throws IOException {
+                if (txs.get(0).getMessages().iterator().next()[0] == 'x') throw new AssertionError("simulated");
+                return super.writeTransactions(txs);
+            }
+        };
+        AsyncMessageLog log = new AsyncMessageLog(fml);
+        assertEquals(0, log.log("test 0".getBytes()));
+        Future<Long> failed = log.logAsync("x".getBytes());
+        try {
+            failed.get();
+            fail("Error wasn't reported!");
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof AssertionError);
+        }
+        for (int i = 0; i < 3; ++i) {
+            try {
+                log.log("test 1".getBytes());
+                fail("Able to write after the writer failed!");
+            } catch (IOException expected) {}
+        }
+        log.close();
+        assertEquals(1, readAll(f).size());
+    }
+    
+    @Test
+    public void testInterruptedLog() throws Exception {
+        File f = File.createTempFile("asyncmessagelog", "test");
+        f.deleteOnExit();
+        FileMessageLog.getIndexFile(f).deleteOnExit();
+        final CountDownLatch writing = new CountDownLatch(1), release = new CountDownLatch(1);
+        FileMessageLog fml = new FileMessageLog(f) {
+            @Override long writeTransactions(List<MessageTransaction> txs) throws IOException {
+                writing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                return super.writeTransactions(txs);
+            }
+        };
+        final AsyncMessageLog log = new AsyncMessageLog(fml);
+        final byte[] message = "test 0".getBytes();
+        final long[] seq = {-2};
+        final boolean[] interrupted = new boolean[1];
+        Thread t = new Thread() {
+            @Override public void run() {
+                try {
+                    seq[0] = log.log(message);
+                } catch (IOException e) {
+                    seq[0] = -3;
+                }
+                interrupted[0] = Thread.interrupted();
+            }
+        };
+        t.start();
+        writing.await();
+        t.interrupt();
+        t.join(200);
+        // the writer still holds the caller's message, so log() keeps waiting
+        assertTrue(t.isAlive());
+        release.countDown();
+        t.join();
+        assertEquals(0, seq[0]);
+        assertTrue(interrupted[0]);
+        log.close();
+        assertEquals(java.util.Arrays.asList("test 0"), readAll(f));
+    }
+    
+    @Test
+    public void testLogBuffersAsync() throws Exception {
+        FileMessageLog fml = newFML();
+        AsyncMessageLog log = new AsyncMessageLog(fml);
+        ByteBuffer direct = ByteBuffer.allocateDirect(6);
+        direct.put("test 0".getBytes()).flip();
+        assertEquals(0, log.logBuffersAsync(direct).get().longValue());
+        assertEquals(1, log.logBuffers(ByteBuffer.wrap("test 1".getBytes())));
+        assertEquals(2, log.log("test 2".getBytes()));
+        log.close();
+        
+        List<String> messages = readAll(fml.getFile());
+        assertEquals(3, messages.size());
+        for (int i = 0; i < 3; ++i) assertEquals("test " + i, messages.get(i));
+    }
+}
@@ -3,7 +3,12 @@ package com.martiansoftware.messagelog;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -16,9 +21,15 @@ public class FileMessageLogTest {
     public FileMessageLogTest() {
     }
     
+    // opening a log with a handler always reads all of it
+    private static final MessageHandler IGNORE = new MessageHandler() {
+        @Override public void handleMessage(byte[] message) {}
+    };
+    
     private FileMessageLog newFML() throws IOException {
         File f = File.createTempFile("messagelog", "test");
         f.deleteOnExit();
+        FileMessageLog.getIndexFile(f).deleteOnExit();
         return new FileMessageLog(f);
     }
     
@@ -61,6 +72,51 @@ public class FileMessageLogTest {
         fml.close();
     }
 
+    @Test
+    public void testConcurrentAutoSync() throws Exception {
+        final java.util.concurrent.atomic.AtomicInteger syncs = new java.util.concurrent.atomic.AtomicInteger();
+        final FileMessageLog fml = newFML().setAutoSync(true).setListener(new MessageLogListener() {
+            @Override public void written(int transactions, long bytes, long lockWaitNanos) {}
+            @Override public void synced(long nanos) {
+                syncs.incrementAndGet();
+                // a slow disk, so that other writers queue up behind the sync
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            @Override public void replayed(long transactions, long bytes, long nanos) {}
+            @Override public void discarded(long bytes) {}
+        });
+        final int threads = 8, perThread = 100;
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        Thread[] writers = new Thread[threads];
+        for (int i = 0; i < threads; ++i) {
+            writers[i] = new Thread() {
+                @Override public void run() {
+                    try {
+                        for (int j = 0; j < perThread; ++j) fml.log("x".getBytes());
+                    } catch (Exception e) {
+                        failure.set(e);
+                    }
+                }
+            };
+            writers[i].start();
+        }
+        for (Thread t : writers) t.join();
+        // concurrent writers share syncs
+        assertTrue("" + syncs.get() + " syncs", syncs.get() < threads * perThread / 2);
+        fml.close();
+        assertNull(failure.get());
+        
+        final int[] count = {0};
+        new FileMessageLog(fml.getFile(), new MessageHandler() {
+            @Override public void handleMessage(byte[] message) { ++count[0]; }
+        }).close();
+        assertEquals(threads * perThread, count[0]);
+    }
+    
     private int countMessages(File f) throws IOException {
         TestMessageHandler tmh = new TestMessageHandler();
         FileMessageLog fml = new FileMessageLog(f, tmh);
@@ -141,6 +197,242 @@ public class FileMessageLogTest {
         fml.replay(null);
     }
     
+    @Test
+    public void testReplayLargeMessages() throws Exception {
+        FileMessageLog fml = newFML();
+        java.util.Random r = new java.util.Random(0);
+        List<byte[]> written = new java.util.ArrayList<>();
+        for (int i = 0; i < 50; ++i) {
+            byte[] b = new byte[r.nextInt(i % 10 == 0 ? 3 * TransactionReader.DEFAULT_BUFFER_SIZE : 1000)];
+            r.nextBytes(b);
+            written.add(b);
+            fml.log(b, new byte[0]);
+        }
+        
+        final List<byte[]> read = new java.util.ArrayList<>();
+        fml.replay(new MessageHandler() {
+            @Override public void handleMessage(byte[] message) { if (message.length > 0) read.add(message); }
+        });
+        fml.close();
+        
+        assertEquals(written.size(), read.size());
+        for (int i = 0; i < written.size(); ++i) assertArrayEquals(written.get(i), read.get(i));
+    }
+    
+    @Test
+    public void testByteBufferReplay() throws Exception {
+        FileMessageLog fml = newFML();
+        for (int i = 0; i < 1000; ++i) write(fml, "test " + i);
+        fml.log("test 1000".getBytes(), "test 1001".getBytes());
+        
+        final Set<ByteBuffer> buffers = Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>());
+        final int[] count = {0};
+        fml.replay(new ByteBufferMessageHandler() {
+            @Override public void handleMessage(ByteBuffer message) {
+                assertTrue(message.isReadOnly());
+                byte[] b = new byte[message.remaining()];
+                message.get(b);
+                assertEquals("test " + count[0], new String(b));
+                ++count[0];
+                buffers.add(message);
+            }
+        });
+        fml.close();
+        assertEquals(1002, count[0]);
+        assertEquals(1, buffers.size()); // one reused view, not one per message
+    }
+    
+    @Test
+    public void testPositionedReplay() throws Exception {
+        FileMessageLog fml = newFML();
+        for (int i = 0; i < 1000; ++i) fml.log(("test " + i).getBytes(), ("more " + i).getBytes());
+        fml.setCompression(CompressionCodecs.DEFLATE);
+        fml.log(redundant(0));
+        fml.close();
+        
+        final RandomAccessFile r = new RandomAccessFile(fml.getFile(), "r");
+        final int[] count = {0, 0};
+        PositionedMessageHandler h = new PositionedMessageHandler() {
+            @Override public void handleMessage(byte[] message, long offset) {
+                ++count[0];
+                if (offset < 0) return;
+                ++count[1];
+                byte[] b = new byte[message.length];
+                try {
+                    r.seek(offset);
+                    r.readFully(b);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                assertArrayEquals(message, b);
+            }
+        };
+        for (int threads = 1; threads <= 3; threads += 2) {
+            count[0] = count[1] = 0;
+            fml = new FileMessageLog(fml.getFile(), h, threads);
+            assertEquals(2001, count[0]);
+            assertEquals(2000, count[1]); // the compressed message isn't stored verbatim
+            fml.close();
+        }
+        fml = new FileMessageLog(fml.getFile());
+        count[0] = count[1] = 0;
+        fml.replayFromPosition(0, h);
+        assertEquals(2000, count[1]);
+        fml.close();
+        r.close();
+    }
+    
+    @Test
+    public void testLogBuffers() throws Exception {
+        FileMessageLog fml = newFML();
+        java.util.Random r = new java.util.Random(0);
+        byte[] small = "small".getBytes();
+        byte[] large = new byte[FileMessageLog.GATHER_THRESHOLD * 3];
+        r.nextBytes(large);
+        
+        ByteBuffer heap = ByteBuffer.wrap(("xx" + new String(small) + "yy").getBytes());
+        heap.position(2).limit(2 + small.length);
+        ByteBuffer direct = ByteBuffer.allocateDirect(large.length);
+        direct.put(large).flip();
+        ByteBuffer directSmall = ByteBuffer.allocateDirect(small.length);
+        directSmall.put(small).flip();
+        
+        assertEquals(0, fml.logBuffers(heap, direct, directSmall));
+        assertEquals(1, fml.logBuffers(java.util.Arrays.asList(direct, heap, direct)));
+        assertEquals(-1, fml.logBuffers());
+        assertEquals(2, heap.position());
+        assertEquals(0, direct.position());
+        assertEquals(large.length, direct.remaining());
+        
+        final List<byte[]> read = new java.util.ArrayList<>();
+        fml.replay(new MessageHandler() {
+            @Override public void handleMessage(byte[] message) { read.add(message); }
+        });
+        fml.close();
+        assertEquals(6, read.size());
+        assertArrayEquals(small, read.get(0));
+        assertArrayEquals(large, read.get(1));
+        assertArrayEquals(small, read.get(2));
+        assertArrayEquals(large, read.get(3));
+        assertArrayEquals(small, read.get(4));
+        assertArrayEquals(large, read.get(5));
+    }
+    
+    @Test
+    public void testWriteAfterTruncatedTail() throws Exception {
+        FileMessageLog fml = newFML();
+        for (int i = 0; i < 5; ++i) fml.log(("test " + i).getBytes());
+        fml.log("a long message that will be partially written".getBytes());
+        fml.close();
+        shrink(fml.getFile());
+        
+        fml = new FileMessageLog(fml.getFile());
+        fml.log("test 5".getBytes());
+        fml.close();
+        assertEquals(6, countMessages(fml.getFile()));
+    }
+    
+    @Test
+    public void testReplayFromPosition() throws Exception {
+        FileMessageLog fml = newFML();
+        write(fml, "test 0", "test 1");
+        long pos = fml.getPosition();
+        write(fml, "x", "y", "z");
+        
+        final List<String> read = new java.util.ArrayList<>();
+        fml.replayFromPosition(pos, new MessageHandler() {
+            @Override public void handleMessage(byte[] message) { read.add(new String(message)); }
+        });
+        assertEquals(java.util.Arrays.asList("x", "y", "z"), read);
+        
+        fml.replayFromPosition(fml.getPosition(), new TestMessageHandler());
+        try {
+            fml.replayFromPosition(fml.getPosition() + 1, null);
+            fail("Replayed from beyond end of log!");
+        } catch (IOException expected) {}
+        fml.close();
+    }
+    
+    @Test
+    public void testTruncate() throws Exception {
+        FileMessageLog fml = newFML();
+        write(fml, "x", "y");
+        fml.truncate();
+        assertEquals(0, fml.getPosition());
+        assertEquals(2, fml.getFirstSequence());
+        assertEquals(2, fml.log("test 0".getBytes()));
+        fml.close();
+        assertEquals(1, countMessages(fml.getFile()));
+        
+        fml = new FileMessageLog(fml.getFile());
+        assertEquals(3, fml.getNextSequence());
+        fml.close();
+    }
+    
+    @Test
+    public void testSequenceNumbers() throws Exception {
+        FileMessageLog fml = newFML();
+        assertEquals(0, fml.log("a".getBytes()));
+        assertEquals(1, fml.log("b".getBytes(), "c".getBytes()));
+        assertEquals(-1, fml.log());
+        assertEquals(2, fml.log("d".getBytes()));
+        fml.close();
+        
+        fml = new FileMessageLog(fml.getFile());
+        assertEquals(3, fml.getNextSequence());
+        fml.close();
+    }
+    
+    // writes enough data that the sparse index has several entries
+    private FileMessageLog writeIndexed(int count) throws IOException {
+        FileMessageLog fml = newFML();
+        byte[] padding = new byte[1000];
+        for (int i = 0; i < count; ++i) assertEquals(i, fml.log(("test " + i).getBytes(), padding));
+        return fml;
+    }
+    
+    private void assertReplayFrom(FileMessageLog fml, final long seq, int count) throws IOException {
+        final int[] next = {(int) seq};
+        fml.replayFrom(seq, new MessageHandler() {
+            @Override public void handleMessage(byte[] message) {
+                if (message.length == 1000) return;
+                assertEquals("test " + next[0], new String(message));
+                ++next[0];
+            }
+        });
+        assertEquals(count, next[0]);
+    }
+    
+    @Test
+    public void testReplayFrom() throws Exception {
+        FileMessageLog fml = writeIndexed(500);
+        for (long seq : new long[] {0, 1, 63, 64, 65, 130, 257, 499, 500}) assertReplayFrom(fml, seq, 500);
+        try {
+            fml.replayFrom(501, null);
+            fail("Replayed from beyond end of log!");
+        } catch (IOException expected) {}
+        fml.close();
+        
+        // index should survive reopening, and be rebuilt if lost or damaged
+        fml = new FileMessageLog(fml.getFile());
+        assertReplayFrom(fml, 321, 500);
+        fml.close();
+        
+        RandomAccessFile r = new RandomAccessFile(FileMessageLog.getIndexFile(fml.getFile()), "rw");
+        r.setLength(r.length() - 20);
+        r.seek(r.length() - 16);
+        r.writeLong(12345);
+        r.close();
+        fml = new FileMessageLog(fml.getFile());
+        assertReplayFrom(fml, 450, 500);
+        fml.close();
+        
+        assertTrue(FileMessageLog.getIndexFile(fml.getFile()).delete());
+        fml = new FileMessageLog(fml.getFile());
+        assertReplayFrom(fml, 123, 500);
+        fml.close();
+    }
+    
     @Test
     public void testNoMessage() throws Exception {
         FileMessageLog fml = newFML();
@@ -190,12 +482,558 @@ public class FileMessageLogTest {
         r.close();
         
         try {
-            fml = new FileMessageLog(fml.getFile());
+            fml = new FileMessageLog(fml.getFile(), IGNORE);
             fail("Loaded corrupted file!");
         } catch(IOException expected) {}
         
     }
     
+    @Test
+    public void testLogOutputStream() throws IOException {
+        FileMessageLog fml = newFML();
+        java.io.DataOutputStream out = fml.getLogOutputStream();
+        out.writeBytes("test 0");
+        // a stream obtained while another is in use is a separate stream,
+        // and is the one reused afterwards
+        java.io.DataOutputStream nested = fml.getLogOutputStream();
+        assertNotSame(out, nested);
+        nested.writeBytes("test 1");
+        out.close();
+        nested.close();
+        nested.close(); // closing twice does nothing
+
+        // once closed, a stream is reused
+        java.io.DataOutputStream reused = fml.getLogOutputStream();
+        assertSame(nested, reused);
+        assertEquals(0, reused.size());
+        reused.write(new byte[100 * 1024]);
+        reused.close();
+        try {
+            reused.writeInt(1);
+            fail("Able to write to a closed stream!");
+        } catch (IOException expected) {}
+
+        final List<byte[]> messages = new java.util.ArrayList<>();
+        fml.replay(new MessageHandler() {
+            @Override public void handleMessage(byte[] message) {
+                messages.add(message);
+            }
+        });
+        assertEquals(3, messages.size());
+        assertEquals("test 0", new String(messages.get(0)));
+        assertEquals("test 1", new String(messages.get(1)));
+        assertEquals(100 * 1024, messages.get(2).length);
+
+        // a stream that's never closed doesn't stop later ones being reused
+        fml.getLogOutputStream().writeBytes("abandoned");
+        out = fml.getLogOutputStream();
+        out.close();
+        assertSame(out, fml.getLogOutputStream());
+        fml.close();
+    }
+
+    @Test
+    public void testParallelReplay() throws IOException {
+        FileMessageLog fml = newFML();
+        int n = 0;
+        for (int i = 0; i < 2000; ++i) {
+            fml.log(("test " + n++).getBytes(), ("test " + n++).getBytes());
+            // some transactions span several batches
+            if (i % 500 == 0) fml.log(("test " + n++ + new String(new byte[3 * ParallelTransactionReader.BATCH_SIZE / 2])).getBytes());
+        }
+        fml.close();
+
+        final List<byte[]> messages = new java.util.ArrayList<>();
+        fml = new FileMessageLog(fml.getFile(), new MessageHandler() {
+            @Override public void handleMessage(byte[] message) {
+                messages.add(message);
+            }
+        }, 4);
+        assertEquals(n, messages.size());
+        for (int i = 0; i < n; ++i) assertTrue(new String(messages.get(i)).startsWith("test " + i));
+        assertEquals(2000 + 4, fml.getNextSequence());
+
+        final int[] count = new int[1];
+        fml.replay(new ByteBufferMessageHandler() {
+            @Override public void handleMessage(ByteBuffer message) {
+                byte[] b = new byte[message.remaining()];
+                message.get(b);
+                assertTrue(new String(b).startsWith("test " + count[0]++));
+            }
+        }, 3);
+        assertEquals(n, count[0]);
+        fml.replay(null, 2);
+        write(fml, "test " + n);
+        fml.close();
+    }
+
+    @Test
+    public void testParallelReplayTruncatedTail() throws IOException {
+        FileMessageLog fml = newFML();
+        for (int i = 0; i < 100; ++i) write(fml, "test " + i);
+        fml.close();
+        long len = fml.getFile().length();
+        RandomAccessFile r = new RandomAccessFile(fml.getFile(), "rw");
+        r.setLength(len - 1);
+        r.close();
+
+        TestMessageHandler tmh = new TestMessageHandler();
+        fml = new FileMessageLog(fml.getFile(), tmh, 4);
+        assertEquals(99, tmh.getCount());
+        assertEquals(99, fml.getNextSequence());
+        assertTrue(fml.getPosition() < len - 1);
+        fml.close();
+    }
+
+    @Test
+    public void testParallelReplayBadCRC() throws IOException {
+        FileMessageLog fml = newFML();
+        for (int i = 0; i < 10000; ++i) write(fml, "test " + i);
+        long pos = fml.getPosition();
+        write(fml, "test 10000");
+        fml.close();
+
+        RandomAccessFile r = new RandomAccessFile(fml.getFile(), "rw");
+        r.seek(fml.getFile().length() - 1);
+        r.write('x');
+        r.close();
+
+        TestMessageHandler tmh = new TestMessageHandler();
+        try {
+            new FileMessageLog(fml.getFile(), tmh, 4);
+            fail("Loaded corrupted file!");
+        } catch (IOException expected) {
+            assertEquals("bad CRC at offset " + pos, expected.getMessage());
+        }
+        assertEquals(10000, tmh.getCount());
+    }
+
+    @Test
+    public void testPartitionedReplay() throws IOException {
+        FileMessageLog fml = newFML();
+        for (int i = 0; i < 20000; ++i) fml.log(new byte[] {(byte) (i % 7), (byte) (i / 256), (byte) i});
+        
+        final java.util.concurrent.ConcurrentHashMap<Integer, Integer> last = new java.util.concurrent.ConcurrentHashMap<>();
+        final java.util.concurrent.atomic.AtomicInteger count = new java.util.concurrent.atomic.AtomicInteger();
+        fml.replay(new PartitionedMessageHandler() {
+            @Override public int getPartition(byte[] message) {
+                return message[0];
+            }
+            @Override public void handleMessage(byte[] message) {
+                int n = ((message[1] & 0xff) << 8) | (message[2] & 0xff);
+                Integer prev = last.put((int) message[0], n);
+                // messages in the same partition arrive in order
+                assertTrue(prev == null || prev < n);
+                count.incrementAndGet();
+            }
+        }, 4);
+        assertEquals(20000, count.get());
+        assertEquals(7, last.size());
+
+        try {
+            fml.replay(new PartitionedMessageHandler() {
+                @Override public int getPartition(byte[] message) {
+                    return -message[0];
+                }
+                @Override public void handleMessage(byte[] message) {
+                    if (message[0] == 3) throw new IllegalStateException("handler failure");
+                }
+            }, 4);
+            fail("Handler failure not reported!");
+        } catch (IllegalStateException expected) {}
+        fml.close();
+    }
+
+    private byte[] redundant(int i) {
+        StringBuilder sb = new StringBuilder("test " + i);
+        while (sb.length() < 1000) sb.append(" some highly redundant event data");
+        return sb.toString().getBytes();
+    }
+    
+    @Test
+    public void testCompression() throws IOException {
+        FileMessageLog plain = newFML();
+        FileMessageLog fml = newFML().setCompression(CompressionCodecs.DEFLATE);
+        for (int i = 0; i < 200; ++i) {
+            plain.log(redundant(i));
+            assertEquals(i, fml.log(redundant(i)));
+        }
+        fml.log("test 200".getBytes()); // too small to be worth compressing
+        plain.close();
+        fml.close();
+        assertTrue(fml.getFile().length() * 4 < plain.getFile().length());
+        
+        final List<byte[]> messages = new java.util.ArrayList<>();
+        MessageHandler collector = new MessageHandler() {
+            @Override public void handleMessage(byte[] message) {
+                messages.add(message);
+            }
+        };
+        for (int threads = 1; threads <= 3; threads += 2) {
+            messages.clear();
+            fml = new FileMessageLog(fml.getFile(), collector, threads);
+            assertEquals(201, messages.size());
+            for (int i = 0; i < 200; ++i) assertArrayEquals(redundant(i), messages.get(i));
+            assertEquals("test 200", new String(messages.get(200)));
+            fml.close();
+        }
+        
+        fml = new FileMessageLog(fml.getFile());
+        final int[] count = new int[1];
+        ByteBufferMessageHandler bh = new ByteBufferMessageHandler() {
+            @Override public void handleMessage(ByteBuffer message) {
+                byte[] b = new byte[message.remaining()];
+                message.get(b);
+                assertTrue(new String(b).startsWith("test " + count[0]++));
+            }
+        };
+        fml.replay(bh);
+        assertEquals(201, count[0]);
+        count[0] = 0;
+        fml.replay(bh, 2);
+        assertEquals(201, count[0]);
+        count[0] = 150;
+        fml.replayFrom(150, bh);
+        assertEquals(201, count[0]);
+        fml.close();
+    }
+    
+    @Test
+    public void testCompressedTruncatedTail() throws IOException {
+        FileMessageLog fml = newFML().setCompression(CompressionCodecs.deflate(9));
+        for (int i = 0; i < 10; ++i) fml.log(redundant(i), redundant(i + 1));
+        fml.close();
+        long len = fml.getFile().length();
+        RandomAccessFile r = new RandomAccessFile(fml.getFile(), "rw");
+        r.setLength(len - 1);
+        r.close();
+        
+        fml = new FileMessageLog(fml.getFile());
+        assertEquals(9, fml.getNextSequence());
+        fml.close();
+    }
+    
+    @Test
+    public void testCorruptCompressedData() throws IOException {
+        for (int threads = 1; threads <= 2; ++threads) {
+            FileMessageLog fml = newFML().setCompression(CompressionCodecs.DEFLATE);
+            fml.log(redundant(0));
+            long pos = fml.getPosition();
+            fml.log(redundant(1));
+            fml.close();
+
+            RandomAccessFile r = new RandomAccessFile(fml.getFile(), "rw");
+            r.seek(pos + 20);
+            r.write(r.read() ^ 0xff);
+            r.close();
+            try {
+                new FileMessageLog(fml.getFile(), IGNORE, threads);
+                fail("Loaded corrupted file!");
+            } catch (IOException expected) {
+                assertEquals("bad CRC at offset " + pos, expected.getMessage());
+            }
+        }
+    }
+    
+    @Test
+    public void testCustomCodec() throws IOException {
+        CompressionCodec codec = new CompressionCodec() {
+            @Override public int getId() {
+                return 200;
+            }
+            @Override public ByteBuffer compress(ByteBuffer src) throws IOException {
+                return CompressionCodecs.DEFLATE.compress(src);
+            }
+            @Override public void decompress(ByteBuffer src, ByteBuffer dst) throws IOException {
+                CompressionCodecs.DEFLATE.decompress(src, dst);
+            }
+        };
+        FileMessageLog fml = newFML().setCompression(codec);
+        fml.log(redundant(0));
+        fml.close();
+        final List<byte[]> messages = new java.util.ArrayList<>();
+        new FileMessageLog(fml.getFile(), new MessageHandler() {
+            @Override public void handleMessage(byte[] message) {
+                messages.add(message);
+            }
+        }).close();
+        assertEquals(1, messages.size());
+        assertArrayEquals(redundant(0), messages.get(0));
+        
+        try {
+            CompressionCodecs.register(new CompressionCodec() {
+                @Override public int getId() { return 200; }
+                @Override public ByteBuffer compress(ByteBuffer src) { return src; }
+                @Override public void decompress(ByteBuffer src, ByteBuffer dst) {}
+            });
+            fail("Registered two codecs with the same id!");
+        } catch (IllegalArgumentException expected) {}
+    }
+
+    @Test
+    public void testReadOnly() throws Exception {
+        FileMessageLog fml = newFML();
+        for (int i = 0; i < 10; ++i) write(fml, "test " + i);
+        File index = FileMessageLog.getIndexFile(fml.getFile());
+        long indexLength = index.length();
+
+        TestMessageHandler tmh = new TestMessageHandler();
+        FileMessageLog reader = FileMessageLog.openReadOnly(fml.getFile(), tmh);
+        assertTrue(reader.isReadOnly());
+        assertEquals(10, tmh.getCount());
+        assertEquals(10, reader.getNextSequence());
+        try {
+            reader.log("test".getBytes());
+            fail("Wrote to a read-only log!");
+        } catch (IOException expected) {}
+        try {
+            reader.truncate();
+            fail("Truncated a read-only log!");
+        } catch (IOException expected) {}
+
+        // a transaction that's only partly visible to the reader
+        LogTailer t = reader.tailFrom(10);
+        long end = fml.getPosition();
+        write(fml, "test 10");
+        long length = fml.getPosition();
+        RandomAccessFile r = new RandomAccessFile(fml.getFile(), "rw");
+        r.seek(length - 1);
+        int last = r.read();
+        r.seek(length - 1);
+        r.write(last ^ 0xff);
+        assertEquals(0, t.poll(tmh));
+        assertEquals(end, t.getPosition());
+        r.seek(length - 1);
+        r.write(last);
+        r.close();
+        assertEquals(1, t.poll(tmh, 5, java.util.concurrent.TimeUnit.SECONDS));
+
+        write(fml, "test 11");
+        assertEquals(1, t.poll(tmh, 5, java.util.concurrent.TimeUnit.SECONDS));
+        assertEquals(12, tmh.getCount());
+        assertEquals(0, t.poll(tmh, 10, java.util.concurrent.TimeUnit.MILLISECONDS));
+        reader.replay(null);
+        assertEquals(12, reader.getNextSequence());
+        reader.close();
+        assertEquals(indexLength, index.length());
+        fml.close();
+    }
+
+    @Test
+    public void testReadOnlyEmptyLog() throws Exception {
+        FileMessageLog fml = newFML();
+        File index = FileMessageLog.getIndexFile(fml.getFile());
+        fml.close();
+        assertTrue(index.delete());
+        FileMessageLog reader = FileMessageLog.openReadOnly(fml.getFile(), null);
+        assertTrue(reader.isEmpty());
+        LogTailer t = reader.tail();
+        assertEquals(0, t.poll(null));
+
+        fml = new FileMessageLog(fml.getFile());
+        TestMessageHandler tmh = new TestMessageHandler();
+        write(fml, "test 0", "test 1");
+        assertEquals(2, t.poll(tmh));
+        assertEquals(2, t.getNextSequence());
+        fml.truncate();
+        try {
+            t.poll(null);
+            fail("Tailed across a truncation!");
+        } catch (IOException expected) {}
+        reader.close();
+        fml.close();
+    }
+
+    @Test
+    public void testPreallocation() throws Exception {
+        FileMessageLog fml = newFML().setPreallocation(4096);
+        File f = fml.getFile();
+        for (int i = 0; i < 9; ++i) write(fml, "test " + i);
+        long pos = fml.getPosition();
+        write(fml, "test 9");
+        long end = fml.getPosition();
+        assertEquals(4096, f.length());
+
+        TestMessageHandler tmh = new TestMessageHandler();
+        FileMessageLog reader = FileMessageLog.openReadOnly(f, tmh);
+        assertEquals(10, tmh.getCount());
+        assertEquals(end, reader.getPosition());
+        reader.close();
+
+        for (int i = 10; i < 500; ++i) write(fml, "test " + i);
+        assertEquals(0, f.length() % 4096);
+        assertTrue(f.length() > fml.getPosition());
+        fml.close();
+        assertEquals(fml.getPosition(), f.length());
+        assertEquals(500, countMessages(f));
+
+        // a write into preallocated space that was interrupted by a crash
+        RandomAccessFile r = new RandomAccessFile(f, "rw");
+        byte[] torn = new byte[(int) (end - pos)];
+        r.seek(pos);
+        r.readFully(torn);
+        torn[torn.length - 1] = 0;
+        r.close();
+        for (int threads = 1; threads <= 2; ++threads) {
+            r = new RandomAccessFile(f, "rw");
+            r.setLength(pos);
+            r.seek(pos);
+            r.write(torn);
+            r.setLength(4096);
+            r.close();
+            tmh = new TestMessageHandler();
+            fml = new FileMessageLog(f, tmh, threads);
+            assertEquals(9, tmh.getCount());
+            assertEquals(pos, fml.getPosition());
+            fml.close();
+            assertEquals(pos, f.length());
+        }
+    }
+
+    @Test
+    public void testMemoryMapping() throws Exception {
+        FileMessageLog fml = newFML().setMemoryMapping(4096);
+        File f = fml.getFile();
+        LogTailer t = fml.tail();
+        TestMessageHandler tailed = new TestMessageHandler();
+        for (int i = 0; i < 500; ++i) write(fml, "test " + i);
+        assertEquals(500, t.poll(tailed));
+        assertTrue(f.length() > fml.getPosition());
+
+        // too large for the window, so written to the channel
+        fml.log(new byte[8192]);
+        for (int i = 0; i < 10; ++i) write(fml, "test " + i);
+        fml.setMemoryMapping(0);
+        write(fml, "test 10");
+        fml.setMemoryMapping(1024);
+        write(fml, "test 11");
+        fml.sync();
+
+        final int[] count = new int[1];
+        fml.replay(new MessageHandler() {
+            @Override public void handleMessage(byte[] message) {
+                assertTrue(message.length == 8192 || new String(message).startsWith("test "));
+                ++count[0];
+            }
+        });
+        assertEquals(513, count[0]);
+        write(fml, "test 12");
+        long end = fml.getPosition();
+        fml.close();
+        assertTrue(f.length() > end);
+
+        count[0] = 0;
+        fml = new FileMessageLog(f, new MessageHandler() {
+            @Override public void handleMessage(byte[] message) { ++count[0]; }
+        });
+        assertEquals(514, count[0]);
+        assertEquals(end, f.length());
+        fml.close();
+    }
+
+    @Test
+    public void testTruncateMapped() throws Exception {
+        FileMessageLog fml = newFML().setMemoryMapping(4096);
+        File f = fml.getFile();
+        for (int i = 0; i < 500; ++i) write(fml, "test " + i);
+        long length = f.length();
+        fml.truncate();
+        // windows may still be mapped, so the file is zeroed, not shortened
+        assertTrue(fml.isEmpty());
+        assertEquals(length, f.length());
+        assertEquals(500, fml.getNextSequence());
+        TestMessageHandler tmh = new TestMessageHandler();
+        FileMessageLog.openReadOnly(f, tmh).close();
+        assertEquals(0, tmh.getCount());
+        
+        write(fml, "test 0", "test 1");
+        tmh = new TestMessageHandler();
+        fml.replay(tmh);
+        assertEquals(2, tmh.getCount());
+        fml.close();
+        
+        tmh = new TestMessageHandler();
+        fml = new FileMessageLog(f, tmh);
+        assertEquals(2, tmh.getCount());
+        assertEquals(502, fml.getNextSequence());
+        fml.close();
+    }
+
+    @Test
+    public void testCloseAfterMappedWrites() throws Exception {
+        FileMessageLog fml = newFML().setMemoryMapping(4096);
+        File f = fml.getFile();
+        write(fml, "test 0", "test 1", "test 2");
+        long end = fml.getPosition();
+        fml.close();
+        // the window may still be mapped, so its unused space is kept
+        assertEquals(4096, f.length());
+        
+        TestMessageHandler tmh = new TestMessageHandler();
+        fml = new FileMessageLog(f, tmh).setMemoryMapping(4096);
+        assertEquals(3, tmh.getCount());
+        assertEquals(end, fml.getPosition());
+        assertEquals(end, f.length());
+        write(fml, "test 3");
+        fml.close();
+        
+        tmh = new TestMessageHandler();
+        FileMessageLog reader = FileMessageLog.openReadOnly(f, tmh);
+        assertEquals(4, tmh.getCount());
+        reader.close();
+        assertEquals(4, countMessages(f));
+    }
+
+    @Test
+    public void testMappedWindowsReleasedWithoutSync() throws Exception {
+        FileMessageLog fml = newFML().setAutoSync(false).setMemoryMapping(4096);
+        for (int i = 0; i < 1000; ++i) {
+            fml.log(new byte[1000]);
+            assertTrue(fml.getUnforcedWindowCount() <= FileMessageLog.MAX_UNFORCED_WINDOWS);
+        }
+        fml.close();
+        
+        final int[] count = new int[1];
+        fml = new FileMessageLog(fml.getFile(), new MessageHandler() {
+            @Override public void handleMessage(byte[] message) { ++count[0]; }
+        });
+        assertEquals(1000, count[0]);
+        fml.close();
+    }
+
+    @Test
+    public void testZeroFilledAfterCrash() throws Exception {
+        // a crash can leave preallocated or mapped space on disk while the
+        // writes into it are lost
+        for (int mode = 0; mode < 2; ++mode) {
+            FileMessageLog fml = newFML();
+            if (mode == 0) fml.setPreallocation(4096);
+            else fml.setMemoryMapping(4096);
+            write(fml, "test 0", "test 1");
+            fml.close();
+            
+            RandomAccessFile raf = new RandomAccessFile(fml.getFile(), "rw");
+            raf.setLength(0);
+            raf.write(new byte[4096]);
+            raf.close();
+            
+            fml = new FileMessageLog(fml.getFile());
+            if (mode == 0) fml.setPreallocation(4096);
+            else fml.setMemoryMapping(4096);
+            assertTrue(fml.isEmpty());
+            assertEquals(0, fml.getNextSequence());
+            write(fml, "test 0", "test 1", "test 2");
+            assertEquals(LogFormat.V2, fml.getFormatVersion());
+            fml.close();
+            
+            TestMessageHandler h = new TestMessageHandler();
+            fml = new FileMessageLog(fml.getFile(), h);
+            assertEquals(3, h.getCount());
+            assertEquals(3, fml.getNextSequence());
+            fml.close();
+        }
+    }
+    
     private class TestMessageHandler implements MessageHandler {
         int x = 0;
         
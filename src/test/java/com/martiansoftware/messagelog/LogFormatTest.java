@@ -0,0 +1,289 @@
+package com.martiansoftware.messagelog;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Checksum;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author mlamb
+ */
+public class LogFormatTest {
+
+    // opening a log with a handler always reads all of it
+    private static final MessageHandler IGNORE = new MessageHandler() {
+        @Override public void handleMessage(byte[] message) {}
+    };
+
+    private File newFile() throws IOException {
+        File f = File.createTempFile("messagelog", "test");
+        f.deleteOnExit();
+        FileMessageLog.getIndexFile(f).deleteOnExit();
+        return f;
+    }
+
+    private List<String> readAll(File f) throws IOException {
+        final List<String> result = new ArrayList<>();
+        new FileMessageLog(f, new MessageHandler() {
+            @Override public void handleMessage(byte[] message) { result.add(new String(message)); }
+        }).close();
+        return result;
+    }
+
+    @Test
+    public void testCrc32c() {
+        byte[] b = "123456789".getBytes();
+        Checksum portable = new Crc32c();
+        portable.update(b, 0, b.length);
+        assertEquals(0xe3069283L, portable.getValue());
+
+        Checksum c = Crc32c.newChecksum();
+        c.update(b, 0, 4);
+        c.update(b, 4, b.length - 4);
+        assertEquals(0xe3069283L, c.getValue());
+
+        byte[] big = new byte[100000];
+        for (int i = 0; i < big.length; ++i) big[i] = (byte) (i * 31);
+        portable.reset();
+        portable.update(big, 0, big.length);
+        c.reset();
+        Crc32c.update(c, (ByteBuffer) ByteBuffer.allocateDirect(big.length).put(big).flip(), null);
+        assertEquals(portable.getValue(), c.getValue());
+    }
+
+    @Test
+    public void testV2Layout() throws IOException {
+        MessageTransaction mt = new MessageTransaction(new byte[] {1, 2, 3}, new byte[0]);
+        ByteBuffer buf = ByteBuffer.allocate((int) mt.getLength(LogFormat.V2));
+        mt.writeTo(buf, LogFormat.V2);
+        assertFalse(buf.hasRemaining());
+        buf.flip();
+
+        int crc = buf.getInt();
+        assertEquals(buf.capacity() - 8, buf.getInt());
+        assertEquals(0, buf.getInt()); // flags
+        assertEquals(2, buf.getInt());
+        assertEquals(3, buf.getInt());
+        buf.position(buf.position() + 3);
+        assertEquals(0, buf.getInt());
+
+        Checksum c = new Crc32c();
+        c.update(buf.array(), 4, buf.capacity() - 4);
+        assertEquals(c.getValue(), crc & 0xffffffffL);
+    }
+
+    @Test
+    public void testNewLogsAreV2() throws IOException {
+        File f = newFile();
+        FileMessageLog fml = new FileMessageLog(f);
+        assertEquals(LogFormat.CURRENT, fml.getFormatVersion());
+        assertTrue(fml.isEmpty());
+        assertEquals(0, f.length());
+        fml.log("test".getBytes());
+        assertFalse(fml.isEmpty());
+        fml.close();
+
+        RandomAccessFile r = new RandomAccessFile(f, "r");
+        assertEquals(LogFormat.MAGIC, r.readInt());
+        assertEquals(LogFormat.V2, r.readInt());
+        r.close();
+        assertEquals(LogFormat.HEADER_LENGTH + 16 + 4 + 4, f.length());
+        assertEquals(java.util.Arrays.asList("test"), readAll(f));
+    }
+
+    @Test
+    public void testReadsV1() throws IOException {
+        File f = newFile();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(f));
+        for (int i = 0; i < 10; ++i) new MessageTransaction(("test " + i).getBytes()).writeTo(out);
+        out.close();
+
+        FileMessageLog fml = new FileMessageLog(f);
+        assertEquals(LogFormat.V1, fml.getFormatVersion());
+        assertEquals(10, fml.getNextSequence());
+        // existing logs keep their format
+        fml.log("test 10".getBytes(), new byte[FileMessageLog.GATHER_THRESHOLD]);
+        fml.close();
+        List<String> messages = readAll(f);
+        assertEquals(12, messages.size());
+        for (int i = 0; i <= 10; ++i) assertEquals("test " + i, messages.get(i));
+
+        fml = new FileMessageLog(f);
+        assertEquals(LogFormat.V1, fml.getFormatVersion());
+        fml.truncate();
+        fml.log("test".getBytes());
+        assertEquals(LogFormat.V2, fml.getFormatVersion());
+        fml.close();
+        assertEquals(java.util.Arrays.asList("test"), readAll(f));
+    }
+
+    @Test
+    public void testInterruptedHeader() throws IOException {
+        File f = newFile();
+        ByteBuffer header = ByteBuffer.allocate(LogFormat.HEADER_LENGTH);
+        LogFormat.writeHeader(header);
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(header.array(), 0, 10);
+        out.close();
+
+        FileMessageLog fml = new FileMessageLog(f);
+        assertTrue(fml.isEmpty());
+        assertEquals(0, f.length());
+        fml.log("test".getBytes());
+        fml.close();
+        assertEquals(java.util.Arrays.asList("test"), readAll(f));
+    }
+
+    @Test
+    public void testZeroFilledFile() throws IOException {
+        // e.g. preallocated or mapped space whose first write never landed
+        for (int len : new int[] {20, 4096}) {
+            File f = newFile();
+            FileOutputStream out = new FileOutputStream(f);
+            out.write(new byte[len]);
+            out.close();
+            
+            FileMessageLog fml = new FileMessageLog(f);
+            assertTrue(fml.isEmpty());
+            assertEquals(0, fml.getNextSequence());
+            assertEquals(0, f.length());
+            fml.log("test".getBytes());
+            assertEquals(LogFormat.V2, fml.getFormatVersion());
+            fml.close();
+            assertEquals(java.util.Arrays.asList("test"), readAll(f));
+        }
+        
+        // zeros followed by data aren't mistaken for an empty log
+        File f = newFile();
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(new byte[100]);
+        out.write(1);
+        out.close();
+        try {
+            new FileMessageLog(f);
+            fail("Opened a file that isn't a log!");
+        } catch (IOException expected) {}
+    }
+    
+    @Test
+    public void testUnrecognizedFormat() throws IOException {
+        File f = newFile();
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(new byte[100]);
+        out.close();
+        RandomAccessFile r = new RandomAccessFile(f, "rw");
+        r.writeInt(12345);
+        r.close();
+        try {
+            new FileMessageLog(f);
+            fail("Opened a file that isn't a log!");
+        } catch (IOException expected) {}
+    }
+
+    @Test
+    public void testCorruptV2Transaction() throws IOException {
+        File f = newFile();
+        FileMessageLog fml = new FileMessageLog(f);
+        fml.log("test 0".getBytes());
+        long pos = fml.getPosition();
+        fml.log("test 1".getBytes());
+        fml.close();
+
+        // the crc covers the count and length fields too
+        RandomAccessFile r = new RandomAccessFile(f, "rw");
+        r.seek(pos + 12);
+        r.writeInt(2);
+        r.close();
+        try {
+            new FileMessageLog(f, IGNORE);
+            fail("Loaded corrupted file!");
+        } catch (IOException expected) {
+            assertEquals("bad CRC at offset " + pos, expected.getMessage());
+        }
+        try {
+            new FileMessageLog(f, IGNORE, 2);
+            fail("Loaded corrupted file!");
+        } catch (IOException expected) {
+            assertEquals("bad CRC at offset " + pos, expected.getMessage());
+        }
+    }
+
+    @Test
+    public void testCleanShutdown() throws IOException {
+        File f = newFile();
+        FileMessageLog fml = new FileMessageLog(f);
+        for (int i = 0; i < 10; ++i) fml.log(("test " + i).getBytes());
+        long first = LogFormat.HEADER_LENGTH;
+        long clean = fml.getPosition();
+        fml.close();
+        assertArrayEquals(new long[] {clean, 10}, readCleanShutdown(f));
+        byte[] header = new byte[LogFormat.HEADER_LENGTH];
+        RandomAccessFile r = new RandomAccessFile(f, "r");
+        r.readFully(header);
+        r.close();
+
+        // data before the clean length isn't read when opened without a handler
+        corrupt(f, first + 20);
+        fml = new FileMessageLog(f);
+        assertEquals(10, fml.getNextSequence());
+        assertEquals(clean, fml.getPosition());
+        for (int i = 10; i < 20; ++i) fml.log(("test " + i).getBytes());
+        long end = fml.getPosition();
+        fml.close();
+        assertArrayEquals(new long[] {end, 20}, readCleanShutdown(f));
+        corrupt(f, first + 20); // restores it
+        assertEquals(20, readAll(f).size());
+
+        // after a crash, data written since the last clean shutdown is checked
+        r = new RandomAccessFile(f, "rw");
+        r.write(header);
+        r.close();
+        fml = new FileMessageLog(f);
+        assertEquals(20, fml.getNextSequence());
+        assertEquals(end, fml.getPosition());
+        fml.close();
+        r = new RandomAccessFile(f, "rw");
+        r.write(header);
+        r.close();
+        corrupt(f, end - 1);
+        try {
+            new FileMessageLog(f);
+            fail("Loaded corrupted file!");
+        } catch (IOException expected) {}
+
+        // an invalid clean length is ignored
+        corrupt(f, end - 1);
+        corrupt(f, first + 20);
+        r = new RandomAccessFile(f, "rw");
+        r.seek(LogFormat.CLEAN_OFFSET);
+        r.writeLong(end - 1);
+        r.close();
+        try {
+            new FileMessageLog(f);
+            fail("Trusted an invalid clean shutdown marker!");
+        } catch (IOException expected) {}
+    }
+
+    private long[] readCleanShutdown(File f) throws IOException {
+        try (RandomAccessFile r = new RandomAccessFile(f, "r")) {
+            return LogFormat.readCleanShutdown(r.getChannel());
+        }
+    }
+
+    private void corrupt(File f, long pos) throws IOException {
+        try (RandomAccessFile r = new RandomAccessFile(f, "rw")) {
+            r.seek(pos);
+            int b = r.read();
+            r.seek(pos);
+            r.write(b ^ 0xff);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.martiansoftware.messagelog;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author mlamb
+ */
+public class LogTailerTest {
+
+    private File newFile() throws IOException {
+        File f = File.createTempFile("messagelog", "test");
+        f.deleteOnExit();
+        FileMessageLog.getIndexFile(f).deleteOnExit();
+        return f;
+    }
+
+    private static class Collector implements MessageHandler {
+        final List<String> messages = new ArrayList<>();
+        @Override public void handleMessage(byte[] message) { messages.add(new String(message)); }
+    }
+
+    @Test
+    public void testTail() throws IOException {
+        FileMessageLog fml = new FileMessageLog(newFile());
+        LogTailer t = fml.tail();
+        Collector c = new Collector();
+        assertEquals(0, t.poll(c));
+
+        fml.log("test 0".getBytes(), "test 1".getBytes());
+        fml.log("test 2".getBytes());
+        assertEquals(2, t.poll(c));
+        assertEquals(0, t.poll(c));
+        assertEquals(fml.getPosition(), t.getPosition());
+        assertEquals(2, t.getNextSequence());
+
+        fml.log("test 3".getBytes());
+        assertEquals(1, t.poll(c));
+        assertEquals(java.util.Arrays.asList("test 0", "test 1", "test 2", "test 3"), c.messages);
+        t.close();
+        fml.close();
+    }
+
+    @Test
+    public void testTailFrom() throws IOException {
+        FileMessageLog fml = new FileMessageLog(newFile());
+        for (int i = 0; i < 1000; ++i) fml.log(new byte[100], ("test " + i).getBytes());
+
+        Collector c = new Collector();
+        LogTailer t = fml.tailFrom(990);
+        assertEquals(990, t.getNextSequence());
+        assertEquals(10, t.poll(c));
+        assertEquals(20, c.messages.size());
+        assertEquals("test 990", c.messages.get(1));
+
+        LogTailer end = fml.tailFrom(fml.getNextSequence());
+        assertEquals(0, end.poll(null));
+        fml.log("test 1000".getBytes());
+        assertEquals(1, end.poll(null));
+        assertEquals(1, t.poll(null));
+        try {
+            fml.tailFrom(1002);
+            fail("Tailed from a sequence that isn't in the log!");
+        } catch (IOException expected) {}
+        fml.close();
+    }
+
+    @Test
+    public void testBlockingPoll() throws Exception {
+        final FileMessageLog fml = new FileMessageLog(newFile());
+        LogTailer t = fml.tailFrom(0);
+        assertEquals(0, t.poll(null, 10, TimeUnit.MILLISECONDS));
+
+        Thread writer = new Thread() {
+            @Override public void run() {
+                try {
+                    Thread.sleep(100);
+                    fml.log("test".getBytes());
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        writer.start();
+        Collector c = new Collector();
+        long start = System.nanoTime();
+        assertEquals(1, t.poll(c, 10, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        assertEquals(java.util.Arrays.asList("test"), c.messages);
+        writer.join();
+        fml.close();
+    }
+
+    @Test
+    public void testTruncateAndClose() throws IOException {
+        FileMessageLog fml = new FileMessageLog(newFile());
+        fml.log("test".getBytes());
+        LogTailer t = fml.tail();
+        assertEquals(1, t.poll(null));
+        fml.truncate();
+        try {
+            t.poll(null);
+            fail("Tailed across a truncation!");
+        } catch (IOException expected) {}
+
+        t = fml.tail();
+        fml.log("test".getBytes());
+        assertEquals(1, t.poll(null));
+        fml.close();
+        try {
+            t.poll(null);
+            fail("Tailed a closed log!");
+        } catch (IOException expected) {}
+    }
+}
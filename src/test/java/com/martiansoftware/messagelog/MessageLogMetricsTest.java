@@ -0,0 +1,87 @@
+package com.martiansoftware.messagelog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author mlamb
+ */
+public class MessageLogMetricsTest {
+
+    private File newFile() throws IOException {
+        File f = File.createTempFile("messagelog", "test");
+        f.deleteOnExit();
+        FileMessageLog.getIndexFile(f).deleteOnExit();
+        return f;
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        File f = newFile();
+        MessageLogMetrics metrics = new MessageLogMetrics();
+        FileMessageLog fml = new FileMessageLog(f).setListener(metrics);
+        assertEquals(1, metrics.getReplays());
+        assertEquals(0, metrics.getTransactionsReplayed());
+
+        fml.log("test 0".getBytes(), "test 1".getBytes());
+        fml.log("test 2".getBytes());
+        long pos = fml.getPosition();
+        fml.sync();
+        assertEquals(2, metrics.getTransactionsWritten());
+        assertEquals(2, metrics.getWrites());
+        assertEquals(pos, metrics.getBytesWritten());
+        assertEquals(1, metrics.getMaxBatchSize());
+        assertEquals(1, metrics.getSyncs());
+        long syncs = 0;
+        for (long n : metrics.getSyncMicrosHistogram()) syncs += n;
+        assertEquals(1, syncs);
+        assertTrue(metrics.getSyncMicrosPercentile(99) >= metrics.getMaxSyncMicros());
+
+        fml.replay(null);
+        assertEquals(2, metrics.getReplays());
+        assertEquals(2, metrics.getTransactionsReplayed());
+        assertEquals(pos - LogFormat.HEADER_LENGTH, metrics.getBytesReplayed());
+        fml.close();
+
+        // a truncated tail is discarded when the log is opened
+        RandomAccessFile r = new RandomAccessFile(f, "rw");
+        r.setLength(pos - 1);
+        r.close();
+        metrics.reset();
+        assertEquals(0, metrics.getReplays());
+        fml = new FileMessageLog(f, new MessageHandler() {
+            @Override public void handleMessage(byte[] message) {}
+        }).setListener(metrics);
+        assertEquals(1, metrics.getReplays());
+        assertEquals(1, metrics.getTransactionsReplayed());
+        assertEquals(pos - 1 - fml.getPosition(), metrics.getBytesDiscarded());
+        // the opening replay is only reported once
+        fml.setListener(metrics);
+        assertEquals(1, metrics.getReplays());
+        fml.close();
+    }
+
+    @Test
+    public void testJMX() throws Exception {
+        MessageLogMetrics metrics = new MessageLogMetrics();
+        FileMessageLog fml = new FileMessageLog(newFile()).setListener(metrics);
+        ObjectName name = metrics.register(fml.getFile().getName());
+        try {
+            fml.log("test".getBytes());
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            assertEquals(1L, server.getAttribute(name, "TransactionsWritten"));
+            assertEquals(1L, server.getAttribute(name, "Writes"));
+        } finally {
+            metrics.unregister();
+            fml.close();
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+}
@@ -5,6 +5,8 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -117,5 +119,62 @@ public class MessageTransactionTest {
         }
     }
     
+    @Test
+    public void testByteBufferWrite() throws Exception {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bout);
 
+        MessageTransaction mt = new MessageTransaction(new byte[] {1}, new byte[] {}, new byte[] {3, 3, 3});
+        mt.writeTo(out);
+        out.close();
+        
+        ByteBuffer buf = ByteBuffer.allocate((int) mt.getLength());
+        mt.writeTo(buf);
+        assertFalse(buf.hasRemaining());
+        assertTrue(Arrays.equals(bout.toByteArray(), buf.array()));
+    }
+    
+    @Test
+    public void testGatheringWrite() throws Exception {
+        byte[] big = new byte[100];
+        for (int i = 0; i < big.length; ++i) big[i] = (byte) i;
+        ByteBuffer direct = ByteBuffer.allocateDirect(big.length);
+        direct.put(big).flip();
+        MessageTransaction mt = MessageTransaction.wrapBuffers(new ByteBuffer[] {ByteBuffer.wrap(new byte[] {1, 2}), direct, ByteBuffer.wrap(new byte[] {3})});
+        
+        ByteBuffer plain = ByteBuffer.allocate((int) mt.getLength());
+        mt.writeTo(plain);
+        
+        java.util.List<ByteBuffer> out = new java.util.ArrayList<>();
+        ByteBuffer buf = ByteBuffer.allocate((int) mt.getCopiedLength(50));
+        int region = mt.writeTo(buf, 0, 50, out);
+        assertFalse(buf.hasRemaining());
+        buf.limit(buf.position()).position(region);
+        out.add(buf);
+        assertEquals(3, out.size());
+        
+        ByteBuffer gathered = ByteBuffer.allocate((int) mt.getLength());
+        for (ByteBuffer b : out) gathered.put(b);
+        assertTrue(Arrays.equals(plain.array(), gathered.array()));
+        assertEquals(0, direct.position());
+    }
+    
+    @Test
+    public void testReusedCrcScratch() throws Exception {
+        ByteBuffer direct = ByteBuffer.allocateDirect(100);
+        direct.put(new byte[100]).flip();
+        MessageTransaction[] txs = {
+            new MessageTransaction("first".getBytes(), "transaction".getBytes()),
+            MessageTransaction.wrapBuffers(new ByteBuffer[] {direct, ByteBuffer.wrap("x".getBytes())}),
+            new MessageTransaction("last".getBytes())
+        };
+        MessageTransaction.CrcScratch scratch = new MessageTransaction.CrcScratch();
+        for (MessageTransaction mt : txs) {
+            ByteBuffer fresh = ByteBuffer.allocate((int) mt.getLength(LogFormat.V2));
+            mt.writeTo(fresh, LogFormat.V2);
+            ByteBuffer reused = ByteBuffer.allocate((int) mt.getLength(LogFormat.V2));
+            mt.writeTo(reused, LogFormat.V2, scratch);
+            assertTrue(Arrays.equals(fresh.array(), reused.array()));
+        }
+    }
 }
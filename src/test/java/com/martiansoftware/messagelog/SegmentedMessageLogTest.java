@@ -0,0 +1,180 @@
+package com.martiansoftware.messagelog;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class SegmentedMessageLogTest {
+    
+    private File newDir() throws IOException {
+        File dir = Files.createTempDirectory("segmentedmessagelog").toFile();
+        dir.deleteOnExit();
+        return dir;
+    }
+    
+    private List<String> readAll(File dir) throws IOException {
+        final List<String> result = new ArrayList<>();
+        new SegmentedMessageLog(dir, new MessageHandler() {
+            @Override public void handleMessage(byte[] message) { result.add(new String(message)); }
+        }).close();
+        return result;
+    }
+    
+    @Test
+    public void testRollBySize() throws IOException {
+        File dir = newDir();
+        SegmentedMessageLog log = new SegmentedMessageLog(dir).setMaxSegmentSize(100);
+        for (int i = 0; i < 50; ++i) log.log(("test " + i).getBytes());
+        assertTrue(log.getSegments().size() > 1);
+        for (File f : log.getSegments()) {
+            f.deleteOnExit();
+            assertTrue(f.length() < 100 + 30);
+        }
+        log.close();
+        
+        List<String> messages = readAll(dir);
+        assertEquals(50, messages.size());
+        for (int i = 0; i < 50; ++i) assertEquals("test " + i, messages.get(i));
+    }
+    
+    @Test
+    public void testRollByAge() throws Exception {
+        File dir = newDir();
+        SegmentedMessageLog log = new SegmentedMessageLog(dir).setMaxSegmentAge(10, TimeUnit.MILLISECONDS);
+        log.log("one".getBytes());
+        Thread.sleep(20);
+        log.log("two".getBytes());
+        assertEquals(2, log.getSegments().size());
+        log.close();
+        assertEquals(2, readAll(dir).size());
+    }
+    
+    @Test
+    public void testSealedSegmentsOnlyRead() throws Exception {
+        File dir = newDir();
+        SegmentedMessageLog log = new SegmentedMessageLog(dir);
+        log.log("one".getBytes());
+        log.roll();
+        log.log("two".getBytes());
+        File sealed = log.getSegments().get(0);
+        
+        // sealed segments aren't locked (or written) to replay them
+        java.io.RandomAccessFile raf = new java.io.RandomAccessFile(sealed, "rw");
+        java.nio.channels.FileLock lock = raf.getChannel().lock();
+        try {
+            final List<String> messages = new ArrayList<>();
+            log.replay(new MessageHandler() {
+                @Override public void handleMessage(byte[] message) { messages.add(new String(message)); }
+            });
+            assertEquals(2, messages.size());
+            messages.clear();
+            log.replayFrom(0, new MessageHandler() {
+                @Override public void handleMessage(byte[] message) { messages.add(new String(message)); }
+            });
+            assertEquals(2, messages.size());
+        } finally {
+            lock.release();
+            raf.close();
+        }
+        log.close();
+        
+        // a corrupt sealed segment is still reported
+        raf = new java.io.RandomAccessFile(sealed, "rw");
+        raf.seek(raf.length() - 1);
+        int b = raf.read();
+        raf.seek(raf.length() - 1);
+        raf.write(b ^ 1);
+        raf.close();
+        try {
+            readAll(dir);
+            fail("Replayed a corrupt segment!");
+        } catch (IOException expected) {}
+    }
+    
+    @Test
+    public void testDeleteSegments() throws IOException {
+        File dir = newDir();
+        SegmentedMessageLog log = new SegmentedMessageLog(dir);
+        log.log("one".getBytes());
+        log.roll();
+        log.log("two".getBytes());
+        log.roll();
+        log.log("three".getBytes());
+        
+        List<File> segments = log.getSegments();
+        assertEquals(3, segments.size());
+        assertEquals(2, log.deleteSegmentsBefore(segments.get(2)));
+        assertFalse(segments.get(0).exists());
+        assertFalse(segments.get(1).exists());
+        assertEquals(1, log.getSegments().size());
+        
+        log.log("four".getBytes());
+        log.close();
+        
+        List<String> messages = readAll(dir);
+        assertEquals(2, messages.size());
+        assertEquals("three", messages.get(0));
+        assertEquals("four", messages.get(1));
+    }
+    
+    @Test
+    public void testReopenAppends() throws IOException {
+        File dir = newDir();
+        SegmentedMessageLog log = new SegmentedMessageLog(dir);
+        log.log("one".getBytes());
+        log.roll();
+        log.log("two".getBytes());
+        log.close();
+        
+        log = new SegmentedMessageLog(dir);
+        log.log("three".getBytes());
+        assertEquals(2, log.getSegments().size());
+        log.close();
+        assertEquals(3, readAll(dir).size());
+    }
+    
+    @Test
+    public void testOverlap() throws IOException {
+        File dir = newDir();
+        SegmentedMessageLog log = new SegmentedMessageLog(dir);
+        try {
+            new SegmentedMessageLog(dir);
+            fail("Able to open same SegmentedMessageLog twice!");
+        } catch (IOException expected) {}
+        log.close();
+    }
+    
+    @Test
+    public void testSequenceNumbers() throws IOException {
+        File dir = newDir();
+        SegmentedMessageLog log = new SegmentedMessageLog(dir).setMaxSegmentSize(100);
+        for (int i = 0; i < 50; ++i) assertEquals(i, log.log(("test " + i).getBytes()));
+        List<File> segments = log.getSegments();
+        assertEquals("00000000000000000000.log", segments.get(0).getName());
+        
+        final List<String> messages = new ArrayList<>();
+        MessageHandler h = new MessageHandler() {
+            @Override public void handleMessage(byte[] message) { messages.add(new String(message)); }
+        };
+        log.replayFrom(17, h);
+        assertEquals(33, messages.size());
+        assertEquals("test 17", messages.get(0));
+        
+        log.deleteSegmentsBefore(segments.get(segments.size() - 1));
+        try {
+            log.replayFrom(17, h);
+            fail("Replayed deleted segment!");
+        } catch (IOException expected) {}
+        log.close();
+        
+        log = new SegmentedMessageLog(dir);
+        assertEquals(50, log.getNextSequence());
+        assertEquals(50, log.log("test 50".getBytes()));
+        log.close();
+    }
+}
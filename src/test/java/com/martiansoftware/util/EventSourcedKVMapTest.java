@@ -1,11 +1,16 @@
 package com.martiansoftware.util;
 
 import com.martiansoftware.messagelog.FileMessageLog;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -25,6 +30,8 @@ public class EventSourcedKVMapTest {
     private File newTestFile() throws IOException {
         File f = File.createTempFile(this.getClass().getName(), "test");
         f.deleteOnExit();
+        EventSourcedKVMap.getSnapshotFile(f).deleteOnExit();
+        FileMessageLog.getIndexFile(f).deleteOnExit();
         return f;
     }
     
@@ -71,5 +78,407 @@ public class EventSourcedKVMapTest {
         
         m = new EventSourcedKVMap(f);
         assertEquals(null, m.get("nada"));
+        assertTrue(m.containsKey("nada"));
+        assertTrue(m.containsValue(null));
+        assertFalse(m.containsValue(""));
+        assertTrue(m.values().contains(null));
+        assertEquals(null, m.entrySet().iterator().next().getValue());
+        assertEquals(1, m.size());
+        assertEquals(null, m.remove("nada"));
+        assertTrue(m.isEmpty());
+        assertEquals(0, m.size());
+    }
+    
+    @Test
+    public void testConcurrentReads() throws Exception {
+        File f = newTestFile();
+        final EventSourcedKVMap m = new EventSourcedKVMap(f);
+        final int keys = 100, rounds = 20;
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        
+        // each round rewrites every key with the round number; readers must
+        // never see a key go backwards, or a value that isn't a round number
+        Thread[] readers = new Thread[4];
+        final AtomicBoolean done = new AtomicBoolean();
+        for (int t = 0; t < readers.length; ++t) {
+            readers[t] = new Thread() {
+                @Override public void run() {
+                    try {
+                        int[] seen = new int[keys];
+                        while (!done.get()) {
+                            for (int k = 0; k < keys; ++k) {
+                                String v = m.get(key(k));
+                                if (v == null) continue;
+                                int round = Integer.parseInt(v);
+                                assertTrue(round >= seen[k]);
+                                seen[k] = round;
+                            }
+                            for (Map.Entry<String, String> e : m.entrySet()) assertNotNull(e.getValue());
+                            assertTrue(m.size() <= keys);
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            };
+            readers[t].start();
+        }
+        for (int r = 0; r < rounds; ++r) {
+            for (int k = 0; k < keys; ++k) m.put(key(k), String.valueOf(r));
+        }
+        done.set(true);
+        for (Thread t : readers) t.join();
+        if (failure.get() != null) throw new AssertionError(failure.get());
+        assertEquals(keys, m.size());
+        m.close();
+        
+        EventSourcedKVMap m2 = new EventSourcedKVMap(f);
+        assertEquals(keys, m2.size());
+        for (int k = 0; k < keys; ++k) assertEquals(String.valueOf(rounds - 1), m2.get(key(k)));
+        m2.close();
+    }
+    
+    private static String key(int k) {
+        return String.format("key%03d", k);
+    }
+    
+    @Test
+    public void testClear() throws IOException {
+        File f = newTestFile();
+        EventSourcedKVMap m = new EventSourcedKVMap(f);
+        m.put("1", "one");
+        m.clear();
+        assertTrue(m.isEmpty());
+        m.put("2", "two");
+        m.close();
+        
+        m = new EventSourcedKVMap(f);
+        assertEquals(1, m.size());
+        assertEquals("two", m.get("2"));
+        m.close();
+    }
+    
+    @Test
+    public void testSnapshot() throws IOException {
+        File f = newTestFile();
+        EventSourcedKVMap m = new EventSourcedKVMap(f);
+        for (int i = 0; i < 100; ++i) m.put("k" + (i % 10), "v" + i);
+        m.snapshot();
+        assertTrue(EventSourcedKVMap.getSnapshotFile(f).exists());
+        m.remove("k0");
+        m.put("k10", null);
+        m.close();
+        
+        EventSourcedKVMap m2 = new EventSourcedKVMap(f);
+        assertEquals(m, m2);
+        assertEquals(10, m2.size());
+        assertEquals("v99", m2.get("k9"));
+        assertTrue(m2.containsKey("k10"));
+        m2.close();
+    }
+    
+    @Test
+    public void testCompact() throws IOException {
+        File f = newTestFile();
+        EventSourcedKVMap m = new EventSourcedKVMap(f);
+        for (int i = 0; i < 100; ++i) m.put("k" + (i % 10), "v" + i);
+        m.compact();
+        assertEquals(0, f.length());
+        m.put("k0", "zero");
+        m.close();
+        
+        EventSourcedKVMap m2 = new EventSourcedKVMap(f);
+        assertEquals(m, m2);
+        assertEquals("zero", m2.get("k0"));
+        assertEquals("v91", m2.get("k1"));
+        m2.close();
+    }
+    
+    @Test
+    public void testSnapshotInterval() throws IOException {
+        File f = newTestFile();
+        EventSourcedKVMap m = new EventSourcedKVMap(f).setSnapshotInterval(10);
+        for (int i = 0; i < 25; ++i) m.put("k" + i, "v" + i);
+        m.close();
+        assertTrue(EventSourcedKVMap.getSnapshotFile(f).exists());
+        
+        EventSourcedKVMap m2 = new EventSourcedKVMap(f);
+        assertEquals(25, m2.size());
+        m2.close();
+    }
+    
+    @Test
+    public void testCorruptSnapshotIgnored() throws IOException {
+        File f = newTestFile();
+        EventSourcedKVMap m = new EventSourcedKVMap(f);
+        m.put("1", "one");
+        m.snapshot();
+        m.put("2", "two");
+        m.close();
+        
+        java.io.RandomAccessFile r = new java.io.RandomAccessFile(EventSourcedKVMap.getSnapshotFile(f), "rw");
+        r.setLength(r.length() - 1);
+        r.close();
+        
+        EventSourcedKVMap m2 = new EventSourcedKVMap(f);
+        assertEquals(m, m2);
+        m2.close();
+    }
+    
+    @Test
+    public void testLegacyRecords() throws IOException {
+        // records as written by earlier versions: a char opcode, and strings
+        // as a null flag followed by writeUTF()
+        File f = newTestFile();
+        FileMessageLog fml = new FileMessageLog(f);
+        fml.log(legacy('p', "1", "one", "2", "two", "3", null));
+        fml.log(legacy('r', "2"));
+        fml.log(new byte[] {'c'});
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream d = new DataOutputStream(bout);
+        d.writeChar('P');
+        d.writeInt(2);
+        d.write(legacy("4", "four", "5", null));
+        fml.log(bout.toByteArray());
+        fml.log(legacy('p', "6", "six"));
+        fml.close();
+        
+        EventSourcedKVMap m = new EventSourcedKVMap(f);
+        assertEquals(3, m.size());
+        assertEquals("four", m.get("4"));
+        assertTrue(m.containsKey("5"));
+        assertEquals("six", m.get("6"));
+        m.put("7", "seven");
+        m.remove("6");
+        m.close();
+        
+        m = new EventSourcedKVMap(f);
+        assertEquals(3, m.size());
+        assertEquals("seven", m.get("7"));
+        m.close();
+    }
+    
+    @Test
+    public void testFailedOpenReleasesLog() throws IOException {
+        File f = newTestFile();
+        FileMessageLog fml = new FileMessageLog(f);
+        fml.log(new byte[] {42});
+        fml.close();
+        
+        for (int i = 0; i < 2; ++i) {
+            try {
+                if (i == 0) new EventSourcedKVMap(f);
+                else EventSourcedKVMap.openOnDisk(f, null, 10);
+                fail("Opened a map with an unrecognized record!");
+            } catch (RuntimeException expected) {}
+        }
+        
+        // the log was closed, so it can be opened again
+        new FileMessageLog(f).close();
+    }
+    
+    @Test
+    public void testFailedPutAllNotLogged() throws IOException {
+        File f = newTestFile();
+        EventSourcedKVMap m = new EventSourcedKVMap(f);
+        m.put("a", "1");
+        // fails part way through writing the record
+        Map<String, String> bad = new java.util.AbstractMap<String, String>() {
+            @Override public Set<Map.Entry<String, String>> entrySet() {
+                return new java.util.AbstractSet<Map.Entry<String, String>>() {
+                    @Override public int size() { return 2; }
+                    @Override public java.util.Iterator<Map.Entry<String, String>> iterator() {
+                        final java.util.Iterator<String> i = java.util.Arrays.asList("b", "c").iterator();
+                        return new java.util.Iterator<Map.Entry<String, String>>() {
+                            @Override public boolean hasNext() { return i.hasNext(); }
+                            @Override public Map.Entry<String, String> next() {
+                                String k = i.next();
+                                if (k.equals("c")) throw new IllegalStateException();
+                                return new java.util.AbstractMap.SimpleEntry<>(k, "2");
+                            }
+                            @Override public void remove() { throw new UnsupportedOperationException(); }
+                        };
+                    }
+                };
+            }
+            @Override public Set<String> keySet() {
+                return new java.util.HashSet<>(java.util.Arrays.asList("b", "c"));
+            }
+        };
+        try {
+            m.putAll(bad);
+            fail("putAll didn't fail!");
+        } catch (IllegalStateException expected) {}
+        m.put("d", "4");
+        m.close();
+        
+        m = new EventSourcedKVMap(f);
+        assertEquals(2, m.size());
+        assertEquals("1", m.get("a"));
+        assertEquals("4", m.get("d"));
+        m.close();
+    }
+    
+    @Test
+    public void testLongStringsAndPrefixes() throws IOException {
+        File f = newTestFile();
+        EventSourcedKVMap m = new EventSourcedKVMap(f);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100000; ++i) sb.append((char) ('a' + i % 26));
+        String big = sb.toString();
+        m.put(big, big + "\u00e9\u4e2d");
+        
+        Map<String, String> all = new TreeMap<>();
+        for (int i = 0; i < 100; ++i) all.put("some/common/prefix/" + i, i % 7 == 0 ? null : "v" + i);
+        all.put("", "empty");
+        m.putAll(all);
+        m.snapshot();
+        m.put("after", "snapshot");
+        m.close();
+        
+        EventSourcedKVMap m2 = new EventSourcedKVMap(f);
+        assertEquals(m, m2);
+        assertEquals(big + "\u00e9\u4e2d", m2.get(big));
+        for (Map.Entry<String, String> e : all.entrySet()) assertEquals(e.getValue(), m2.get(e.getKey()));
+        m2.close();
+        
+        // replay the log alone, without the snapshot
+        assertTrue(EventSourcedKVMap.getSnapshotFile(f).delete());
+        EventSourcedKVMap m3 = new EventSourcedKVMap(f);
+        assertEquals(m, m3);
+        m3.close();
+    }
+    
+    @Test
+    public void testOnDisk() throws IOException {
+        File f = newTestFile();
+        EventSourcedKVMap m = EventSourcedKVMap.openOnDisk(f, null, 2);
+        assertTrue(m.isOnDisk());
+        for (int i = 0; i < 100; ++i) m.put(key(i), "v" + i);
+        m.put(key(5), null);
+        assertEquals("v1", m.put(key(1), "one"));
+        assertEquals("v2", m.remove(key(2)));
+        Map<String, String> all = new TreeMap<>();
+        for (int i = 100; i < 110; ++i) all.put(key(i), "\u00e9" + i);
+        m.putAll(all);
+        assertEquals(109, m.size());
+        assertEquals("one", m.get(key(1)));
+        assertEquals(null, m.get(key(5)));
+        assertEquals("\u00e9105", m.get(key(105)));
+        assertTrue(m.containsValue("v50"));
+        m.close();
+        
+        // the same files can be opened either way
+        EventSourcedKVMap expected = new EventSourcedKVMap(f);
+        expected.close();
+        assertEquals("v99", expected.get(key(99)));
+        m = EventSourcedKVMap.openOnDisk(f, null, 0);
+        assertEquals(expected, m);
+        m.snapshot();
+        m.put(key(0), "zero");
+        m.close();
+        
+        m = EventSourcedKVMap.openOnDisk(f, null, 10);
+        assertEquals("zero", m.get(key(0)));
+        assertEquals("v99", m.get(key(99)));
+        m.compact();
+        assertEquals(0, f.length());
+        assertEquals("v98", m.get(key(98)));
+        m.put(key(98), "after compact");
+        assertEquals("\u00e9109", m.get(key(109)));
+        m.compact();
+        assertEquals("after compact", m.get(key(98)));
+        m.close();
+        
+        expected = new EventSourcedKVMap(f);
+        expected.close();
+        assertEquals("zero", expected.get(key(0)));
+        assertEquals("after compact", expected.get(key(98)));
+        m = EventSourcedKVMap.openOnDisk(f, null, 10);
+        assertEquals(expected, m);
+        m.close();
+    }
+    
+    @Test
+    public void testBatch() throws IOException {
+        File f = newTestFile();
+        for (int cacheSize = -1; cacheSize <= 0; ++cacheSize) {
+            EventSourcedKVMap m = cacheSize < 0 ? new EventSourcedKVMap(f) : EventSourcedKVMap.openOnDisk(f, null, cacheSize);
+            m.clear();
+            m.put("stale", "gone");
+            EventSourcedKVMap.Batch b = m.newBatch()
+                    .put("1", "one")
+                    .clear()
+                    .put("2", "two")
+                    .put("3", null)
+                    .put("4", "four")
+                    .remove("4")
+                    .put("2", "deux");
+            assertEquals(7, b.size());
+            assertEquals("gone", m.get("stale")); // nothing happens until commit
+            b.commit();
+            assertEquals(0, b.size());
+            b.commit(); // empty
+            assertEquals(2, m.size());
+            assertEquals("deux", m.get("2"));
+            assertTrue(m.containsKey("3"));
+            b.put("5", "five").commit();
+            m.close();
+            
+            // each batch is a single transaction: the first pass logs a put
+            // and two batches, and the second a clear as well
+            FileMessageLog fml = new FileMessageLog(f);
+            assertEquals(cacheSize < 0 ? 3 : 7, fml.getNextSequence());
+            fml.close();
+            
+            m = cacheSize < 0 ? new EventSourcedKVMap(f) : EventSourcedKVMap.openOnDisk(f, null, cacheSize);
+            assertEquals(3, m.size());
+            assertEquals("deux", m.get("2"));
+            assertEquals(null, m.get("3"));
+            assertEquals("five", m.get("5"));
+            m.close();
+        }
+    }
+    
+    @Test
+    public void testSurrogatePairKeys() throws IOException {
+        // keys sharing a high surrogate, whose common prefix ends mid-pair
+        File f = newTestFile();
+        EventSourcedKVMap m = new EventSourcedKVMap(f);
+        Map<String, String> all = new TreeMap<>();
+        all.put("\ud83d\ude00", "grinning");
+        all.put("\ud83d\ude01", "beaming");
+        all.put("x\ud83d\ude00", "x");
+        m.putAll(all);
+        m.close();
+        
+        m = new EventSourcedKVMap(f);
+        assertEquals(all.keySet(), m.keySet());
+        assertEquals("beaming", m.get("\ud83d\ude01"));
+        m.snapshot();
+        m.close();
+        
+        m = new EventSourcedKVMap(f);
+        assertEquals(all.keySet(), m.keySet());
+        assertEquals("grinning", m.get("\ud83d\ude00"));
+        m.close();
+    }
+    
+    private static byte[] legacy(char op, String... strings) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream d = new DataOutputStream(bout);
+        d.writeChar(op);
+        d.write(legacy(strings));
+        return bout.toByteArray();
+    }
+    
+    private static byte[] legacy(String... strings) throws IOException {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream d = new DataOutputStream(bout);
+        for (String s : strings) {
+            d.writeBoolean(s == null);
+            if (s != null) d.writeUTF(s);
+        }
+        return bout.toByteArray();
     }
 }
@@ -0,0 +1,145 @@
+package com.martiansoftware.util;
+
+import com.martiansoftware.messagelog.FileMessageLog;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author mlamb
+ */
+public class EventSourcedLongMapTest {
+    
+    private File newTestFile() throws IOException {
+        File f = File.createTempFile(this.getClass().getName(), "test");
+        f.deleteOnExit();
+        EventSourcedLongMap.getSnapshotFile(f).deleteOnExit();
+        FileMessageLog.getIndexFile(f).deleteOnExit();
+        return f;
+    }
+    
+    private static Map<Long, Long> contents(EventSourcedLongMap m) {
+        final Map<Long, Long> result = new HashMap<>();
+        m.forEach(new EventSourcedLongMap.Visitor() {
+            @Override public void visit(long key, long value) {
+                assertNull(result.put(key, value));
+            }
+        });
+        assertEquals(m.size(), result.size());
+        return result;
+    }
+    
+    @Test
+    public void testBasics() throws IOException {
+        File f = newTestFile();
+        EventSourcedLongMap m = new EventSourcedLongMap(f);
+        assertTrue(m.isEmpty());
+        assertEquals(0, m.put(1, 10));
+        assertEquals(10, m.put(1, 11));
+        assertEquals(0, m.put(0, 5)); // zero is an ordinary key
+        assertEquals(0, m.put(-1, 0));
+        assertTrue(m.containsKey(-1));
+        assertFalse(m.containsKey(2));
+        assertEquals(0, m.get(2));
+        assertEquals(3, m.addAndGet(2, 3));
+        assertEquals(1, m.addAndGet(2, -2));
+        assertEquals(4, m.size());
+        assertEquals(5, m.remove(0));
+        assertFalse(m.containsKey(0));
+        assertEquals(0, m.remove(42));
+        m.close();
+        
+        m = new EventSourcedLongMap(f);
+        assertEquals(3, m.size());
+        assertEquals(11, m.get(1));
+        assertEquals(1, m.get(2));
+        assertTrue(m.containsKey(-1));
+        m.clear();
+        assertTrue(m.isEmpty());
+        m.put(7, 7);
+        m.close();
+        
+        m = new EventSourcedLongMap(f);
+        assertEquals(1, m.size());
+        assertEquals(7, m.get(7));
+        m.close();
+    }
+    
+    @Test
+    public void testRandomOperations() throws IOException {
+        // small key ranges make for long probe runs and many removals
+        File f = newTestFile();
+        EventSourcedLongMap m = new EventSourcedLongMap(f);
+        Map<Long, Long> expected = new HashMap<>();
+        Random r = new Random(0);
+        for (int i = 0; i < 20000; ++i) {
+            long key = r.nextInt(2000) - 1000;
+            if (r.nextInt(3) == 0) {
+                Long prev = expected.remove(key);
+                assertEquals(prev == null ? 0 : prev, m.remove(key));
+            } else if (r.nextBoolean()) {
+                long v = r.nextLong();
+                Long prev = expected.put(key, v);
+                assertEquals(prev == null ? 0 : prev, m.put(key, v));
+            } else {
+                Long prev = expected.get(key);
+                long v = (prev == null ? 0 : prev) + i;
+                expected.put(key, v);
+                assertEquals(v, m.addAndGet(key, i));
+            }
+        }
+        for (long key = -1000; key < 1000; ++key) {
+            assertEquals(expected.containsKey(key), m.containsKey(key));
+        }
+        assertEquals(expected, contents(m));
+        m.close();
+        
+        m = new EventSourcedLongMap(f);
+        assertEquals(expected, contents(m));
+        m.close();
+    }
+    
+    @Test
+    public void testFailedOpenReleasesLog() throws IOException {
+        File f = newTestFile();
+        FileMessageLog fml = new FileMessageLog(f);
+        fml.log(new byte[] {42});
+        fml.close();
+        
+        try {
+            new EventSourcedLongMap(f);
+            fail("Opened a map with an unrecognized record!");
+        } catch (RuntimeException expected) {}
+        
+        // the log was closed, so it can be opened again
+        new FileMessageLog(f).close();
+    }
+    
+    @Test
+    public void testSnapshotAndCompact() throws IOException {
+        File f = newTestFile();
+        EventSourcedLongMap m = new EventSourcedLongMap(f).setSnapshotInterval(1000);
+        for (long i = 0; i < 2500; ++i) m.put(i * 31, i);
+        assertTrue(EventSourcedLongMap.getSnapshotFile(f).exists());
+        m.remove(0);
+        Map<Long, Long> expected = contents(m);
+        m.close();
+        
+        m = new EventSourcedLongMap(f);
+        assertEquals(expected, contents(m));
+        m.compact();
+        assertEquals(0, f.length());
+        m.addAndGet(31, 100);
+        m.close();
+        
+        expected.put(31L, 101L);
+        m = new EventSourcedLongMap(f);
+        assertEquals(expected, contents(m));
+        m.close();
+    }
+}